@@ -0,0 +1,129 @@
+package org.montrealtransit.android.data;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.montrealtransit.android.MyLog;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.text.TextUtils;
+
+/**
+ * Immutable in-memory copy of a service dates table: date (yyyyMMdd) => services bit set.
+ * <p>
+ * The table is small (less than 100 rows) so it's read once per DB version and schedule lookups don't hit SQLite anymore.
+ */
+public class ServiceDateCalendar {
+
+	public static final String TAG = ServiceDateCalendar.class.getSimpleName();
+
+	private static final String[] PROJECTION_SERVICE_DATES = new String[] { ServiceDateColumns.T_SERVICE_DATES_K_SERVICE_ID,
+			ServiceDateColumns.T_SERVICE_DATES_K_DATE };
+
+	/**
+	 * The service IDs (bit index => service ID).
+	 */
+	private final String[] serviceIds;
+
+	/**
+	 * The services of each date (yyyyMMdd).
+	 */
+	private final Map<String, BitSet> dateServices;
+
+	private ServiceDateCalendar(String[] serviceIds, Map<String, BitSet> dateServices) {
+		this.serviceIds = serviceIds;
+		this.dateServices = dateServices;
+	}
+
+	/**
+	 * Load the whole service dates table.
+	 * @return the calendar or <b>NULL</b> if the table can't be read (DB not ready...)
+	 */
+	public static ServiceDateCalendar load(SQLiteDatabase db, String table) {
+		MyLog.v(TAG, "load(%s)", table);
+		Cursor cursor = null;
+		try {
+			cursor = db.query(table, PROJECTION_SERVICE_DATES, null, null, null, null, null);
+			Map<String, Set<String>> dateServiceIds = new HashMap<String, Set<String>>();
+			Set<String> allServiceIds = new TreeSet<String>();
+			if (cursor != null && cursor.getCount() > 0) {
+				if (cursor.moveToFirst()) {
+					do {
+						final String serviceId = cursor.getString(0);
+						final String date = cursor.getString(1);
+						if (!TextUtils.isEmpty(serviceId) && !TextUtils.isEmpty(date)) {
+							Set<String> serviceIds = dateServiceIds.get(date);
+							if (serviceIds == null) {
+								serviceIds = new HashSet<String>();
+								dateServiceIds.put(date, serviceIds);
+							}
+							serviceIds.add(serviceId);
+							allServiceIds.add(serviceId);
+						}
+					} while (cursor.moveToNext());
+				}
+			}
+			if (dateServiceIds.size() == 0) {
+				MyLog.d(TAG, "No service dates found (DB not ready?)!");
+				return null; // try again later
+			}
+			final String[] serviceIds = allServiceIds.toArray(new String[allServiceIds.size()]);
+			Map<String, Integer> serviceIdsIdx = new HashMap<String, Integer>();
+			for (int i = 0; i < serviceIds.length; i++) {
+				serviceIdsIdx.put(serviceIds[i], i);
+			}
+			Map<String, BitSet> dateServices = new HashMap<String, BitSet>();
+			for (Map.Entry<String, Set<String>> date : dateServiceIds.entrySet()) {
+				BitSet services = new BitSet(serviceIds.length);
+				for (String serviceId : date.getValue()) {
+					services.set(serviceIdsIdx.get(serviceId));
+				}
+				dateServices.put(date.getKey(), services);
+			}
+			MyLog.d(TAG, "Service dates calendar loaded (%s dates, %s services).", dateServices.size(), serviceIds.length);
+			return new ServiceDateCalendar(serviceIds, dateServices);
+		} catch (Throwable t) {
+			MyLog.w(TAG, t, "Error while loading service dates calendar!");
+			return null;
+		} finally {
+			if (cursor != null) {
+				cursor.close();
+			}
+		}
+	}
+
+	/**
+	 * @param date the date (yyyyMMdd)
+	 * @return the service IDs of the date (empty if none)
+	 */
+	public Set<String> getServiceIds(String date) {
+		Set<String> result = new HashSet<String>();
+		final BitSet services = this.dateServices.get(date);
+		if (services != null) {
+			for (int i = services.nextSetBit(0); i >= 0; i = services.nextSetBit(i + 1)) {
+				result.add(this.serviceIds[i]);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @param dates the dates (yyyyMMdd)
+	 * @return the service IDs of each date having at least one service
+	 */
+	public Map<String, Set<String>> getServiceIds(String[] dates) {
+		Map<String, Set<String>> result = new HashMap<String, Set<String>>();
+		for (String date : dates) {
+			final Set<String> dateServiceIds = getServiceIds(date);
+			if (dateServiceIds.size() > 0) {
+				result.put(date, dateServiceIds);
+			}
+		}
+		return result;
+	}
+}
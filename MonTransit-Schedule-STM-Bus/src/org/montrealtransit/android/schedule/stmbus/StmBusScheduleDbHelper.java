@@ -1,7 +1,6 @@
 package org.montrealtransit.android.schedule.stmbus;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 
 import org.montrealtransit.android.MyLog;
 
@@ -37,12 +36,36 @@ public class StmBusScheduleDbHelper extends SQLiteOpenHelper {
 
 	private boolean deployingData = false;
 
+	private boolean prebuiltDbChecked = false;
+
 	public StmBusScheduleDbHelper(Context context) {
 		super(context, DB_NAME, null, DB_VERSION);
 		MyLog.v(TAG, "StmBusScheduleDbHelper(%s, %s)", DB_NAME, DB_VERSION);
 		this.context = context;
 	}
 
+	@Override
+	public synchronized SQLiteDatabase getReadableDatabase() {
+		deployPrebuiltDbIfNecessary();
+		return super.getReadableDatabase();
+	}
+
+	@Override
+	public synchronized SQLiteDatabase getWritableDatabase() {
+		deployPrebuiltDbIfNecessary();
+		return super.getWritableDatabase();
+	}
+
+	/**
+	 * Swap in the packaged DB before opening the DB so onCreate()/onUpgrade() only run if there is no usable packaged DB.
+	 */
+	private void deployPrebuiltDbIfNecessary() {
+		if (!this.prebuiltDbChecked) {
+			this.prebuiltDbChecked = true;
+			PrebuiltDbDeployer.deployIfNecessary(this.context, DB_NAME, DB_VERSION);
+		}
+	}
+
 	@Override
 	public void onCreate(SQLiteDatabase db) {
 		MyLog.v(TAG, "onCreate()");
@@ -130,8 +153,9 @@ public class StmBusScheduleDbHelper extends SQLiteOpenHelper {
 
 	private boolean initDbTable(SQLiteDatabase db, String table, String sqlCreate, String sqlInsert, String sqlDrop, String[] fileNames) {
 		MyLog.v(TAG, "initDbTable(%s)", table);
-		BufferedReader br = null;
-		String line = null;
+		InputStream is = null;
+		DbBulkLoader loader = null;
+		String fileName = null;
 		try {
 			db.beginTransaction();
 			// MyLog.d(TAG, "create tables");
@@ -139,25 +163,29 @@ public class StmBusScheduleDbHelper extends SQLiteOpenHelper {
 			db.execSQL(sqlDrop); // drop if exists
 			db.execSQL(sqlCreate); // create if not exists
 			// deploy data
-			for (String fileName : fileNames) {
+			loader = new DbBulkLoader(db, table, sqlInsert);
+			for (int i = 0; i < fileNames.length; i++) {
+				fileName = fileNames[i];
 				// MyLog.d(TAG, "deploy data from " + fileId);
-				// InputStream in = getResources().openRawResource(resourceName);
-				br = new BufferedReader(new InputStreamReader(this.context.getResources().openRawResource(
-						this.context.getResources().getIdentifier(fileName, "raw", this.context.getPackageName())), "UTF8"), 8192);
-				while ((line = br.readLine()) != null) {
-					db.execSQL(String.format(sqlInsert, line));
-				}
+				is = this.context.getResources().openRawResource(
+						this.context.getResources().getIdentifier(fileName, "raw", this.context.getPackageName()));
+				loader.load(is);
+				is.close();
+				is = null;
 			}
 			// mark the transaction as successful
 			db.setTransactionSuccessful();
 			return true;
 		} catch (Exception e) {
-			MyLog.w(TAG, e, "ERROR while copying the database file! (line: %s)", line);
+			MyLog.w(TAG, e, "ERROR while copying the database file! (fileName: %s)", fileName);
 			// AnalyticsUtils
 			// .trackEvent(this.context, AnalyticsUtils.CATEGORY_ERROR, AnalyticsUtils.ACTION_DB_INIT_FAIL, e.getClass().getSimpleName(), DB_VERSION);
 			// TODO handles no space left on the device
 			return false;
 		} finally {
+			if (loader != null) {
+				loader.close();
+			}
 			try {
 				if (db != null) {
 					// end the transaction
@@ -167,8 +195,8 @@ public class StmBusScheduleDbHelper extends SQLiteOpenHelper {
 				MyLog.w(TAG, "ERROR while closing the new database!", e);
 			}
 			try {
-				if (br != null) {
-					br.close();
+				if (is != null) {
+					is.close();
 				}
 			} catch (Exception e) {
 				MyLog.w(TAG, "ERROR while closing the input stream!", e);
@@ -1,22 +1,26 @@
 package org.montrealtransit.android.schedule.stmbus;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
+import java.io.BufferedInputStream;
+import java.io.InputStream;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
-import java.util.Collections;
-import java.util.HashSet;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.montrealtransit.android.MyLog;
 import org.montrealtransit.android.data.RouteTripStop;
-import org.montrealtransit.android.data.ServiceDateColumns;
+import org.montrealtransit.android.data.ServiceDateCalendar;
 import org.montrealtransit.android.schedule.stmbus.activity.SplashScreen;
 
 import android.content.ContentProvider;
@@ -26,10 +30,7 @@ import android.content.Context;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.MatrixCursor;
-import android.database.sqlite.SQLiteDatabase;
-import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
-import android.text.TextUtils;
 
 public class StmBusScheduleProvider extends ContentProvider {
 
@@ -52,6 +53,9 @@ public class StmBusScheduleProvider extends ContentProvider {
 	// @Deprecated
 	// private static final int ROUTE_DEPARTURE = 7;
 	private static final int DEPARTURE = 8;
+	private static final int STOP_DEPARTURE = 9;
+	private static final int DEPARTURE_V1 = 10;
+	private static final int DEPARTURE_BATCH_V1 = 11;
 	private static final int PING = 100;
 
 	// private static final HashMap<String, String> SCHEDULE_PROJECTION_MAP;
@@ -60,6 +64,9 @@ public class StmBusScheduleProvider extends ContentProvider {
 		URI_MATCHER = new UriMatcher(UriMatcher.NO_MATCH);
 		URI_MATCHER.addURI(AUTHORITY, "ping", PING);
 		URI_MATCHER.addURI(AUTHORITY, "departure", DEPARTURE);
+		URI_MATCHER.addURI(AUTHORITY, "stop/#/departure", STOP_DEPARTURE);
+		URI_MATCHER.addURI(AUTHORITY, DepartureContract.PATH, DEPARTURE_V1);
+		URI_MATCHER.addURI(AUTHORITY, DepartureContract.BATCH_PATH, DEPARTURE_BATCH_V1);
 		// URI_MATCHER.addURI(AUTHORITY, "route/#/departure", ROUTE_DEPARTURE);
 		// URI_MATCHER.addURI(AUTHORITY, "route/#/trip/#/stop/#", ROUTE_TRIP_STOP);
 		// URI_MATCHER.addURI(AUTHORITY, "route/#/trip/#/stop/#/date/#/time/#", ROUTE_TRIP_STOP_DATE_TIME);
@@ -79,6 +86,11 @@ public class StmBusScheduleProvider extends ContentProvider {
 
 	private static int currentDbVersion = -1;
 
+	/**
+	 * The service dates of the current DB version.
+	 */
+	private static volatile ServiceDateCalendar serviceDateCalendar;
+
 	@Override
 	public boolean onCreate() {
 		MyLog.v(TAG, "onCreate()");
@@ -103,6 +115,9 @@ public class StmBusScheduleProvider extends ContentProvider {
 					MyLog.d(TAG, "Update DB...");
 					stmBusScheduleDbHelper.close();
 					stmBusScheduleDbHelper = null;
+					synchronized (StmBusScheduleProvider.class) { // same lock as getServiceDateCalendar()
+						serviceDateCalendar = null;
+					}
 					return getDBHelper(context);
 				}
 			} catch (Throwable t) {
@@ -129,6 +144,9 @@ public class StmBusScheduleProvider extends ContentProvider {
 		// case ROUTE_STOP_DATE_TIME:
 		// return SCHEDULE_CONTENT_TYPE;
 		case DEPARTURE:
+		case STOP_DEPARTURE:
+		case DEPARTURE_V1:
+		case DEPARTURE_BATCH_V1:
 			return DEPARTURE_CONTENT_TYPE;
 		case PING:
 			return null;
@@ -153,6 +171,12 @@ public class StmBusScheduleProvider extends ContentProvider {
 			return null;
 		case DEPARTURE:
 			return getDeparture(selection);
+		case DEPARTURE_V1:
+			return getDeparture(uri);
+		case DEPARTURE_BATCH_V1:
+			return getDepartureBatch(uri, selectionArgs);
+		case STOP_DEPARTURE:
+			return getStopDeparture(Integer.parseInt(uri.getPathSegments().get(1)), selection);
 		default:
 			throw new IllegalArgumentException(String.format("Unknown URI (query): '%s'", uri));
 		}
@@ -327,7 +351,118 @@ public class StmBusScheduleProvider extends ContentProvider {
 			final Calendar now = Calendar.getInstance();
 			now.setTimeInMillis(timestamp);
 			// get departure from content provider
-			return getDeparture(routeTripStop, now, cache, cacheUUID);
+			return getDepartureCursor(getDeparture(routeTripStop, now, cache, cacheUUID));
+		} catch (JSONException jsone) {
+			MyLog.w(TAG, jsone, "Error while parsing JSON '%s'!", selection);
+			return null;
+		}
+	}
+
+	/**
+	 * @param uri the departure URI (see {@link DepartureContract})
+	 * @return the departures cursor (1 row per departure timestamp)
+	 */
+	public Cursor getDeparture(Uri uri) {
+		MyLog.d(TAG, "getDeparture(%s)", uri);
+		try {
+			RouteTripStop routeTripStop = DepartureContract.getRouteTripStop(uri);
+			long timestamp = DepartureContract.getLongParameter(uri, DepartureContract.PARAM_TIMESTAMP, System.currentTimeMillis());
+			boolean cacheOnly = DepartureContract.getBooleanParameter(uri, DepartureContract.PARAM_CACHE_ONLY, false);
+			// IF cache only DO return nothing (no cache, the schedule files are read every time)
+			if (cacheOnly) {
+				return null;
+			}
+			final Calendar now = Calendar.getInstance();
+			now.setTimeInMillis(timestamp);
+			// get departure from content provider
+			return DepartureContract.getCursor(getDeparture(routeTripStop, now, null, routeTripStop.getUUID() + getAUTHORITY()));
+		} catch (NumberFormatException nfe) {
+			MyLog.w(TAG, nfe, "Error while parsing URI '%s'!", uri);
+			return null;
+		}
+	}
+
+	/**
+	 * @param uri the batch departure URI (see {@link DepartureContract})
+	 * @param selectionArgs the relative departure URI of each route trip stop
+	 * @return the batch departures cursor (1 row per route trip stop UUID & departure timestamp, empty if cache only: this provider never caches)
+	 */
+	public Cursor getDepartureBatch(Uri uri, String[] selectionArgs) {
+		MyLog.d(TAG, "getDepartureBatch(%s, %s)", uri, selectionArgs == null ? null : selectionArgs.length);
+		try {
+			long timestamp = DepartureContract.getLongParameter(uri, DepartureContract.PARAM_TIMESTAMP, System.currentTimeMillis());
+			boolean cacheOnly = DepartureContract.getBooleanParameter(uri, DepartureContract.PARAM_CACHE_ONLY, false);
+			Map<String, JSONObject> results = new HashMap<String, JSONObject>();
+			// IF cache only DO return nothing (no cache, the schedule files are read every time)
+			if (!cacheOnly && selectionArgs != null) {
+				List<RouteTripStop> routeTripStops = new ArrayList<RouteTripStop>();
+				for (String selectionArg : selectionArgs) {
+					routeTripStops.add(DepartureContract.getRouteTripStop(Uri.parse(selectionArg)));
+				}
+				final Calendar now = Calendar.getInstance();
+				now.setTimeInMillis(timestamp);
+				results = getDepartures(routeTripStops, now);
+			}
+			return DepartureContract.getBatchCursor(results);
+		} catch (NumberFormatException nfe) {
+			MyLog.w(TAG, nfe, "Error while parsing URI '%s'!", uri);
+			return null;
+		}
+	}
+
+	/**
+	 * Load the departures of multiple route trip stops with one service dates lookup and one read of each stop schedule file.
+	 * @return the departures of each route trip stop UUID
+	 */
+	public Map<String, JSONObject> getDepartures(List<RouteTripStop> routeTripStops, Calendar now) {
+		MyLog.d(TAG, "Checking yesterday, today and tomorrow schedule of %s route trip stops...", routeTripStops.size());
+		Map<String, JSONObject> result = new HashMap<String, JSONObject>();
+		// 1st find the dates service(s) once
+		final ScheduleDays days = new ScheduleDays(now);
+		final Map<String, Set<String>> datesServiceIds = findServices(days.dates);
+		// 2nd read each stop schedule file once
+		Map<Integer, List<RouteTripStop>> stopRouteTripStops = new HashMap<Integer, List<RouteTripStop>>();
+		for (RouteTripStop routeTripStop : routeTripStops) {
+			List<RouteTripStop> stopList = stopRouteTripStops.get(routeTripStop.stop.id);
+			if (stopList == null) {
+				stopList = new ArrayList<RouteTripStop>();
+				stopRouteTripStops.put(routeTripStop.stop.id, stopList);
+			}
+			stopList.add(routeTripStop);
+		}
+		for (Map.Entry<Integer, List<RouteTripStop>> stop : stopRouteTripStops.entrySet()) {
+			final StopScheduleFile scheduleFile = datesServiceIds.size() == 0 ? null : readScheduleFile(stop.getKey());
+			for (RouteTripStop routeTripStop : stop.getValue()) {
+				final List<Long> allTimestamps;
+				if (scheduleFile == null) {
+					allTimestamps = new ArrayList<Long>();
+				} else {
+					allTimestamps = new ArrayList<Long>(findScheduleList(routeTripStop.trip.id, scheduleFile, days, datesServiceIds).keySet());
+				}
+				result.put(routeTripStop.getUUID(), getDepartureJSON(routeTripStop, allTimestamps));
+			}
+		}
+		MyLog.d(TAG, "Checking yesterday, today and tomorrow schedule of %s route trip stops... DONE (%s stops)", routeTripStops.size(),
+				stopRouteTripStops.size());
+		return result;
+	}
+
+	/**
+	 * @param selection the JSON selection (timestamp & cache only, the cache validity is ignored: this provider never caches)
+	 */
+	public Cursor getStopDeparture(int stopId, String selection) {
+		MyLog.d(TAG, "getStopDeparture(%s, %s)", stopId, selection);
+		try {
+			JSONObject jSelection = selection == null ? new JSONObject() : new JSONObject(selection);
+			long timestamp = jSelection.has("timestamp") ? jSelection.getLong("timestamp") : System.currentTimeMillis();
+			boolean cacheOnly = jSelection.has("cacheOnly") ? jSelection.getBoolean("cacheOnly") : false;
+			// IF cache only DO return nothing (no cache, the schedule files are read every time)
+			if (cacheOnly) {
+				return null;
+			}
+			final Calendar now = Calendar.getInstance();
+			now.setTimeInMillis(timestamp);
+			return getStopDeparture(stopId, now);
 		} catch (JSONException jsone) {
 			MyLog.w(TAG, jsone, "Error while parsing JSON '%s'!", selection);
 			return null;
@@ -350,54 +485,20 @@ public class StmBusScheduleProvider extends ContentProvider {
 		return AUTHORITY;
 	}
 
-	public Cursor getDeparture(RouteTripStop routeTripStop, Calendar now, Object cache, String cacheUUID) { // TODO cache Cache cache
+	public JSONObject getDeparture(RouteTripStop routeTripStop, Calendar now, Object cache, String cacheUUID) { // TODO cache Cache cache
+		MyLog.d(TAG, "Checking yesterday, today and tomorrow schedule...");
+		List<Long> allTimestamps = new ArrayList<Long>(findScheduleList(routeTripStop.trip.id, routeTripStop.stop.id, now).keySet());
+		MyLog.d(TAG, "Checking yesterday, today and tomorrow schedule... DONE (%s)", allTimestamps.size());
+		return getDepartureJSON(routeTripStop, allTimestamps);
+	}
+
+	private JSONObject getDepartureJSON(RouteTripStop routeTripStop, List<Long> allTimestamps) {
 		try {
-			List<Long> allTimestamps = new ArrayList<Long>();
-			// 1ST - check if YESTERDAY schedule is over (because trips started yesterday end with 240000+ time)
-			MyLog.d(TAG, "Checking if yesterday schedule is over...");
-			Calendar yesterday = (Calendar) now.clone();
-			yesterday.add(Calendar.DATE, -1);
-			final String dateYesterday = DATE_FORMAT.format(yesterday.getTime());
-			// MyLog.d(TAG, "Date Yesterday: %s", dateYesterday);
-			final String timeYesterday = String.valueOf(Integer.valueOf(TIME_FORMAT.format(yesterday.getTime())) + 240000);
-			// yesterday.add(Calendar.DATE, +1); TODO ?
-			// MyLog.d(TAG, "Time Yesterday: %s", timeYesterday);
-			final Set<Long> yesterdayTimestamps = findScheduleList(routeTripStop.route.id, routeTripStop.trip.id, routeTripStop.stop.id, dateYesterday,
-					timeYesterday);
-			// MyLog.d(TAG, "result: %s", yesterdayTimestamps.size());
-			allTimestamps.addAll(yesterdayTimestamps);
-			MyLog.d(TAG, "Checking if yesterday schedule is over... DONE");
-			// 2ND - check TODAY schedule
-			MyLog.d(TAG, "Checking today schedule...");
-			final String dateNow = DATE_FORMAT.format(now.getTime());
-			// MyLog.d(TAG, "Date Now: %s", dateNow);
-			final String timeNow = TIME_FORMAT.format(now.getTime());
-			// MyLog.d(TAG, "Time Now: %s", timeNow);
-			final Set<Long> todayTimestamps = findScheduleList(routeTripStop.route.id, routeTripStop.trip.id, routeTripStop.stop.id, dateNow, timeNow);
-			// MyLog.d(TAG, "result: %s", todayTimestamps.size());
-			allTimestamps.addAll(todayTimestamps);
-			MyLog.d(TAG, "Checking today schedule... DONE");
-			// 3RD - look for last schedule => not necessary, query should ask for now minus the previous duration they want to have
-			// 4TH - check TOMORROW schedule
-			MyLog.d(TAG, "Checking tomorrow schedule...");
-			Calendar tomorrow = (Calendar) now.clone();
-			tomorrow.add(Calendar.DATE, +1);
-			final String tomorrowDate = DATE_FORMAT.format(tomorrow.getTime());
-			// MyLog.d(TAG, "Date tomorrow: %s", tomorrowDate);
-			// tomorrow.add(Calendar.DATE, -1);// TODO?
-			final String afterMidnightHour = "000000";
-			// MyLog.d(TAG, "Date tomorrow: %s", afterMidnightHour);
-			final Set<Long> tomorrowTimestamps = findScheduleList(routeTripStop.route.id, routeTripStop.trip.id, routeTripStop.stop.id, tomorrowDate,
-					afterMidnightHour);
-			// MyLog.d(TAG, "result: %s", tomorrowTimestamps.size());
-			allTimestamps.addAll(tomorrowTimestamps);
-			MyLog.d(TAG, "Checking tomorrow schedule... DONE");
 			// create JSON
 			final JSONObject jResult = new JSONObject();
 			jResult.put("realtime", false);
 			jResult.put("source", getContext().getString(R.string.offline_schedule));
 			final JSONArray jTimestamps = new JSONArray();
-			Collections.sort(allTimestamps);
 			for (Long t : allTimestamps) {
 				jTimestamps.put(t);
 			}
@@ -412,13 +513,46 @@ public class StmBusScheduleProvider extends ContentProvider {
 			// TODO cache // save to cache
 			// TODO cache saveToCache(cacheUUID, jResult);
 			// return result
-			return getDepartureCursor(jResult);
+			return jResult;
 		} catch (JSONException jsone) {
 			MyLog.w(TAG, jsone, "Error while parsing JSON '%s'!", routeTripStop);
 			return null;
 		}
 	}
 
+	public Cursor getStopDeparture(int stopId, Calendar now) {
+		try {
+			MyLog.d(TAG, "Checking yesterday, today and tomorrow schedule of all trips...");
+			SortedMap<Long, SortedSet<Integer>> tripIdsByTimestamp = findScheduleList(null, stopId, now);
+			MyLog.d(TAG, "Checking yesterday, today and tomorrow schedule of all trips... DONE (%s)", tripIdsByTimestamp.size());
+			return getDepartureCursor(getStopDepartureJSON(false, getContext().getString(R.string.offline_schedule), tripIdsByTimestamp));
+		} catch (JSONException jsone) {
+			MyLog.w(TAG, jsone, "Error while creating JSON for stop '%s'!", stopId);
+			return null;
+		}
+	}
+
+	/**
+	 * @param tripIdsByTimestamp the trip IDs of each departure timestamp
+	 * @return the departures of all the trips of the stop merged and sorted by time
+	 */
+	public JSONObject getStopDepartureJSON(boolean realtime, String source, SortedMap<Long, SortedSet<Integer>> tripIdsByTimestamp) throws JSONException {
+		final JSONObject jResult = new JSONObject();
+		jResult.put("realtime", realtime);
+		jResult.put("source", source);
+		final JSONArray jDepartures = new JSONArray();
+		for (Map.Entry<Long, SortedSet<Integer>> departure : tripIdsByTimestamp.entrySet()) {
+			for (Integer tripId : departure.getValue()) {
+				final JSONObject jDeparture = new JSONObject();
+				jDeparture.put("timestamp", departure.getKey());
+				jDeparture.put("tripId", tripId);
+				jDepartures.put(jDeparture);
+			}
+		}
+		jResult.put("departures", jDepartures);
+		return jResult;
+	}
+
 	public Cursor getDepartureCursor(JSONObject jsonObject) {
 		if (jsonObject == null) {
 			return null;
@@ -428,95 +562,184 @@ public class StmBusScheduleProvider extends ContentProvider {
 		return matrixCursor;
 	}
 
-	private static final String[] PROJECTION_SERVICE_DATES = new String[] { "service_id" };
-
 	private static final String RAW_FILE_FORMAT = "ca_mtl_stm_bus_schedules_stop_%s";
 
-	private Set<Long> findScheduleList(int routeId, int tripId, int stopId, String dateS, String timeS) {
-		MyLog.v(TAG, "findScheduleList(%s,%s,%s,%s,%s)", routeId, tripId, stopId, dateS, timeS);
-		long timeI = Integer.parseInt(timeS);
-		Set<Long> result = new HashSet<Long>();
-		Set<String> serviceIds = new HashSet<String>();
-		Cursor cursor = null;
-		try {
-			StringBuilder whereSb = new StringBuilder();
-			whereSb.append(ServiceDateColumns.T_SERVICE_DATES_K_DATE).append("=").append(dateS);
-			SQLiteDatabase db = getDBHelper(getContext()).getReadableDatabase();
-			SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
-			qb.setTables(StmBusScheduleDbHelper.T_SERVICE_DATES);
-			cursor = qb.query(db, PROJECTION_SERVICE_DATES, whereSb.toString(), null, null, null, null, null);
-			if (cursor != null && cursor.getCount() > 0) {
-				if (cursor.moveToFirst()) {
-					do {
-						final String serviceId = cursor.getString(0);
-						if (!TextUtils.isEmpty(serviceId)) {
-							serviceIds.add(serviceId);
+	/**
+	 * Find the departures from now until the same time tomorrow with one read of the stop schedule file.
+	 * <p>
+	 * The yesterday schedule may not be over (trips started yesterday end with 240000+ time) and the tomorrow schedule is read until the same time
+	 * tomorrow (the result is not kept longer than that).
+	 * @param tripId the trip ID or null for all the trips of the stop
+	 * @return the trip IDs of each departure timestamp (sorted)
+	 */
+	private SortedMap<Long, SortedSet<Integer>> findScheduleList(Integer tripId, int stopId, Calendar now) {
+		final ScheduleDays days = new ScheduleDays(now);
+		// 1st find dates service(s) in DB
+		final Map<String, Set<String>> datesServiceIds = findServices(days.dates);
+		// MyLog.d(TAG, "findScheduleList() > found %s date(s) service(s)", datesServiceIds.size());
+		if (datesServiceIds.size() == 0) {
+			return new TreeMap<Long, SortedSet<Integer>>();
+		}
+		// 2nd read schedule file once
+		final StopScheduleFile scheduleFile = readScheduleFile(stopId);
+		if (scheduleFile == null) {
+			return new TreeMap<Long, SortedSet<Integer>>();
+		}
+		return findScheduleList(tripId, scheduleFile, days, datesServiceIds);
+	}
+
+	/**
+	 * The days of the schedule from now until the same time tomorrow.
+	 */
+	private static class ScheduleDays {
+
+		/**
+		 * Yesterday, today & tomorrow (yyyyMMdd).
+		 */
+		private final String[] dates;
+		/**
+		 * The departures (HHMMSS) of each date have to be strictly after this time.
+		 */
+		private final int[] afterTimes;
+		/**
+		 * The departures (HHMMSS) of each date have to be before or at this time.
+		 */
+		private final int[] untilTimes;
+
+		public ScheduleDays(Calendar now) {
+			Calendar yesterday = (Calendar) now.clone();
+			yesterday.add(Calendar.DATE, -1);
+			Calendar tomorrow = (Calendar) now.clone();
+			tomorrow.add(Calendar.DATE, +1);
+			final int timeNow = Integer.parseInt(TIME_FORMAT.format(now.getTime()));
+			this.dates = new String[] { DATE_FORMAT.format(yesterday.getTime()), DATE_FORMAT.format(now.getTime()),
+					DATE_FORMAT.format(tomorrow.getTime()) };
+			this.afterTimes = new int[] { timeNow + 240000, timeNow, 0 };
+			this.untilTimes = new int[] { Integer.MAX_VALUE, Integer.MAX_VALUE, timeNow };
+		}
+	}
+
+	/**
+	 * Find the departures of multiple days in the stop schedule file (already read).
+	 * @param tripId the trip ID or null for all the trips of the stop
+	 * @param datesServiceIds the service IDs of each date
+	 * @return the trip IDs of each departure timestamp (sorted)
+	 */
+	private SortedMap<Long, SortedSet<Integer>> findScheduleList(Integer tripId, StopScheduleFile scheduleFile, ScheduleDays days,
+			Map<String, Set<String>> datesServiceIds) {
+		MyLog.v(TAG, "findScheduleList(%s,%s)", tripId, scheduleFile.getStopId());
+		SortedMap<Long, SortedSet<Integer>> result = new TreeMap<Long, SortedSet<Integer>>();
+		final String[] dates = days.dates;
+		final int[] afterTimes = days.afterTimes;
+		final int[] untilTimes = days.untilTimes;
+		for (int d = 0; d < dates.length; d++) {
+			final Set<String> dateServiceIds = datesServiceIds.get(dates[d]);
+			if (dateServiceIds == null) {
+				continue; // no service this day
+			}
+			for (String serviceId : dateServiceIds) {
+				final int serviceIdx = scheduleFile.getServiceIdx(serviceId);
+				if (serviceIdx < 0) {
+					continue; // no schedule for this service
+				}
+				if (tripId != null) {
+					final int group = scheduleFile.findGroup(serviceIdx, tripId);
+					if (group < 0) {
+						continue; // no schedule for this trip
+					}
+					addDepartures(scheduleFile, group, dates[d], afterTimes[d], untilTimes[d], result);
+				} else {
+					for (int group = 0; group < scheduleFile.getGroupCount(); group++) {
+						if (scheduleFile.getGroupServiceIdx(group) == serviceIdx) {
+							addDepartures(scheduleFile, group, dates[d], afterTimes[d], untilTimes[d], result);
 						}
-					} while (cursor.moveToNext());
+					}
 				}
 			}
-		} catch (Throwable t) {
-			MyLog.w(TAG, t, "Error!");
-		} finally {
-			if (cursor != null) {
-				cursor.close();
+		}
+		return result;
+	}
+
+	/**
+	 * Add the departures of the group (service, trip) after and until the times (HHMMSS) of the date to the result.
+	 */
+	private void addDepartures(StopScheduleFile scheduleFile, int group, String date, int afterTime, int untilTime,
+			SortedMap<Long, SortedSet<Integer>> result) {
+		final int tripId = scheduleFile.getGroupTripId(group);
+		final int end = scheduleFile.getGroupEnd(group);
+		for (int i = scheduleFile.findFirstDepartureAfter(group, afterTime); i < end; i++) {
+			final int departure = scheduleFile.getDeparture(i);
+			if (departure > untilTime) {
+				break; // departures are sorted
+			}
+			final Long timestamp = convertToTimestamp(departure, date);
+			if (timestamp != null) {
+				SortedSet<Integer> tripIds = result.get(timestamp);
+				if (tripIds == null) {
+					tripIds = new TreeSet<Integer>();
+					result.put(timestamp, tripIds);
+				}
+				tripIds.add(tripId);
 			}
 		}
-		// MyLog.d(TAG, "findScheduleList() > found %s service(s)", serviceIds.size());
-		// read file
-		BufferedReader br = null;
-		String line = null;
-		String fileName = String.format(RAW_FILE_FORMAT, stopId);
-		try {
-			br = new BufferedReader(new InputStreamReader(getContext().getResources().openRawResource(
-					getContext().getResources().getIdentifier(fileName, "raw", getContext().getPackageName())), "UTF8"), 8192);
-			while ((line = br.readLine()) != null) {
-				// db.execSQL(String.format(sqlInsert, line));
+	}
+
+	/**
+	 * @return the service IDs of each date (yyyyMMdd) from the in-memory calendar
+	 */
+	private Map<String, Set<String>> findServices(String[] dates) {
+		final ServiceDateCalendar calendar = getServiceDateCalendar();
+		if (calendar == null) {
+			return new HashMap<String, Set<String>>();
+		}
+		return calendar.getServiceIds(dates);
+	}
+
+	private ServiceDateCalendar getServiceDateCalendar() {
+		final StmBusScheduleDbHelper dbHelper = getDBHelper(getContext()); // reset calendar if DB version changed
+		synchronized (StmBusScheduleProvider.class) {
+			if (serviceDateCalendar == null) {
 				try {
-					String[] lineItems = line.split(",");
-					if (lineItems.length != 4) {
-						MyLog.w(TAG, "Cannot parse schedule '%s'!", line);
-						continue;
-					}
-					final String lineServiceId = lineItems[0].substring(1, lineItems[0].length() - 1);
-					if (!serviceIds.contains(lineServiceId)) {
-						// MyLog.d(TAG, "Wrong service id '%s' while looking for service ids '%s'!", lineServiceId, serviceIds);
-						continue;
-					}
-					// MyLog.d(TAG, "GOOD service id '%s' while looking for service ids '%s'!", lineServiceId, serviceIds);
-					final int lineTripId = Integer.parseInt(lineItems[1]);
-					if (tripId != lineTripId) { // TODO LATER other trip ID schedule maybe useful in cache ???
-						// MyLog.d(TAG, "Wrong trip id '%s' while looking for trip id '%s'!", lineTripId, tripId);
-						continue;
-					}
-					final int lineStopId = Integer.parseInt(lineItems[2]);
-					if (stopId != lineStopId) {
-						MyLog.w(TAG, "Wrong stop id '%s' while looking for stop id '%s'!", lineStopId, stopId);
-						continue;
-					}
-					final int lineDeparture = Integer.parseInt(lineItems[3]);
-					if (lineDeparture > timeI) {
-						result.add(convertToTimestamp(lineDeparture, dateS));
-						// } else {
-						// MyLog.d(TAG, "Too soon '%s' (after:%s)!", lineDeparture, timeI);
-					}
-				} catch (Exception e) {
-					MyLog.w(TAG, e, "Cannot parse schedule '%s' (fileName: %s)!", line, fileName);
+					serviceDateCalendar = ServiceDateCalendar.load(dbHelper.getReadableDatabase(), StmBusScheduleDbHelper.T_SERVICE_DATES);
+				} catch (Throwable t) {
+					MyLog.w(TAG, t, "Error!");
 				}
 			}
-			// }
+			return serviceDateCalendar;
+		}
+	}
+
+	/**
+	 * @return the schedule file of the stop or null
+	 */
+	private StopScheduleFile readScheduleFile(int stopId) {
+		final String fileName = String.format(RAW_FILE_FORMAT, stopId);
+		InputStream is = null;
+		try {
+			final int fileId = getContext().getResources().getIdentifier(fileName, "raw", getContext().getPackageName());
+			if (fileId == 0) {
+				MyLog.d(TAG, "No schedule file '%s'!", fileName);
+				return null;
+			}
+			is = new BufferedInputStream(getContext().getResources().openRawResource(fileId), 8192);
+			final StopScheduleFile scheduleFile = StopScheduleFile.read(is);
+			if (scheduleFile.getStopId() != stopId) {
+				MyLog.w(TAG, "Wrong stop id '%s' while looking for stop id '%s'!", scheduleFile.getStopId(), stopId);
+				return null;
+			}
+			return scheduleFile;
 		} catch (Exception e) {
-			MyLog.w(TAG, e, "ERROR while reading stop time from file! (fileName: %s, line: %s)", fileName, line);
+			MyLog.w(TAG, e, "ERROR while reading stop time from file! (fileName: %s)", fileName);
+			return null;
 		} finally {
 			try {
-				if (br != null) {
-					br.close();
+				if (is != null) {
+					is.close();
 				}
 			} catch (Exception e) {
 				MyLog.w(TAG, "ERROR while closing the input stream!", e);
 			}
 		}
-		return result;
 	}
 
 	public static final SimpleDateFormat TO_TIMESTAMP_FORMAT = new SimpleDateFormat("yyyyMMdd" + "HHmmss");
@@ -0,0 +1,229 @@
+package org.montrealtransit.android.schedule.stmbus;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Binary indexed schedule of a single stop (generated at build time from the CSV schedule files, see tools/).
+ * <p>
+ * Format (big-endian):
+ *
+ * <pre>
+ * int   MAGIC
+ * byte  VERSION
+ * int   stop ID
+ * byte  service count, followed by the service IDs (modified UTF-8, sorted)
+ * short group count, followed by the groups (byte service index, int trip ID, int first departure index, short departure count) sorted by service index & trip ID
+ * int   departure count, followed by the departures (3 bytes unsigned HHMMSS) sorted ascending inside each group
+ * </pre>
+ *
+ * This class doesn't depend on Android so it can be shared with the build-time converter.
+ */
+public class StopScheduleFile {
+
+	public static final int MAGIC = 0x4D545342; // MTSB
+
+	public static final int VERSION = 1;
+
+	/**
+	 * The maximum departure value (3 bytes).
+	 */
+	public static final int MAX_DEPARTURE = 0xFFFFFF;
+
+	/**
+	 * The maximum number of services, groups and departures per group.
+	 */
+	public static final int MAX_SERVICES = 0xFF;
+	public static final int MAX_GROUPS = 0xFFFF;
+	public static final int MAX_GROUP_DEPARTURES = 0xFFFF;
+
+	private int stopId;
+	private String[] serviceIds;
+	private int[] groupServiceIdx;
+	private int[] groupTripIds;
+	private int[] groupFirstDepartures;
+	private int[] groupDepartureCounts;
+	private byte[] departures;
+
+	private StopScheduleFile() {
+	}
+
+	/**
+	 * Read the whole file. The input stream is NOT closed.
+	 */
+	public static StopScheduleFile read(InputStream is) throws IOException {
+		DataInputStream in = new DataInputStream(is);
+		if (in.readInt() != MAGIC) {
+			throw new IOException("Not a stop schedule file!");
+		}
+		final int version = in.readUnsignedByte();
+		if (version != VERSION) {
+			throw new IOException(String.format("Unsupported stop schedule file version %s!", version));
+		}
+		StopScheduleFile file = new StopScheduleFile();
+		file.stopId = in.readInt();
+		final int serviceCount = in.readUnsignedByte();
+		file.serviceIds = new String[serviceCount];
+		for (int i = 0; i < serviceCount; i++) {
+			file.serviceIds[i] = in.readUTF();
+		}
+		final int groupCount = in.readUnsignedShort();
+		file.groupServiceIdx = new int[groupCount];
+		file.groupTripIds = new int[groupCount];
+		file.groupFirstDepartures = new int[groupCount];
+		file.groupDepartureCounts = new int[groupCount];
+		for (int i = 0; i < groupCount; i++) {
+			file.groupServiceIdx[i] = in.readUnsignedByte();
+			file.groupTripIds[i] = in.readInt();
+			file.groupFirstDepartures[i] = in.readInt();
+			file.groupDepartureCounts[i] = in.readUnsignedShort();
+		}
+		final int departureCount = in.readInt();
+		file.departures = new byte[departureCount * 3];
+		in.readFully(file.departures);
+		return file;
+	}
+
+	/**
+	 * Write a file. Services must be sorted, groups must be sorted by service index & trip ID and departures must be sorted inside each group.
+	 */
+	public static void write(OutputStream os, int stopId, String[] serviceIds, int[] groupServiceIdx, int[] groupTripIds, int[] groupDepartureCounts,
+			int[] departures) throws IOException {
+		if (serviceIds.length > MAX_SERVICES) {
+			throw new IOException(String.format("Too many services (%s) for stop %s!", serviceIds.length, stopId));
+		}
+		if (groupTripIds.length > MAX_GROUPS) {
+			throw new IOException(String.format("Too many groups (%s) for stop %s!", groupTripIds.length, stopId));
+		}
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(baos);
+		out.writeInt(MAGIC);
+		out.writeByte(VERSION);
+		out.writeInt(stopId);
+		out.writeByte(serviceIds.length);
+		for (String serviceId : serviceIds) {
+			out.writeUTF(serviceId);
+		}
+		out.writeShort(groupTripIds.length);
+		int firstDeparture = 0;
+		for (int i = 0; i < groupTripIds.length; i++) {
+			if (groupDepartureCounts[i] > MAX_GROUP_DEPARTURES) {
+				throw new IOException(String.format("Too many departures (%s) for stop %s trip %s!", groupDepartureCounts[i], stopId, groupTripIds[i]));
+			}
+			out.writeByte(groupServiceIdx[i]);
+			out.writeInt(groupTripIds[i]);
+			out.writeInt(firstDeparture);
+			out.writeShort(groupDepartureCounts[i]);
+			firstDeparture += groupDepartureCounts[i];
+		}
+		if (firstDeparture != departures.length) {
+			throw new IOException(String.format("Group departure counts (%s) doesn't match departures (%s) for stop %s!", firstDeparture,
+					departures.length, stopId));
+		}
+		out.writeInt(departures.length);
+		for (int departure : departures) {
+			if (departure < 0 || departure > MAX_DEPARTURE) {
+				throw new IOException(String.format("Invalid departure %s for stop %s!", departure, stopId));
+			}
+			out.writeByte(departure >> 16);
+			out.writeByte(departure >> 8);
+			out.writeByte(departure);
+		}
+		out.flush();
+		baos.writeTo(os);
+	}
+
+	public int getStopId() {
+		return stopId;
+	}
+
+	public String[] getServiceIds() {
+		return serviceIds;
+	}
+
+	public int getGroupCount() {
+		return groupTripIds.length;
+	}
+
+	/**
+	 * @return the service index or a negative value if the service isn't in this file
+	 */
+	public int getServiceIdx(String serviceId) {
+		return Arrays.binarySearch(this.serviceIds, serviceId);
+	}
+
+	/**
+	 * @return the group index or -1 if the trip doesn't have any departure for this service
+	 */
+	public int findGroup(int serviceIdx, int tripId) {
+		int low = 0;
+		int high = this.groupTripIds.length - 1;
+		while (low <= high) {
+			final int mid = (low + high) >>> 1;
+			int cmp = this.groupServiceIdx[mid] - serviceIdx;
+			if (cmp == 0) {
+				cmp = this.groupTripIds[mid] < tripId ? -1 : (this.groupTripIds[mid] == tripId ? 0 : 1);
+			}
+			if (cmp < 0) {
+				low = mid + 1;
+			} else if (cmp > 0) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+
+	public int getGroupTripId(int group) {
+		return this.groupTripIds[group];
+	}
+
+	public int getGroupServiceIdx(int group) {
+		return this.groupServiceIdx[group];
+	}
+
+	/**
+	 * @return the first departure index of the group
+	 */
+	public int getGroupStart(int group) {
+		return this.groupFirstDepartures[group];
+	}
+
+	/**
+	 * @return the departure index following the last departure of the group
+	 */
+	public int getGroupEnd(int group) {
+		return this.groupFirstDepartures[group] + this.groupDepartureCounts[group];
+	}
+
+	/**
+	 * @return the index of the first departure of the group strictly after the time (HHMMSS) or {@link #getGroupEnd(int)} if none
+	 */
+	public int findFirstDepartureAfter(int group, int time) {
+		int low = getGroupStart(group);
+		int high = getGroupEnd(group);
+		while (low < high) {
+			final int mid = (low + high) >>> 1;
+			if (getDeparture(mid) <= time) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * @return the departure (HHMMSS)
+	 */
+	public int getDeparture(int index) {
+		final int offset = index * 3;
+		return ((this.departures[offset] & 0xFF) << 16) | ((this.departures[offset + 1] & 0xFF) << 8) | (this.departures[offset + 2] & 0xFF);
+	}
+}
@@ -0,0 +1,116 @@
+package org.montrealtransit.android.schedule.stmbus.tools;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Field;
+
+/**
+ * Build-time generator of the SQL script used to create a packaged SQLite DB (see PrebuiltDbDeployer).
+ * <p>
+ * The SQL statements are read from the static fields of the compiled DB helper so the packaged DB always matches the DB created on the device.
+ * <p>
+ * Usage: PrebuiltDbScriptGenerator &lt;raw dir&gt; &lt;output script&gt; &lt;DB helper class&gt; &lt;DB version field&gt; &lt;statement&gt;...
+ * <ul>
+ * <li><code>FIELD</code>: execute the SQL of the static field or of each item of the static array field (ex: <code>DATABASE_CREATE_T_SERVICE_DATES</code>)</li>
+ * <li><code>FIELD=file1+file2</code>: insert each line of the raw files with the SQL of the static field (ex:
+ * <code>T_SERVICE_DATES_SQL_INSERT=ca_mtl_stm_bus_service_dates</code>)</li>
+ * </ul>
+ */
+public class PrebuiltDbScriptGenerator {
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 5) {
+			System.err.println("Usage: PrebuiltDbScriptGenerator <raw dir> <output script> <DB helper class> <DB version field> <statement>...");
+			System.exit(1);
+		}
+		File rawDir = new File(args[0]);
+		File outputFile = new File(args[1]);
+		Class<?> helperClass = Class.forName(args[2]);
+		final int dbVersion = ((Number) getStaticField(helperClass, args[3])).intValue();
+		int rowCount = 0;
+		Writer writer = null;
+		try {
+			writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outputFile), "UTF8"));
+			writer.write("PRAGMA auto_vacuum=NONE;\n");
+			writer.write("BEGIN TRANSACTION;\n");
+			writer.write("CREATE TABLE IF NOT EXISTS android_metadata (locale TEXT);\n");
+			writer.write("INSERT INTO android_metadata VALUES('en_US');\n");
+			for (int i = 4; i < args.length; i++) {
+				final int equalIdx = args[i].indexOf('=');
+				if (equalIdx < 0) {
+					final Object value = getStaticField(helperClass, args[i]);
+					if (value instanceof String[]) {
+						for (String sql : (String[]) value) {
+							writeSql(writer, sql);
+						}
+					} else {
+						writeSql(writer, (String) value);
+					}
+					continue;
+				}
+				final String sqlInsert = (String) getStaticField(helperClass, args[i].substring(0, equalIdx));
+				for (String fileName : args[i].substring(equalIdx + 1).split("\\+")) {
+					rowCount += writeInserts(writer, sqlInsert, new File(rawDir, fileName));
+				}
+			}
+			writer.write("COMMIT;\n");
+			writer.write("PRAGMA user_version=" + dbVersion + ";\n");
+		} finally {
+			if (writer != null) {
+				writer.close();
+			}
+		}
+		System.out.println(String.format("Generated %s for %s version %s (%s rows).", outputFile, helperClass.getSimpleName(), dbVersion, rowCount));
+	}
+
+	private static void writeSql(Writer writer, String sql) throws IOException {
+		sql = sql.trim();
+		if (sql.endsWith(";")) {
+			sql = sql.substring(0, sql.length() - 1);
+		}
+		writer.write(sql + ";\n");
+	}
+
+	private static int writeInserts(Writer writer, String sqlInsert, File rawFile) throws IOException {
+		int rowCount = 0;
+		BufferedReader br = null;
+		try {
+			br = new BufferedReader(new InputStreamReader(new FileInputStream(rawFile), "UTF8"), 8192);
+			String line;
+			while ((line = br.readLine()) != null) {
+				if (line.length() == 0) {
+					continue;
+				}
+				writer.write(String.format(sqlInsert, line));
+				writer.write(";\n");
+				rowCount++;
+			}
+		} finally {
+			if (br != null) {
+				br.close();
+			}
+		}
+		return rowCount;
+	}
+
+	private static Object getStaticField(Class<?> helperClass, String fieldName) throws Exception {
+		Class<?> clazz = helperClass;
+		while (clazz != null) {
+			try {
+				Field field = clazz.getDeclaredField(fieldName);
+				field.setAccessible(true);
+				return field.get(null);
+			} catch (NoSuchFieldException nsfe) {
+				clazz = clazz.getSuperclass(); // maybe declared by the parent class
+			}
+		}
+		throw new NoSuchFieldException(String.format("Field '%s' not found in %s!", fieldName, helperClass));
+	}
+}
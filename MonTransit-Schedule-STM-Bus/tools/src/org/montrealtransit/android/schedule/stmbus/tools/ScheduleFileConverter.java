@@ -0,0 +1,146 @@
+package org.montrealtransit.android.schedule.stmbus.tools;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.montrealtransit.android.schedule.stmbus.StopScheduleFile;
+
+/**
+ * Build-time converter from the CSV stop schedule files ('service_id',trip_id,stop_id,departure) to the binary {@link StopScheduleFile} format.
+ * <p>
+ * Usage: ScheduleFileConverter &lt;CSV input dir&gt; &lt;binary output dir&gt;
+ * <p>
+ * Up-to-date output files are skipped.
+ */
+public class ScheduleFileConverter {
+
+	private static final String FILE_PREFIX = "ca_mtl_stm_bus_schedules_stop_";
+
+	public static void main(String[] args) throws IOException {
+		if (args.length != 2) {
+			System.err.println("Usage: ScheduleFileConverter <CSV input dir> <binary output dir>");
+			System.exit(1);
+		}
+		File inputDir = new File(args[0]);
+		File outputDir = new File(args[1]);
+		File[] inputFiles = inputDir.listFiles();
+		if (inputFiles == null) {
+			throw new IOException(String.format("Input directory '%s' not found!", inputDir));
+		}
+		if (!outputDir.exists() && !outputDir.mkdirs()) {
+			throw new IOException(String.format("Can't create output directory '%s'!", outputDir));
+		}
+		long start = System.currentTimeMillis();
+		int converted = 0;
+		int skipped = 0;
+		long inputSize = 0;
+		long outputSize = 0;
+		for (File inputFile : inputFiles) {
+			if (!inputFile.isFile() || !inputFile.getName().startsWith(FILE_PREFIX)) {
+				continue;
+			}
+			File outputFile = new File(outputDir, inputFile.getName());
+			if (outputFile.exists() && outputFile.lastModified() >= inputFile.lastModified()) {
+				skipped++;
+				continue;
+			}
+			final int stopId = Integer.parseInt(inputFile.getName().substring(FILE_PREFIX.length()));
+			convert(inputFile, outputFile, stopId);
+			converted++;
+			inputSize += inputFile.length();
+			outputSize += outputFile.length();
+		}
+		System.out.println(String.format("Converted %s schedule file(s) (%s bytes > %s bytes), %s up-to-date, in %s ms.", converted, inputSize, outputSize,
+				skipped, System.currentTimeMillis() - start));
+	}
+
+	private static void convert(File inputFile, File outputFile, int stopId) throws IOException {
+		// service ID > trip ID > departures
+		Map<String, Map<Integer, List<Integer>>> schedules = new TreeMap<String, Map<Integer, List<Integer>>>();
+		BufferedReader br = null;
+		String line = null;
+		try {
+			br = new BufferedReader(new InputStreamReader(new FileInputStream(inputFile), "UTF8"), 8192);
+			while ((line = br.readLine()) != null) {
+				if (line.length() == 0) {
+					continue;
+				}
+				String[] lineItems = line.split(",");
+				if (lineItems.length != 4) {
+					throw new IOException(String.format("Cannot parse schedule '%s' (file: %s)!", line, inputFile));
+				}
+				final String serviceId = lineItems[0].substring(1, lineItems[0].length() - 1);
+				final int tripId = Integer.parseInt(lineItems[1]);
+				final int lineStopId = Integer.parseInt(lineItems[2]);
+				if (lineStopId != stopId) {
+					throw new IOException(String.format("Wrong stop id '%s' in schedule '%s' (file: %s)!", lineStopId, line, inputFile));
+				}
+				final int departure = Integer.parseInt(lineItems[3]);
+				Map<Integer, List<Integer>> trips = schedules.get(serviceId);
+				if (trips == null) {
+					trips = new TreeMap<Integer, List<Integer>>();
+					schedules.put(serviceId, trips);
+				}
+				List<Integer> departures = trips.get(tripId);
+				if (departures == null) {
+					departures = new ArrayList<Integer>();
+					trips.put(tripId, departures);
+				}
+				departures.add(departure);
+			}
+		} finally {
+			if (br != null) {
+				br.close();
+			}
+		}
+		// TreeMap/TreeSet keep the service IDs and trip IDs sorted
+		String[] serviceIds = new TreeSet<String>(schedules.keySet()).toArray(new String[schedules.size()]);
+		List<Integer> groupServiceIdx = new ArrayList<Integer>();
+		List<Integer> groupTripIds = new ArrayList<Integer>();
+		List<Integer> groupDepartureCounts = new ArrayList<Integer>();
+		List<Integer> allDepartures = new ArrayList<Integer>();
+		for (int serviceIdx = 0; serviceIdx < serviceIds.length; serviceIdx++) {
+			for (Map.Entry<Integer, List<Integer>> trip : schedules.get(serviceIds[serviceIdx]).entrySet()) {
+				List<Integer> departures = trip.getValue();
+				Collections.sort(departures);
+				groupServiceIdx.add(serviceIdx);
+				groupTripIds.add(trip.getKey());
+				groupDepartureCounts.add(departures.size());
+				allDepartures.addAll(departures);
+			}
+		}
+		OutputStream os = null;
+		try {
+			os = new BufferedOutputStream(new FileOutputStream(outputFile));
+			StopScheduleFile.write(os, stopId, serviceIds, toArray(groupServiceIdx), toArray(groupTripIds), toArray(groupDepartureCounts),
+					toArray(allDepartures));
+		} catch (IOException ioe) {
+			outputFile.delete();
+			throw ioe;
+		} finally {
+			if (os != null) {
+				os.close();
+			}
+		}
+	}
+
+	private static int[] toArray(List<Integer> list) {
+		int[] array = new int[list.size()];
+		for (int i = 0; i < array.length; i++) {
+			array[i] = list.get(i);
+		}
+		return array;
+	}
+}
@@ -0,0 +1,88 @@
+package org.montrealtransit.android;
+
+/**
+ * Circuit breaker of 1 network source.
+ * <p>
+ * After too many failures in a row, the breaker opens and the source is skipped. Once the cool-down is over, 1 probe request at a time is
+ * allowed: the breaker closes on success and stays open for another cool-down on failure.
+ */
+public class CircuitBreaker {
+
+	public static final String TAG = CircuitBreaker.class.getSimpleName();
+
+	private final String name;
+
+	private final int failureThreshold;
+
+	private final long coolDownInMs;
+
+	private int failureCount = 0;
+
+	/**
+	 * The time of the latest failure while open or -1 if closed.
+	 */
+	private long openedAtInMs = -1;
+
+	private boolean probing = false;
+
+	/**
+	 * @param name the source name
+	 * @param failureThreshold the number of failures in a row opening the breaker
+	 * @param coolDownInMs the time before probing the source again
+	 */
+	public CircuitBreaker(String name, int failureThreshold, long coolDownInMs) {
+		this.name = name;
+		this.failureThreshold = failureThreshold;
+		this.coolDownInMs = coolDownInMs;
+	}
+
+	/**
+	 * @return true if the source can be used
+	 */
+	public synchronized boolean isClosed() {
+		return this.openedAtInMs < 0;
+	}
+
+	/**
+	 * @return true if the caller should probe the source (then call {@link #endProbe()})
+	 */
+	public synchronized boolean tryProbe() {
+		if (isClosed() || this.probing || System.currentTimeMillis() - this.openedAtInMs < this.coolDownInMs) {
+			return false;
+		}
+		this.probing = true;
+		return true;
+	}
+
+	public synchronized void endProbe() {
+		this.probing = false;
+	}
+
+	public synchronized void onSuccess() {
+		if (!isClosed()) {
+			MyLog.d(TAG, "%s: closed after %s failure(s).", this.name, this.failureCount);
+		}
+		this.failureCount = 0;
+		this.openedAtInMs = -1;
+	}
+
+	public synchronized void onFailure() {
+		this.failureCount++;
+		if (!isClosed()) {
+			this.openedAtInMs = System.currentTimeMillis(); // probe failed, another cool-down
+			MyLog.d(TAG, "%s: still open after %s failure(s).", this.name, this.failureCount);
+		} else if (this.failureCount >= this.failureThreshold) {
+			this.openedAtInMs = System.currentTimeMillis();
+			MyLog.d(TAG, "%s: opened after %s failure(s).", this.name, this.failureCount);
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		return new StringBuilder().append(CircuitBreaker.class.getSimpleName()).append(":[") //
+				.append("name:").append(this.name).append(',') //
+				.append("closed:").append(isClosed()).append(',') //
+				.append("failures:").append(this.failureCount) //
+				.append(']').toString();
+	}
+}
@@ -0,0 +1,380 @@
+package org.montrealtransit.android;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import android.os.Build;
+
+/**
+ * The HTTP connections of all the network readers (Bixi, stm.info live schedule & service status).
+ * <p>
+ * Every connection has connect & read timeouts and asks for a gzip response. The ETag & Last-Modified of the responses are kept in memory once
+ * processed to revalidate the next requests of the same URL (304 Not Modified). The responses are read with a small pool of byte buffers and the latency &
+ * bytes of each host are logged. The base URL of each source can be replaced (local stub server).
+ */
+public class HttpUtils {
+
+	public static final String TAG = HttpUtils.class.getSimpleName();
+
+	/**
+	 * The maximum time to open the connection.
+	 */
+	public static final int CONNECT_TIMEOUT_IN_MS = 10 * 1000; // 10 seconds
+
+	/**
+	 * The maximum time waiting for data once connected.
+	 */
+	public static final int READ_TIMEOUT_IN_MS = 15 * 1000; // 15 seconds
+
+	/**
+	 * The 1st retry delay (doubled after each retry).
+	 */
+	private static final long BACKOFF_INITIAL_DELAY_IN_MS = 1000; // 1 second
+
+	/**
+	 * The maximum retry delay.
+	 */
+	private static final long BACKOFF_MAX_DELAY_IN_MS = 30 * 1000; // 30 seconds
+
+	private static final int BUFFER_SIZE = 8192;
+
+	/**
+	 * The maximum number of byte buffers kept for the next responses.
+	 */
+	private static final int MAX_POOLED_BUFFERS = 4;
+
+	private static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+	private static final String HEADER_CONTENT_ENCODING = "Content-Encoding";
+	private static final String HEADER_ETAG = "ETag";
+	private static final String HEADER_LAST_MODIFIED = "Last-Modified";
+	private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+	private static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+	private static final String GZIP = "gzip";
+
+	private static final List<byte[]> bufferPool = new ArrayList<byte[]>();
+
+	/**
+	 * The validators (ETag & Last-Modified) of the latest processed response of each URL (with the replaced base URL).
+	 */
+	private static final Map<String, String[]> validators = new HashMap<String, String[]>();
+
+	private static final Map<String, HostMetrics> metrics = new HashMap<String, HostMetrics>();
+
+	/**
+	 * The replaced base URLs (original base URL => new base URL).
+	 */
+	private static final Map<String, String> baseUrls = new HashMap<String, String>();
+
+	static {
+		if (Utils.isVersionOlderThan(Build.VERSION_CODES.FROYO)) {
+			// HttpURLConnection connection pool is broken before Froyo (reading a connection closed by the server)
+			System.setProperty("http.keepAlive", "false");
+		}
+	}
+
+	/**
+	 * Replace the base URL of a source (ex: local stub server).
+	 * @param baseUrl the original base URL (ex: "http://i-www.stm.info/")
+	 * @param newBaseUrl the new base URL or null to use the original base URL
+	 */
+	public static void setBaseUrl(String baseUrl, String newBaseUrl) {
+		synchronized (baseUrls) {
+			if (newBaseUrl == null) {
+				baseUrls.remove(baseUrl);
+			} else {
+				baseUrls.put(baseUrl, newBaseUrl);
+			}
+		}
+	}
+
+	/**
+	 * @return the URL with the replaced base URL (if any)
+	 */
+	public static String getUrl(String url) {
+		synchronized (baseUrls) {
+			for (Map.Entry<String, String> baseUrl : baseUrls.entrySet()) {
+				if (url.startsWith(baseUrl.getKey())) {
+					return baseUrl.getValue() + url.substring(baseUrl.getKey().length());
+				}
+			}
+		}
+		return url;
+	}
+
+	/**
+	 * Open a new HTTP connection (not connected yet).
+	 * @param revalidate true to send the validators of the previous response of this URL (304 Not Modified if not changed)
+	 */
+	public static HttpURLConnection openConnection(String url, boolean revalidate) throws IOException {
+		return openConnection(url, revalidate, CONNECT_TIMEOUT_IN_MS, READ_TIMEOUT_IN_MS);
+	}
+
+	/**
+	 * Open a new HTTP connection (not connected yet) with custom timeouts (latency budget).
+	 * @param revalidate true to send the validators of the previous response of this URL (304 Not Modified if not changed)
+	 */
+	public static HttpURLConnection openConnection(String url, boolean revalidate, int connectTimeoutInMs, int readTimeoutInMs) throws IOException {
+		final String fullUrl = getUrl(url);
+		HttpURLConnection urlc = (HttpURLConnection) new URL(fullUrl).openConnection();
+		urlc.setConnectTimeout(connectTimeoutInMs);
+		urlc.setReadTimeout(readTimeoutInMs);
+		urlc.addRequestProperty(HEADER_ACCEPT_ENCODING, GZIP);
+		if (revalidate) {
+			String[] urlValidators;
+			synchronized (validators) {
+				urlValidators = validators.get(fullUrl);
+			}
+			if (urlValidators != null) {
+				if (urlValidators[0] != null) {
+					urlc.addRequestProperty(HEADER_IF_NONE_MATCH, urlValidators[0]);
+				}
+				if (urlValidators[1] != null) {
+					urlc.addRequestProperty(HEADER_IF_MODIFIED_SINCE, urlValidators[1]);
+				}
+			}
+		}
+		return urlc;
+	}
+
+	/**
+	 * Forget the validators of the previous response of this URL (the next request will return the full response).
+	 */
+	public static void forgetValidators(String url) {
+		synchronized (validators) {
+			validators.remove(getUrl(url));
+		}
+	}
+
+	/**
+	 * Save the validators of the response once its body is processed (the next request of this URL will return 304 Not Modified if not changed).
+	 * @param url the requested URL (see {@link #openConnection(String, boolean)})
+	 */
+	public static void commitValidators(HttpURLConnection urlc, String url) {
+		final String etag = urlc.getHeaderField(HEADER_ETAG);
+		final String lastModified = urlc.getHeaderField(HEADER_LAST_MODIFIED);
+		synchronized (validators) {
+			if (etag == null && lastModified == null) {
+				validators.remove(getUrl(url));
+			} else {
+				validators.put(getUrl(url), new String[] { etag, lastModified });
+			}
+		}
+	}
+
+	/**
+	 * Connect and read the response code (latency saved).
+	 * @return the HTTP response code
+	 */
+	public static int getResponseCode(HttpURLConnection urlc) throws IOException {
+		final HostMetrics hostMetrics = getHostMetrics(urlc.getURL().getHost());
+		final long startInMs = System.currentTimeMillis();
+		int responseCode;
+		try {
+			responseCode = urlc.getResponseCode();
+		} catch (IOException ioe) {
+			hostMetrics.onError(System.currentTimeMillis() - startInMs);
+			throw ioe;
+		}
+		hostMetrics.onResponse(responseCode, System.currentTimeMillis() - startInMs);
+		return responseCode;
+	}
+
+	/**
+	 * @return the response body (uncompressed, bytes counted when closed)
+	 */
+	public static InputStream getInputStream(HttpURLConnection urlc) throws IOException {
+		InputStream is = new CountingInputStream(urlc.getInputStream(), getHostMetrics(urlc.getURL().getHost()));
+		if (GZIP.equalsIgnoreCase(urlc.getHeaderField(HEADER_CONTENT_ENCODING))) {
+			is = new GZIPInputStream(is, BUFFER_SIZE);
+		}
+		return is;
+	}
+
+	/**
+	 * Read the whole response body (the connection can be reused).
+	 * @return the response body (UTF-8)
+	 */
+	public static String readString(HttpURLConnection urlc) throws IOException {
+		final byte[] buffer = obtainBuffer();
+		InputStream is = null;
+		try {
+			is = getInputStream(urlc);
+			ByteArrayOutputStream baos = new ByteArrayOutputStream(BUFFER_SIZE);
+			int read;
+			while ((read = is.read(buffer)) != -1) {
+				baos.write(buffer, 0, read);
+			}
+			return baos.toString("UTF-8");
+		} finally {
+			releaseBuffer(buffer);
+			if (is != null) {
+				is.close();
+			}
+		}
+	}
+
+	/**
+	 * @return the delay before the next try (exponential backoff)
+	 */
+	public static long getBackoffDelayInMs(int tried) {
+		return Math.min(BACKOFF_INITIAL_DELAY_IN_MS << Math.min(tried, 16), BACKOFF_MAX_DELAY_IN_MS);
+	}
+
+	/**
+	 * Wait before the next try (exponential backoff).
+	 * @return false if interrupted (don't try again)
+	 */
+	public static boolean waitBeforeRetry(int tried) {
+		final long delayInMs = getBackoffDelayInMs(tried);
+		MyLog.d(TAG, "Waiting %s ms before retry #%s...", delayInMs, tried + 1);
+		try {
+			Thread.sleep(delayInMs);
+			return true;
+		} catch (InterruptedException ie) {
+			MyLog.d(TAG, "Interrupted while waiting before retry!");
+			Thread.currentThread().interrupt(); // restore the interrupt status
+			return false;
+		}
+	}
+
+	private static byte[] obtainBuffer() {
+		synchronized (bufferPool) {
+			if (bufferPool.size() > 0) {
+				return bufferPool.remove(bufferPool.size() - 1);
+			}
+		}
+		return new byte[BUFFER_SIZE];
+	}
+
+	private static void releaseBuffer(byte[] buffer) {
+		synchronized (bufferPool) {
+			if (bufferPool.size() < MAX_POOLED_BUFFERS) {
+				bufferPool.add(buffer);
+			}
+		}
+	}
+
+	private static HostMetrics getHostMetrics(String host) {
+		synchronized (metrics) {
+			HostMetrics hostMetrics = metrics.get(host);
+			if (hostMetrics == null) {
+				hostMetrics = new HostMetrics(host);
+				metrics.put(host, hostMetrics);
+			}
+			return hostMetrics;
+		}
+	}
+
+	/**
+	 * @return the metrics of all the hosts
+	 */
+	public static String getMetrics() {
+		synchronized (metrics) {
+			return metrics.values().toString();
+		}
+	}
+
+	/**
+	 * The requests, errors, latency (response code) & bytes (response body) of 1 host.
+	 */
+	private static class HostMetrics {
+
+		private final String host;
+
+		private int requestCount = 0;
+
+		private int errorCount = 0;
+
+		private int notModifiedCount = 0;
+
+		private long totalLatencyInMs = 0;
+
+		private long totalBytes = 0;
+
+		public HostMetrics(String host) {
+			this.host = host;
+		}
+
+		public synchronized void onResponse(int responseCode, long latencyInMs) {
+			this.requestCount++;
+			this.totalLatencyInMs += latencyInMs;
+			if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+				this.notModifiedCount++;
+			} else if (responseCode != HttpURLConnection.HTTP_OK) {
+				this.errorCount++;
+			}
+			MyLog.d(TAG, "%s: HTTP %s in %s ms (%s)", this.host, responseCode, latencyInMs, this);
+		}
+
+		public synchronized void onError(long latencyInMs) {
+			this.requestCount++;
+			this.errorCount++;
+			this.totalLatencyInMs += latencyInMs;
+			MyLog.d(TAG, "%s: no response in %s ms (%s)", this.host, latencyInMs, this);
+		}
+
+		public synchronized void onRead(long bytes) {
+			this.totalBytes += bytes;
+		}
+
+		@Override
+		public synchronized String toString() {
+			return new StringBuilder().append(this.host).append(":[") //
+					.append("requests:").append(this.requestCount).append(',') //
+					.append("errors:").append(this.errorCount).append(',') //
+					.append("notModified:").append(this.notModifiedCount).append(',') //
+					.append("avgLatencyInMs:").append(this.requestCount == 0 ? 0 : this.totalLatencyInMs / this.requestCount).append(',') //
+					.append("bytes:").append(this.totalBytes) //
+					.append(']').toString();
+		}
+	}
+
+	/**
+	 * Count the bytes read from the network (before decompression).
+	 */
+	private static class CountingInputStream extends FilterInputStream {
+
+		private final HostMetrics hostMetrics;
+
+		private long count = 0;
+
+		public CountingInputStream(InputStream in, HostMetrics hostMetrics) {
+			super(in);
+			this.hostMetrics = hostMetrics;
+		}
+
+		@Override
+		public int read() throws IOException {
+			final int result = super.read();
+			if (result != -1) {
+				this.count++;
+			}
+			return result;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			final int result = super.read(b, off, len);
+			if (result > 0) {
+				this.count += result;
+			}
+			return result;
+		}
+
+		@Override
+		public void close() throws IOException {
+			this.hostMetrics.onRead(this.count);
+			this.count = 0;
+			super.close();
+		}
+	}
+}
@@ -526,6 +526,21 @@ public class LocationUtils {
 		return distances[0]; // return the closest
 	}
 
+	/**
+	 * @param searchLocation the location used to find the POIs
+	 * @param newLocation the new location
+	 * @param maxDistanceInMeters the maximum distance from the search location
+	 * @return true if the new location is still in the area covered by the minimum around search (and closer than the maximum distance)
+	 */
+	public static boolean isInAroundCoveredArea(Location searchLocation, Location newLocation, float maxDistanceInMeters) {
+		if (searchLocation == null || newLocation == null) {
+			return false;
+		}
+		final float coveredDistance = Math.min(maxDistanceInMeters,
+				getAroundCoveredDistance(searchLocation.getLatitude(), searchLocation.getLongitude(), MIN_AROUND_DIFF));
+		return distanceTo(searchLocation.getLatitude(), searchLocation.getLongitude(), newLocation.getLatitude(), newLocation.getLongitude()) < coveredDistance;
+	}
+
 	public static Area getArea(double lat, double lng, double aroundDiff) {
 		// MyLog.v(TAG, "getArea(%s, %s, %s)", lat, lng, aroundDiff);
 		// latitude
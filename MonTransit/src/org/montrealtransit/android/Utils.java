@@ -100,6 +100,10 @@ public class Utils {
 	 * How long do we prefer accuracy over time? (in milliseconds)
 	 */
 	public static final long CLOSEST_POI_LIST_PREFER_ACCURACY_OVER_TIME = 2 * 60 * 1000; // 2 minutes
+	/**
+	 * How far can the user move before a POIs list should be searched again? Smaller moves only re-order the current list. (in meters)
+	 */
+	public static final float CLOSEST_POI_LIST_INCREMENTAL_DISTANCE = 500; // 500 meters
 	/**
 	 * Vertical offset for top toast.
 	 */
@@ -25,6 +25,7 @@ import org.montrealtransit.android.provider.DataManager;
 import org.montrealtransit.android.provider.DataStore.Fav;
 import org.montrealtransit.android.services.BixiDataReader;
 import org.montrealtransit.android.services.BixiDataReader.BixiDataReaderListener;
+import org.montrealtransit.android.services.BixiRefreshScheduler;
 import org.montrealtransit.android.services.ClosestBikeStationsFinderTask;
 import org.montrealtransit.android.services.ClosestBikeStationsFinderTask.ClosestBikeStationsFinderListener;
 
@@ -85,10 +86,6 @@ public class BikeStationInfo extends Activity implements BixiDataReaderListener,
 	 * The task used to load the closest bike stations.
 	 */
 	private ClosestBikeStationsFinderTask closestBikeStationsTask;
-	/**
-	 * The task used to load the new bike station info.
-	 */
-	private BixiDataReader bixiDataReaderTask;
 	/**
 	 * The last message from the {@link BixiDataReader}.
 	 */
@@ -229,6 +226,7 @@ public class BikeStationInfo extends Activity implements BixiDataReaderListener,
 		AnalyticsUtils.trackPageView(this, TRACKER_TAG);
 		AdsUtils.setupAd(this);
 		AdsUtils.resumeAd(this);
+		BixiRefreshScheduler.onVisible(this, this);
 		setBikeStationFromIntent(getIntent(), null);
 		setIntent(null); // set intent as processed
 	}
@@ -237,6 +235,7 @@ public class BikeStationInfo extends Activity implements BixiDataReaderListener,
 	protected void onPause() {
 		MyLog.v(TAG, "onResume()");
 		this.paused = true;
+		BixiRefreshScheduler.onHidden(this);
 		this.locationUpdatesEnabled = LocationUtils.disableLocationUpdatesIfNecessary(this, this, this.locationUpdatesEnabled);
 		if (this.compassUpdatesEnabled) {
 			SensorUtils.unregisterSensorListener(this, this);
@@ -391,21 +390,10 @@ public class BikeStationInfo extends Activity implements BixiDataReaderListener,
 	 */
 	public void refreshStatus(View v) {
 		MyLog.v(TAG, "refreshStatus()");
-		// IF the task is running DO
-		if (this.bixiDataReaderTask != null && this.bixiDataReaderTask.getStatus().equals(AsyncTask.Status.RUNNING)) {
-			// do NOT cancel, useful
-			// stopping the task
-			// this.task.cancel(true);
-			// this.task = null;
-			return;
-		} // else
 		if (this.bikeStation != null) {
 			setStatusAsLoading();
-			// check if it's not too soon
-			int waitFor = getLastUpdateTime() + BikeUtils.CACHE_TOO_FRESH_IN_SEC - Utils.currentTimeSec();
-			// load new bike station data
-			this.bixiDataReaderTask = new BixiDataReader(this, this, waitFor > 0 ? waitFor : 0);
-			this.bixiDataReaderTask.execute(this.bikeStation.getTerminalName());
+			// load new bike station data in the background (delayed if too soon, the status is refreshed when done)
+			BixiRefreshScheduler.requestRefresh(this);
 		}
 	}
 
@@ -418,19 +406,41 @@ public class BikeStationInfo extends Activity implements BixiDataReaderListener,
 
 	@Override
 	public void onBixiDataLoaded(List<BikeStation> newBikeStations, boolean isNew) {
-		MyLog.v(TAG, "onBixiDataLoaded(%s,%s)", Utils.getCollectionSize(newBikeStations), isNew);
-		// IF the bike station was returned as expected DO
-		if (Utils.getCollectionSize(newBikeStations) == 1) {
-			this.adapter.setLastSuccessfulRefresh(UserPreferences.getPrefLcl(this, UserPreferences.PREFS_LCL_BIXI_LAST_UPDATE, -1));
-			this.bikeStation = new ABikeStation(newBikeStations.get(0));
-			updateDistancesWithNewLocation(getLocation());
-			showNewBikeStationStatus();
-			showNewClosestBikeStationsStatus();
-			setStatusNotLoading();
-		} else {
+		MyLog.v(TAG, "onBixiDataLoaded(%s)", isNew);
+		if (this.bikeStation == null) {
+			return; // bike station not loaded yet
+		}
+		if (!TextUtils.isEmpty(this.lastBixiDataMessage)) {
 			setStatusNotLoading();
 			setStatusError();
+			return;
 		}
+		// read the refreshed bike station from the database
+		new AsyncTask<String, Void, BikeStation>() {
+
+			@Override
+			protected BikeStation doInBackground(String... params) {
+				return BixiManager.findBikeStation(getContentResolver(), params[0]);
+			}
+
+			@Override
+			protected void onPostExecute(BikeStation result) {
+				// IF the bike station was found as expected DO
+				if (result != null && BikeStationInfo.this.bikeStation != null
+						&& result.getTerminalName().equals(BikeStationInfo.this.bikeStation.getTerminalName())) {
+					BikeStationInfo.this.adapter.setLastSuccessfulRefresh(UserPreferences.getPrefLcl(BikeStationInfo.this,
+							UserPreferences.PREFS_LCL_BIXI_LAST_UPDATE, -1));
+					BikeStationInfo.this.bikeStation = new ABikeStation(result);
+					updateDistancesWithNewLocation(getLocation());
+					showNewBikeStationStatus();
+					showNewClosestBikeStationsStatus();
+					setStatusNotLoading();
+				} else {
+					setStatusNotLoading();
+					setStatusError();
+				}
+			}
+		}.execute(this.bikeStation.getTerminalName());
 	}
 
 	private void showNewClosestBikeStationsStatus() {
@@ -752,14 +762,10 @@ public class BikeStationInfo extends Activity implements BixiDataReaderListener,
 	}
 
 	/**
-	 * Show bike station status (start refreshing if necessary).
+	 * Show bike station status (the Bixi data is refreshed by the {@link BixiRefreshScheduler}).
 	 */
 	private void showBikeStationStatus() {
 		MyLog.v(TAG, "showBikeStationStatus()");
-		// compute the too old date
-		if (Utils.currentTimeSec() - BikeUtils.CACHE_TOO_OLD_IN_SEC - getLastUpdateTime() > 0) {
-			refreshStatus(null); // asynchronously start refreshing
-		}
 		showNewBikeStationStatus();
 	}
 
@@ -872,10 +878,6 @@ public class BikeStationInfo extends Activity implements BixiDataReaderListener,
 				this.adapter.setPois(null);
 			}
 		}
-		if (this.bixiDataReaderTask != null) {
-			this.bixiDataReaderTask.cancel(false);
-			this.bixiDataReaderTask = null;
-		}
 		AdsUtils.destroyAd(this);
 		super.onDestroy();
 	}
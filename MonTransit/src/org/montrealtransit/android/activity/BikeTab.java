@@ -2,11 +2,9 @@ package org.montrealtransit.android.activity;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.TimeUnit;
 
 import org.montrealtransit.android.AdsUtils;
 import org.montrealtransit.android.AnalyticsUtils;
-import org.montrealtransit.android.BikeUtils;
 import org.montrealtransit.android.LocationUtils;
 import org.montrealtransit.android.MenuUtils;
 import org.montrealtransit.android.MyLog;
@@ -19,7 +17,11 @@ import org.montrealtransit.android.data.ABikeStation;
 import org.montrealtransit.android.data.ClosestPOI;
 import org.montrealtransit.android.data.POIArrayAdapter;
 import org.montrealtransit.android.provider.DataManager;
+import org.montrealtransit.android.provider.BixiStore.BikeStation;
 import org.montrealtransit.android.provider.DataStore.Fav;
+import org.montrealtransit.android.services.BixiDataReader;
+import org.montrealtransit.android.services.BixiDataReader.BixiDataReaderListener;
+import org.montrealtransit.android.services.BixiRefreshScheduler;
 import org.montrealtransit.android.services.ClosestBikeStationsFinderTask;
 
 import android.app.Activity;
@@ -47,7 +49,7 @@ import android.widget.Toast;
  * @author Mathieu Méa
  */
 public class BikeTab extends Activity implements LocationListener, ClosestBikeStationsFinderTask.ClosestBikeStationsFinderListener, SensorEventListener,
-		ShakeListener {
+		ShakeListener, BixiDataReaderListener {
 
 	/**
 	 * The log tag.
@@ -103,9 +105,9 @@ public class BikeTab extends Activity implements LocationListener, ClosestBikeSt
 	 */
 	private boolean shakeHandled = false;
 	/**
-	 * Last try (device time).
+	 * The last message of the Bixi data background refresh (error message or null).
 	 */
-	private int lastForcedRefresh = -1;
+	private String lastBixiDataMessage;
 
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
@@ -119,6 +121,7 @@ public class BikeTab extends Activity implements LocationListener, ClosestBikeSt
 		ListView list = (ListView) findViewById(R.id.closest_bike_stations_list);
 		this.adapter = new POIArrayAdapter(this);
 		this.adapter.setShakeEnabled(true);
+		this.adapter.setSortByDistance(true);
 		this.adapter.setShowData(true);
 		this.adapter.setListView(list);
 		showClosestBikeStations();
@@ -202,16 +205,15 @@ public class BikeTab extends Activity implements LocationListener, ClosestBikeSt
 		}
 		AnalyticsUtils.trackPageView(this, TRACKER_TAG);
 		AdsUtils.setupAd(this);
+		BixiRefreshScheduler.onVisible(this, this);
 		refreshFavoriteTerminalNamesFromDB();
-		if (this.closestBikeStationsLocation != null) {
-			refreshDataIfTooOld();
-		}
 	}
 
 	@Override
 	protected void onPause() {
 		MyLog.v(TAG, "onPause()");
 		this.paused = true;
+		BixiRefreshScheduler.onHidden(this);
 		BikeTab.this.locationUpdatesEnabled = LocationUtils.disableLocationUpdatesIfNecessary(this, this, this.locationUpdatesEnabled);
 		if (this.shakeUpdatesEnabled) {
 			SensorUtils.unregisterSensorListener(this, this);
@@ -271,6 +273,9 @@ public class BikeTab extends Activity implements LocationListener, ClosestBikeSt
 				if (this.adapter.getPois() == null && this.location != null) {
 					// start refreshing if not running.
 					refreshClosestBikeStations(false);
+				} else if (!LocationUtils.isInAroundCoveredArea(this.closestBikeStationsLocation, this.location, Utils.CLOSEST_POI_LIST_INCREMENTAL_DISTANCE)) {
+					// moved out of the closest bike stations area (smaller moves only re-order the list)
+					refreshClosestBikeStations(false);
 				}
 			}
 		}
@@ -289,10 +294,10 @@ public class BikeTab extends Activity implements LocationListener, ClosestBikeSt
 	}
 
 	/**
-	 * Show the new closest bike stations.
+	 * Show the new closest bike stations (the Bixi data is refreshed by the {@link BixiRefreshScheduler}).
 	 */
-	private void showNewClosestBikeStations(final boolean forceRefresh) {
-		MyLog.v(TAG, "showNewClosestBikeStations(forceRefresh:%s)", forceRefresh);
+	private void showNewClosestBikeStations() {
+		MyLog.v(TAG, "showNewClosestBikeStations()");
 		if (this.adapter.getPois() != null) {
 			// set the closest station title
 			showNewClosestBikeStationsTitle();
@@ -316,71 +321,11 @@ public class BikeTab extends Activity implements LocationListener, ClosestBikeSt
 				@Override
 				protected void onPostExecute(Integer result) {
 					BikeTab.this.adapter.setLastSuccessfulRefresh(result);
-					if (forceRefresh) {
-						forceRefresh();
-					} else {
-						refreshDataIfTooOld();
-					}
 				};
 			}.execute();
 		}
 	}
 
-	private boolean refreshDataIfTooOld() {
-		MyLog.v(TAG, "refreshDataIfTooOld()");
-		if (isDataTooOld()) {
-			// IF last try too recent DO
-			if (isDataTooRecent()) {
-				MyLog.d(TAG, "refreshDataIfTooOld() > last refresh too recent, not refreshing");
-				return false; // skip refresh
-			}
-			// ELSE refresh from www
-			forceRefresh();
-			return true;
-		}
-		return false;
-	}
-
-	private boolean isDataTooOld() {
-		// MyLog.v(TAG, " isDataTooOld()");
-		return Utils.currentTimeSec() - BikeUtils.CACHE_TOO_OLD_IN_SEC - getLastUpdateTime() > 0;
-	}
-
-	private void forceRefresh() {
-		MyLog.v(TAG, "forceRefresh()");
-		// cancel current task
-		if (this.closestBikeStationsTask != null && this.closestBikeStationsTask.getStatus().equals(AsyncTask.Status.RUNNING)) {
-			try { // wait for 1 seconds
-				this.closestBikeStationsTask.get(1, TimeUnit.SECONDS);
-			} catch (Exception e) {
-				MyLog.w(TAG, e, "Error while waiting to task to complete!");
-			}
-		}
-		// start new task w/ force refresh
-		startClosestStationsTask(true);
-	}
-
-	private boolean isDataTooRecent() {
-		// MyLog.v(TAG, " isDataTooRecent()");
-		if (this.lastForcedRefresh < 0) {
-			return false; // never forced refresh
-		}
-		return Utils.currentTimeSec() - BikeUtils.CACHE_TOO_OLD_IN_SEC - this.lastForcedRefresh < 0;
-	}
-
-	/**
-	 * @return the last update time
-	 */
-	public int getLastUpdateTime() {
-		if (this.adapter.getLastSuccessfulRefresh() < 0) {
-			this.adapter.setLastSuccessfulRefresh(UserPreferences.getPrefLcl(this, UserPreferences.PREFS_LCL_BIXI_LAST_UPDATE, -1));
-		}
-		if (this.adapter.getLastSuccessfulRefresh() < 0) {
-			return Utils.currentTimeSec(); // use device time
-		}
-		return this.adapter.getLastSuccessfulRefresh();
-	}
-
 	@Override
 	public void onConfigurationChanged(Configuration newConfig) {
 		MyLog.v(TAG, "onConfigurationChanged()");
@@ -477,7 +422,7 @@ public class BikeTab extends Activity implements LocationListener, ClosestBikeSt
 			refreshClosestBikeStations(false);
 		} else {
 			// show the closest stations
-			showNewClosestBikeStations(false);
+			showNewClosestBikeStations();
 			// IF the latest location is too old DO
 			if (LocationUtils.isTooOld(this.closestBikeStationsLocation)) {
 				// start refreshing
@@ -495,19 +440,19 @@ public class BikeTab extends Activity implements LocationListener, ClosestBikeSt
 	public void refreshOrStopRefreshClosestStations(View v) {
 		MyLog.v(TAG, "refreshOrStopRefreshClosestStations()");
 		this.forceRefresh = true;
-		if (!isDataTooRecent()) {
-			this.adapter.setPois(null); // refresh list 1st, then data from www
-		}
+		this.adapter.setPois(null); // refresh list 1st, then data from www
 		refreshClosestBikeStations(false);
+		BixiRefreshScheduler.requestRefresh(this); // delayed if too soon, the list is refreshed when done
 	}
 
 	/**
-	 * Refresh the closest bike stations list.
+	 * Refresh the closest bike stations list (from the database).
+	 * @param restart true to cancel the current task (new location)
 	 */
-	private void refreshClosestBikeStations(boolean forceUpdateFromWeb) {
-		MyLog.v(TAG, "refreshClosestBikeStations(%s)", forceUpdateFromWeb);
-		// cancel current if forcing
-		if (forceUpdateFromWeb && this.closestBikeStationsTask != null) {
+	private void refreshClosestBikeStations(boolean restart) {
+		MyLog.v(TAG, "refreshClosestBikeStations(%s)", restart);
+		// cancel current if restarting
+		if (restart && this.closestBikeStationsTask != null) {
 			this.closestBikeStationsTask.cancel(true);
 			this.closestBikeStationsTask = null;
 		}
@@ -519,7 +464,7 @@ public class BikeTab extends Activity implements LocationListener, ClosestBikeSt
 			if (locationUsed != null) {
 				// find the closest stations
 				this.closestBikeStationsLocation = locationUsed;
-				startClosestStationsTask(forceUpdateFromWeb);
+				startClosestStationsTask();
 				new AsyncTask<Location, Void, String>() {
 
 					@Override
@@ -552,13 +497,10 @@ public class BikeTab extends Activity implements LocationListener, ClosestBikeSt
 		}
 	}
 
-	private void startClosestStationsTask(boolean forceUpdateFromWeb) {
-		// MyLog.v(TAG, "startClosestStationsTask(%s)", forceUpdateFromWeb);
-		if (forceUpdateFromWeb) {
-			this.lastForcedRefresh = Utils.currentTimeSec();
-		}
+	private void startClosestStationsTask() {
+		// MyLog.v(TAG, "startClosestStationsTask()");
 		setClosestStationsLoading(null);
-		this.closestBikeStationsTask = new ClosestBikeStationsFinderTask(this, this, SupportFactory.get().getNbClosestPOIDisplay(), forceUpdateFromWeb);
+		this.closestBikeStationsTask = new ClosestBikeStationsFinderTask(this, this, SupportFactory.get().getNbClosestPOIDisplay(), false);
 		this.closestBikeStationsTask.execute(this.closestBikeStationsLocation.getLatitude(), this.closestBikeStationsLocation.getLongitude());
 	}
 
@@ -581,14 +523,10 @@ public class BikeTab extends Activity implements LocationListener, ClosestBikeSt
 				// get the result
 				this.adapter.setPois(new ArrayList<ABikeStation>()); // important for only forcing refresh
 																	 // once
-				// force refresh from server
-				refreshClosestBikeStations(true);
+				// force refresh from server (in the background, the list is refreshed when done)
+				BixiRefreshScheduler.requestRefresh(this);
+				setClosestStationsLoading(getString(R.string.downloading_data_from_and_source, BixiDataReader.SOURCE));
 			} else { // ELSE
-				boolean forceRefresh = false;
-				if (this.adapter.getPois() == null && isDataTooOld() && !isDataTooRecent()) {
-					// MyLog.d(TAG, "onClosestBikeStationsDone() > forceRefresh = true");
-					forceRefresh = true;
-				}
 				// get the result
 				BikeTab.this.adapter.setPois(result.getPoiList());
 				// set location
@@ -598,7 +536,7 @@ public class BikeTab extends Activity implements LocationListener, ClosestBikeSt
 				// refresh favorites
 				refreshFavoriteTerminalNamesFromDB();
 				// shot the result
-				showNewClosestBikeStations(forceRefresh);
+				showNewClosestBikeStations();
 			}
 			// notify the error message
 			if (!TextUtils.isEmpty(result.getErrorMessage())) {
@@ -607,6 +545,30 @@ public class BikeTab extends Activity implements LocationListener, ClosestBikeSt
 		}
 	}
 
+	@Override
+	public void onBixiDataProgress(String progress) {
+		MyLog.v(TAG, "onBixiDataProgress(%s)", progress);
+		this.lastBixiDataMessage = progress;
+	}
+
+	@Override
+	public void onBixiDataLoaded(List<BikeStation> newBikeStations, boolean isNew) {
+		MyLog.v(TAG, "onBixiDataLoaded(%s)", isNew);
+		if (!TextUtils.isEmpty(this.lastBixiDataMessage)) {
+			// keep showing the last bike stations
+			setClosestStationsError(this.lastBixiDataMessage);
+			return;
+		}
+		this.adapter.setLastSuccessfulRefresh(UserPreferences.getPrefLcl(this, UserPreferences.PREFS_LCL_BIXI_LAST_UPDATE, -1));
+		if (isNew || Utils.getCollectionSize(this.adapter.getPois()) == 0) {
+			// read the new bike stations from the database
+			refreshClosestBikeStations(false);
+		} else if (this.adapter.getPois() != null) {
+			// only the last refresh time changed
+			this.adapter.notifyDataSetChanged(true);
+		}
+	}
+
 	/**
 	 * Find favorites bike stations terminal names.
 	 */
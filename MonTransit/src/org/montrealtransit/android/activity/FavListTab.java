@@ -27,6 +27,8 @@ import org.montrealtransit.android.provider.DataStore.Fav;
 import org.montrealtransit.android.provider.StmBusManager;
 import org.montrealtransit.android.provider.StmSubwayManager;
 import org.montrealtransit.android.provider.common.AbstractManager;
+import org.montrealtransit.android.services.BixiDataReader.BixiDataReaderListener;
+import org.montrealtransit.android.services.BixiRefreshScheduler;
 
 import android.app.Activity;
 import android.app.AlertDialog;
@@ -53,7 +55,7 @@ import android.widget.TextView;
  * This activity list the favorite bus stops.
  * @author Mathieu Méa
  */
-public class FavListTab extends Activity implements LocationListener, SensorEventListener, CompassListener {
+public class FavListTab extends Activity implements LocationListener, SensorEventListener, CompassListener, BixiDataReaderListener {
 
 	/**
 	 * The log tag.
@@ -256,6 +258,7 @@ public class FavListTab extends Activity implements LocationListener, SensorEven
 	protected void onPause() {
 		MyLog.v(TAG, "onPause()");
 		this.paused = true;
+		BixiRefreshScheduler.onHidden(this);
 		this.locationUpdatesEnabled = LocationUtils.disableLocationUpdatesIfNecessary(this, this, this.locationUpdatesEnabled);
 		if (this.compassUpdatesEnabled) {
 			SensorUtils.unregisterSensorListener(this, this);
@@ -348,6 +351,12 @@ public class FavListTab extends Activity implements LocationListener, SensorEven
 				if (this.bikeStations != null) { // IF favorite bike station list was refreshed DO update the UI
 					refreshBikeStationsUI(this.bikeStations);
 				}
+				// IF favorite bike stations visible DO refresh the Bixi data more often
+				if (!FavListTab.this.paused && Utils.getCollectionSize(FavListTab.this.currentBikeStationFavList) > 0) {
+					BixiRefreshScheduler.onVisible(FavListTab.this, FavListTab.this);
+				} else {
+					BixiRefreshScheduler.onHidden(FavListTab.this);
+				}
 				updateDistancesWithNewLocation(); // show distance if location found
 				updateCompass(FavListTab.this.lastCompassInDegree, true); // show compass if available
 				showEmptyFav();
@@ -412,6 +421,7 @@ public class FavListTab extends Activity implements LocationListener, SensorEven
 			this.busAdapter.setPois(busStops);
 			this.busAdapter.updateDistancesNow(getLocation());
 			this.busAdapter.initManual();
+			this.busAdapter.prefetchPois();
 			findViewById(R.id.lists).setVisibility(View.VISIBLE);
 			findViewById(R.id.fav_bus_stops).setVisibility(View.VISIBLE);
 			findViewById(R.id.bus_stops_list).setVisibility(View.VISIBLE);
@@ -438,6 +448,7 @@ public class FavListTab extends Activity implements LocationListener, SensorEven
 			this.subwayAdapter.setPois(stations);
 			this.subwayAdapter.updateDistancesNow(getLocation());
 			this.subwayAdapter.initManual();
+			this.subwayAdapter.prefetchPois();
 			findViewById(R.id.lists).setVisibility(View.VISIBLE);
 			findViewById(R.id.fav_subway_stations).setVisibility(View.VISIBLE);
 			findViewById(R.id.subway_stations_list).setVisibility(View.VISIBLE);
@@ -649,6 +660,17 @@ public class FavListTab extends Activity implements LocationListener, SensorEven
 		MyLog.v(TAG, "onStatusChanged(%s, %s)", provider, status);
 	}
 
+	@Override
+	public void onBixiDataProgress(String progress) {
+		// MyLog.v(TAG, "onBixiDataProgress(%s)", progress);
+	}
+
+	@Override
+	public void onBixiDataLoaded(List<BikeStation> newBikeStations, boolean isNew) {
+		MyLog.v(TAG, "onBixiDataLoaded(%s)", isNew);
+		// nothing, only the bike station names are displayed (the bike station screen shows the fresh data)
+	}
+
 	@Override
 	public boolean onCreateOptionsMenu(Menu menu) {
 		return MenuUtils.createMainMenu(this, menu);
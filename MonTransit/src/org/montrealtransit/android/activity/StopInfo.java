@@ -53,6 +53,7 @@ import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
 import android.text.Html;
 import android.text.Spannable;
 import android.text.SpannableStringBuilder;
@@ -142,6 +143,14 @@ public class StopInfo extends Activity implements LocationListener, DialogInterf
 	 * The cache for the current stop (stop ID + route ID).
 	 */
 	private Map<String, StopTimes> memCache = new HashMap<String, StopTimes>();
+	/**
+	 * The last time the next stops of all the route trips of the stop have been loaded (schedule authority + stop ID).
+	 */
+	private Map<String, Long> stopNextStopsLoadedAtInMs = new HashMap<String, Long>();
+	/**
+	 * The maximum age of the next stops loaded with the other route trips of the stop.
+	 */
+	private static final long STOP_NEXT_STOPS_MAX_AGE_IN_MS = 60 * 1000; // 1 minute
 	/**
 	 * The other route trip at this stop.
 	 */
@@ -181,6 +190,18 @@ public class StopInfo extends Activity implements LocationListener, DialogInterf
 
 	private int nbTaskRunning = 0;
 
+	private Handler handler = new Handler();
+
+	/**
+	 * Stop waiting for the slowest schedule providers.
+	 */
+	private Runnable nextStopsDeadline = new Runnable() {
+		@Override
+		public void run() {
+			onNextStopsDeadline();
+		}
+	};
+
 	/**
 	 * True if the activity has the focus, false otherwise.
 	 */
@@ -648,42 +669,8 @@ public class StopInfo extends Activity implements LocationListener, DialogInterf
 	@Override
 	public void onClosestStopsDone(ClosestPOI<RouteTripStop> result) {
 		MyLog.v(TAG, "onClosestStopsDone(%s)", (result == null ? null : result.getPoiListSize()));
-		List<RouteTripStop> routeTripStops = result.getPoiListOrNull();
-		if (routeTripStops != null) {
-			ListIterator<RouteTripStop> routeTripStopsIt = routeTripStops.listIterator();
-			while (routeTripStopsIt.hasNext()) {
-				RouteTripStop routeTripStop = routeTripStopsIt.next();
-				// IF same stop DO
-				if (routeTripStop.stop.id == this.routeTripStop.stop.id) {
-					routeTripStopsIt.remove();
-					continue;
-				}
-				// TODO slow // IF last stop of the trip DO
-				// final TripStop lastTripStop = AbstractManager.findTripLastTripStop(StopInfo.this, Utils.newContentUri(authority),
-				// routeTripStop.trip.id);
-				// if (lastTripStop != null && routeTripStop.stop.id == lastTripStop.stop.id) {
-				// it.remove();
-				// continue;
-				// }
-			}
-			// remove last trip stops now (because all nearby list takes too long)
-			ListIterator<RouteTripStop> resultIt = routeTripStops.listIterator();
-			while (resultIt.hasNext()) {
-				final RouteTripStop routeTripStop = resultIt.next();
-				if (routeTripStop == null) { // || !(poi instanceof RouteTripStop)) {
-					// MyLog.d(TAG, "refreshNearby()>Null or not Route Trip Stop! %s", poi);
-					continue;
-				}
-				// IF last stop of the trip DO
-				final TripStop lastTripStop = AbstractManager.findTripLastTripStop(this, Utils.newContentUri(routeTripStop.authority), routeTripStop.trip.id);
-				if (lastTripStop != null && routeTripStop.stop.id == lastTripStop.stop.id) {
-					resultIt.remove();
-					// MyLog.d(TAG, "refreshNearby()>REMOVED %s", routeTripStop.stop);
-					continue;
-				}
-				// MyLog.d(TAG, "refreshNearby()>NOT REMOVED");
-			}
-		}
+		// same stop and last trip stops already removed by the task (background)
+		List<RouteTripStop> routeTripStops = result == null ? null : result.getPoiListOrNull();
 		// MyLog.d(TAG, "refreshNearby()> result size: %s", result.size());
 		this.adapter.setPois(routeTripStops);
 		this.adapter.updateDistancesNow(this.location);
@@ -743,13 +730,9 @@ public class StopInfo extends Activity implements LocationListener, DialogInterf
 						// it.remove();
 						// continue;
 						// }
-						// IF last stop of the trip DO
-						final TripStop lastTripStop = AbstractManager.findTripLastTripStop(StopInfo.this, StopInfo.this.contentUri, routeTripStop.trip.id);
-						if (lastTripStop != null && routeTripStop.stop.id == lastTripStop.stop.id) {
-							it.remove();
-							continue;
-						}
 					}
+					// remove last trip stops (1 query for all the trips)
+					AbstractManager.removeLastTripStops(StopInfo.this, result);
 				}
 				return result;
 			}
@@ -1095,16 +1078,56 @@ public class StopInfo extends Activity implements LocationListener, DialogInterf
 		final String[] scheduleAuthorities = AbstractScheduleManager.authoritiesToScheduleAuthorities.get(this.contentUri.getAuthority());
 		if (scheduleAuthorities != null) {
 			for (String scheduleAuthority : scheduleAuthorities) {
+				if (!force && isStopNextStopsRecent(scheduleAuthority)) {
+					MyLog.d(TAG, "Next stops already loaded with the stop from '%s'.", scheduleAuthority);
+					continue;
+				}
 				ScheduleTask scheduleTask = new ScheduleTask(this, this, this.routeTripStop, scheduleAuthority, force);
-				scheduleTask.execute();
 				this.scheduleTasks.put(scheduleAuthority, scheduleTask);
 				this.nbTaskRunning++;
+				SupportFactory.get().executeOnExecutor(scheduleTask, ScheduleTask.getExecutor()); // all providers at the same time
 			}
 		}
+		if (this.nbTaskRunning <= 0) {
+			setNextStopsNotLoading();
+		} else {
+			this.handler.postDelayed(this.nextStopsDeadline,
+					UserPreferences.getPrefLcl(this, UserPreferences.PREFS_LCL_NEXT_STOPS_DEADLINE_IN_MS, UserPreferences.PREFS_LCL_NEXT_STOPS_DEADLINE_IN_MS_DEFAULT));
+		}
+	}
+
+	/**
+	 * Cancel the schedule tasks still running after the deadline (keep showing the next stops from the fastest provider).
+	 */
+	private void onNextStopsDeadline() {
+		MyLog.v(TAG, "onNextStopsDeadline()");
+		if (this.nbTaskRunning <= 0) {
+			return;
+		}
+		MyLog.d(TAG, "Next stops deadline reached with %s task(s) running!", this.nbTaskRunning);
+		cancelScheduleTasks();
+		if (this.stopTimes != null) {
+			setNextStopsNotLoading(); // keep showing the next stops already loaded
+		} else {
+			setNextStopsCancelled();
+		}
+		refreshOtherRouteTripsInfo();
+	}
+
+	/**
+	 * @return true if the next stops of this route trip stop have been loaded recently with the other route trips of the stop
+	 */
+	private boolean isStopNextStopsRecent(String scheduleAuthority) {
+		if (this.stopTimes == null || !this.memCache.containsKey(this.routeTripStop.getUUID())) {
+			return false;
+		}
+		final Long loadedAtInMs = this.stopNextStopsLoadedAtInMs.get(scheduleAuthority + this.routeTripStop.stop.id);
+		return loadedAtInMs != null && System.currentTimeMillis() - loadedAtInMs.longValue() < STOP_NEXT_STOPS_MAX_AGE_IN_MS;
 	}
 
 	private void cancelScheduleTasks() {
 		MyLog.v(TAG, "cancelScheduleTasks()");
+		this.handler.removeCallbacks(this.nextStopsDeadline);
 		if (this.scheduleTasks != null) {
 			for (ScheduleTask scheduleTask : this.scheduleTasks.values()) {
 				if (scheduleTask != null && scheduleTask.getStatus() == AsyncTask.Status.RUNNING) {
@@ -1157,6 +1180,14 @@ public class StopInfo extends Activity implements LocationListener, DialogInterf
 			setTaskAsCompleted();
 			return;
 		}
+		if (results.size() > 1) { // loaded with the other route trips of the stop
+			for (Map.Entry<String, StopTimes> stopResult : results.entrySet()) {
+				if (stopResult.getValue() != null && !stopResult.getValue().isRealtime() && !stopResult.getKey().equals(this.routeTripStop.getUUID())) {
+					saveToMemCache(stopResult.getKey(), stopResult.getValue());
+				}
+			}
+			this.stopNextStopsLoadedAtInMs.put(scheduleAuthority + this.routeTripStop.stop.id, System.currentTimeMillis());
+		}
 		// MyLog.d(TAG, "%s:%s", results.keySet(), results.values());
 		StopTimes result = results.get(this.routeTripStop.getUUID());
 		if (result == null) {
@@ -1205,6 +1236,7 @@ public class StopInfo extends Activity implements LocationListener, DialogInterf
 		MyLog.v(TAG, "setLocalTaskAsCompleted()");
 		this.nbTaskRunning--;
 		if (this.nbTaskRunning <= 0) {
+			this.handler.removeCallbacks(this.nextStopsDeadline);
 			setNextStopsNotLoading();
 			refreshOtherRouteTripsInfo();
 		} else if (this.stopTimes != null) {
@@ -281,6 +281,7 @@ public class SubwayTab extends Activity implements LocationListener, StmInfoStat
 	private void showAll() {
 		this.adapter = new POIArrayAdapter(this);
 		this.adapter.setShakeEnabled(true);
+		this.adapter.setSortByDistance(true);
 		this.adapter.setManualLayout((ViewGroup) findViewById(R.id.closest_stations));
 		this.adapter.setManualScrollView((ScrollView) findViewById(R.id.scrollview));
 		refreshSubwayLinesFromDB();
@@ -955,6 +956,9 @@ public class SubwayTab extends Activity implements LocationListener, StmInfoStat
 				if (this.adapter.getPois() == null) {
 					// start refreshing if not running.
 					refreshClosestStations();
+				} else if (!LocationUtils.isInAroundCoveredArea(this.closestStationsLocation, this.location, Utils.CLOSEST_POI_LIST_INCREMENTAL_DISTANCE)) {
+					// moved out of the closest stations area (smaller moves only re-order the list)
+					refreshClosestStations();
 				}
 			}
 		}
@@ -9,6 +9,7 @@ import org.montrealtransit.android.R;
 import org.montrealtransit.android.Utils;
 import org.montrealtransit.android.api.SupportFactory;
 import org.montrealtransit.android.provider.DataManager;
+import org.montrealtransit.android.provider.common.DepartureCache;
 
 import android.annotation.SuppressLint;
 import android.app.AlertDialog;
@@ -216,6 +217,15 @@ public class UserPreferences extends PreferenceActivity {
 	 */
 	public static final String PREFS_LCL_BIXI_LAST_UPDATE = "pBixiLastUpdate";
 
+	/**
+	 * The preference key for the maximum time to wait for the next stops (all schedule providers).
+	 */
+	public static final String PREFS_LCL_NEXT_STOPS_DEADLINE_IN_MS = "pNextStopsDeadline";
+	/**
+	 * Default value for the maximum time to wait for the next stops.
+	 */
+	public static final long PREFS_LCL_NEXT_STOPS_DEADLINE_IN_MS_DEFAULT = 15 * 1000; // 15 seconds
+
 	/**
 	 * The ads check box.
 	 */
@@ -301,6 +311,7 @@ public class UserPreferences extends PreferenceActivity {
 			@Override
 			public boolean onPreferenceClick(Preference preference) {
 				DataManager.deleteAllCache(getContentResolver());
+				DepartureCache.clearAll();
 				Utils.notifyTheUser(getApplicationContext(), UserPreferences.this.getString(R.string.clear_cache_complete));
 				setClearCachePref();
 				// WARNING DANGEROUS UserPreferences.this.getDatabasePath(StmSubwayDbHelper.DB_NAME);
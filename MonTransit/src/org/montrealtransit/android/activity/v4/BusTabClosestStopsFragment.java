@@ -144,6 +144,7 @@ public class BusTabClosestStopsFragment extends Fragment implements LocationList
 			((ViewStub) view.findViewById(R.id.closest_stops_stub)).inflate(); // inflate
 		}
 		this.adapter = new POIArrayAdapter(activity);
+		this.adapter.setSortByDistance(true);
 		ListView closestStopsListView = (ListView) view.findViewById(R.id.closest_stops);
 		this.adapter.setListView(closestStopsListView);
 		if (this.adapter.getPois() == null) {
@@ -422,6 +423,9 @@ public class BusTabClosestStopsFragment extends Fragment implements LocationList
 				if (this.adapter.getPois() == null) {
 					// start refreshing if not running.
 					refreshClosestStops();
+				} else if (!LocationUtils.isInAroundCoveredArea(this.closestStopsLocation, this.location, Utils.CLOSEST_POI_LIST_INCREMENTAL_DISTANCE)) {
+					// moved out of the closest stops area (smaller moves only re-order the list)
+					refreshClosestStops();
 				}
 			}
 		}
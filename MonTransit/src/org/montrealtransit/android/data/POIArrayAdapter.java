@@ -2,9 +2,11 @@ package org.montrealtransit.android.data;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
 
 import org.montrealtransit.android.BikeUtils;
@@ -12,6 +14,7 @@ import org.montrealtransit.android.BusUtils;
 import org.montrealtransit.android.LocationUtils;
 import org.montrealtransit.android.LocationUtils.LocationTaskCompleted;
 import org.montrealtransit.android.MyLog;
+import org.montrealtransit.android.PrefetchingUtils;
 import org.montrealtransit.android.R;
 import org.montrealtransit.android.SensorUtils;
 import org.montrealtransit.android.SensorUtils.CompassListener;
@@ -24,6 +27,8 @@ import org.montrealtransit.android.api.SupportFactory;
 import org.montrealtransit.android.provider.BixiStore.BikeStation;
 import org.montrealtransit.android.provider.DataManager;
 import org.montrealtransit.android.provider.DataStore.Fav;
+import org.montrealtransit.android.provider.StmBusLiveScheduleManager;
+import org.montrealtransit.android.provider.common.AbstractScheduleManager;
 
 import android.app.Activity;
 import android.app.AlertDialog;
@@ -97,8 +102,26 @@ public class POIArrayAdapter extends ArrayAdapter<POI> implements CompassListene
 
 	private boolean shakeEnabled = false;
 
+	private boolean sortByDistance = false;
+
 	private long lastCompassChanged = -1;
 
+	/**
+	 * The maximum number of closest route trip stops to prefetch.
+	 */
+	private static final int PREFETCH_CLOSESTS_COUNT = 5;
+
+	/**
+	 * The minimum time between 2 prefetches of the same route trip stops.
+	 */
+	private static final long PREFETCH_MIN_INTERVAL_IN_MS = 60 * 1000; // 1 minute
+
+	private Set<String> lastPrefetchUUIDs;
+
+	private Set<String> lastPrefetchClosestsUUIDs;
+
+	private long lastPrefetchInMs = -1;
+
 	public POIArrayAdapter(Activity activity) {
 		super(activity, R.layout.loading_small_layout);
 		MyLog.v(TAG, "POIArrayAdapter()");
@@ -444,29 +467,117 @@ public class POIArrayAdapter extends ArrayAdapter<POI> implements CompassListene
 		return -1;
 	}
 
-	@Deprecated
+	/**
+	 * Prefetch the departures of the closest route trip stops (only when the closest route trip stops change).
+	 */
 	public void prefetchClosests() {
-		// if (this.pois == null) {
-		// return;
-		// }
-		// TODO for (int i = 0; i < this.closestStops.size() && i < 5; i++) {
-		// SupportFactory.get().executeOnExecutor(new LoadNextBusStopIntoCacheTask(getLastActivity(), this.closestStops.get(i), null, true, false),
-		// PrefetchingUtils.getExecutor());
-		// }
+		if (this.pois == null) {
+			return;
+		}
+		List<POI> closestPois = new ArrayList<POI>(this.pois);
+		if (!this.sortByDistance) {
+			Collections.sort(closestPois, POI.POI_DISTANCE_COMPARATOR);
+		}
+		List<RouteTripStop> routeTripStops = new ArrayList<RouteTripStop>();
+		for (int i = 0; i < closestPois.size() && routeTripStops.size() < PREFETCH_CLOSESTS_COUNT; i++) {
+			if (closestPois.get(i) instanceof RouteTripStop) {
+				routeTripStops.add((RouteTripStop) closestPois.get(i));
+			}
+		}
+		final Set<String> uuids = new HashSet<String>();
+		for (RouteTripStop routeTripStop : routeTripStops) {
+			uuids.add(routeTripStop.getUUID());
+		}
+		// IF same closest route trip stops DO skip (called on every distance update)
+		if (uuids.equals(this.lastPrefetchClosestsUUIDs)) {
+			return;
+		}
+		this.lastPrefetchClosestsUUIDs = uuids;
+		prefetch(routeTripStops, true);
 	}
 
-	@Deprecated
+	/**
+	 * Prefetch the departures of the favorite route trip stops.
+	 */
 	public void prefetchFavorites() {
-		// if (this.pois == null || this.typeFavUIDs == null) {
-		// return;
-		// }
-		// TODO for (String code : this.favStopCodes) {
-		// RouteTripStop routeTripStop = new RouteTripStop(null, null, null);
-		// routeTripStop.stop.code = code;
-		// routeTripStop.route.shortName = this.busLineNumber;
-		// SupportFactory.get().executeOnExecutor(new LoadNextBusStopIntoCacheTask(getLastActivity(), busStop, null, true, false),
-		// PrefetchingUtils.getExecutor());
-		// }
+		if (this.pois == null || this.typeFavUIDs == null || this.typeFavUIDs.get(POI.ITEM_VIEW_TYPE_STOP) == null) {
+			return;
+		}
+		final Set<String> favUIDs = this.typeFavUIDs.get(POI.ITEM_VIEW_TYPE_STOP);
+		List<RouteTripStop> routeTripStops = new ArrayList<RouteTripStop>();
+		for (POI poi : this.pois) {
+			if (poi instanceof RouteTripStop && favUIDs.contains(poi.getUID())) {
+				routeTripStops.add((RouteTripStop) poi);
+			}
+		}
+		prefetch(routeTripStops, false);
+	}
+
+	/**
+	 * Prefetch the departures of all the route trip stops (favorites list).
+	 */
+	public void prefetchPois() {
+		if (this.pois == null) {
+			return;
+		}
+		List<RouteTripStop> routeTripStops = new ArrayList<RouteTripStop>();
+		for (POI poi : this.pois) {
+			if (poi instanceof RouteTripStop) {
+				routeTripStops.add((RouteTripStop) poi);
+			}
+		}
+		prefetch(routeTripStops, false);
+	}
+
+	/**
+	 * Load the departures of the route trip stops into the schedule providers cache with one provider call per schedule authority.
+	 * @param live true to also prefetch from the live schedule provider (1 HTTP request per route trip stop, keep the list short)
+	 */
+	private void prefetch(List<RouteTripStop> routeTripStops, boolean live) {
+		if (routeTripStops.size() == 0 || !PrefetchingUtils.isPrefetching(this.activity)) {
+			return;
+		}
+		final Map<String, List<RouteTripStop>> authorityRouteTripStops = new HashMap<String, List<RouteTripStop>>();
+		final Set<String> uuids = new HashSet<String>();
+		for (RouteTripStop routeTripStop : routeTripStops) {
+			List<RouteTripStop> authorityList = authorityRouteTripStops.get(routeTripStop.authority);
+			if (authorityList == null) {
+				authorityList = new ArrayList<RouteTripStop>();
+				authorityRouteTripStops.put(routeTripStop.authority, authorityList);
+			}
+			authorityList.add(routeTripStop);
+			uuids.add(routeTripStop.getUUID());
+		}
+		// IF same route trip stops prefetched recently DO skip
+		if (uuids.equals(this.lastPrefetchUUIDs) && System.currentTimeMillis() - this.lastPrefetchInMs < PREFETCH_MIN_INTERVAL_IN_MS) {
+			return;
+		}
+		this.lastPrefetchUUIDs = uuids;
+		this.lastPrefetchInMs = System.currentTimeMillis();
+		final boolean network = live && (!PrefetchingUtils.isPrefetchingWiFiOnly(this.activity) || PrefetchingUtils.isConnectedToWifi(this.activity));
+		final Context context = this.activity.getApplicationContext();
+		PrefetchingUtils.getExecutor().execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					for (Map.Entry<String, List<RouteTripStop>> authority : authorityRouteTripStops.entrySet()) {
+						final String[] scheduleAuthorities = AbstractScheduleManager.authoritiesToScheduleAuthorities.get(authority.getKey());
+						if (scheduleAuthorities == null) {
+							continue;
+						}
+						for (String scheduleAuthority : scheduleAuthorities) {
+							if (!network && StmBusLiveScheduleManager.AUTHORITY.equals(scheduleAuthority)) {
+								continue; // not live OR Wi-Fi only
+							}
+							AbstractScheduleManager.findStopTimes(context.getContentResolver(), Utils.newContentUri(scheduleAuthority), authority.getValue(),
+									Utils.recentTimeMillis(), false, null);
+						}
+					}
+				} catch (Throwable t) {
+					MyLog.w(TAG, t, "Error while prefetching departures!");
+				}
+			}
+		});
 	}
 
 	public void setLocationDeclination(float locationDeclination) {
@@ -482,23 +593,48 @@ public class POIArrayAdapter extends ArrayAdapter<POI> implements CompassListene
 				@Override
 				public void onLocationTaskCompleted() {
 					MyLog.v(TAG, "updateDistances() > onLocationTaskCompleted()");
+					final boolean reordered = sortPoisByDistance();
 					final Pair<Integer, String> previousClosest = POIArrayAdapter.this.closestPOI;
 					updateClosestPoi();
 					final boolean newClosest = POIArrayAdapter.this.closestPOI == null ? false : POIArrayAdapter.this.closestPOI.equals(previousClosest);
-					notifyDataSetChanged(newClosest);
+					if (reordered) {
+						notifyDataSetChangedNow(); // the list view positions changed
+					} else {
+						notifyDataSetChanged(newClosest);
+					}
 					prefetchClosests();
 				}
 			});
 		}
 	}
 
+	/**
+	 * @return true if the POIs order changed (the list view must be notified)
+	 */
+	private boolean sortPoisByDistance() {
+		if (!this.sortByDistance || this.pois == null) {
+			return false;
+		}
+		for (int i = 1; i < this.pois.size(); i++) {
+			if (POI.POI_DISTANCE_COMPARATOR.compare(this.pois.get(i - 1), this.pois.get(i)) > 0) {
+				Collections.sort(this.pois, POI.POI_DISTANCE_COMPARATOR);
+				return true;
+			}
+		}
+		return false; // already sorted
+	}
+
 	public void updateDistancesNow(Location currentLocation) {
 		MyLog.v(TAG, "updateDistancesNow()");
 		// MyLog.d(TAG, "updateDistancesNow() > location: %s", this.location);
 		// MyLog.d(TAG, "updateDistancesNow() > compassUpdatesEnabled: %s", this.compassUpdatesEnabled);
 		if (this.pois != null && currentLocation != null) {
 			LocationUtils.updateDistanceWithString(this.activity, this.pois, currentLocation);
+			final boolean reordered = sortPoisByDistance();
 			updateClosestPoi();
+			if (reordered) {
+				notifyDataSetChangedNow(); // the list view positions changed
+			}
 		}
 		if (this.location == null) { // TODO always?
 			setLocation(currentLocation);
@@ -533,6 +669,15 @@ public class POIArrayAdapter extends ArrayAdapter<POI> implements CompassListene
 		}
 	}
 
+	/**
+	 * Notify at once, even while scrolling (the POIs order changed).
+	 */
+	private void notifyDataSetChangedNow() {
+		notifyDataSetChanged();
+		notifyDataSetChangedManual();
+		this.lastNotifyDataSetChanged = System.currentTimeMillis();
+	}
+
 	private void notifyDataSetChangedManual() {
 		// MyLog.v(TAG, "notifyDataSetChangedManual()");
 		if (this.manualLayout != null && hasPois()) {
@@ -631,6 +776,13 @@ public class POIArrayAdapter extends ArrayAdapter<POI> implements CompassListene
 		this.shakeEnabled = shakeEnabled;
 	}
 
+	/**
+	 * @param sortByDistance true to keep the POIs list ordered by distance (closest first) when the location changes
+	 */
+	public void setSortByDistance(boolean sortByDistance) {
+		this.sortByDistance = sortByDistance;
+	}
+
 	public void setLocation(Location newLocation) {
 		// MyLog.v(TAG, "setLocation()");
 		if (newLocation != null) {
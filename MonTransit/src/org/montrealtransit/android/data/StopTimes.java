@@ -313,6 +313,33 @@ public class StopTimes {
 	// NOT THREAD SAFE
 	public static final SimpleDateFormat OUTPUT_FORMAT = new SimpleDateFormat("HH'h'mm");
 
+	/**
+	 * @param sourceName the source name
+	 * @param realtime true if real-time
+	 * @param timestamps the sorted departures timestamps
+	 * @return the stop times
+	 */
+	public static StopTimes fromTimestamps(String sourceName, boolean realtime, List<Long> timestamps) {
+		StopTimes stopTimes = new StopTimes(sourceName, realtime);
+		long now = Utils.currentTimeToTheMinuteMillis();
+		for (Long timestamp : timestamps) {
+			stopTimes.addTimestamp(timestamp.longValue(), now);
+		}
+		return stopTimes;
+	}
+
+	/**
+	 * Add a departure timestamp as previous time (if before now) or as next time.
+	 */
+	private void addTimestamp(long timestamp, long now) {
+		final String formattedTime = OUTPUT_FORMAT.format(new Date(timestamp));
+		if (timestamp < now) {
+			setPreviousTime(formattedTime);
+		} else {
+			addSTime(formattedTime);
+		}
+	}
+
 	public static StopTimes parseJSON(String json) {
 		StopTimes stopTimes = new StopTimes();
 		try {
@@ -324,12 +351,7 @@ public class StopTimes {
 			for (int i = 0; i < jTimestamps.length(); i++) {
 				Long jTimestamp = jTimestamps.getLong(i);
 				if (jTimestamp != null) {
-					final String formattedTime = OUTPUT_FORMAT.format(new Date(jTimestamp));
-					if (jTimestamp.longValue() < now) {
-						stopTimes.setPreviousTime(formattedTime);
-					} else {
-						stopTimes.addSTime(formattedTime);
-					}
+					stopTimes.addTimestamp(jTimestamp.longValue(), now);
 				}
 			}
 			// if (jStopTimes.has("error")) {
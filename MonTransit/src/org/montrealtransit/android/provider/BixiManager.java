@@ -7,6 +7,7 @@ import java.util.Map;
 
 import org.montrealtransit.android.MyLog;
 import org.montrealtransit.android.provider.BixiStore.BikeStation;
+import org.montrealtransit.android.provider.common.StopKdTree;
 
 import android.content.ContentResolver;
 import android.content.ContentValues;
@@ -24,6 +25,17 @@ public class BixiManager {
 	 */
 	private static final String TAG = BixiManager.class.getSimpleName();
 
+	/**
+	 * The projection of the closest bike stations index.
+	 */
+	private static final String[] PROJECTION_BIKE_STATION_LOCATION = new String[] { BixiStore.BikeStation.TERMINAL_NAME, BixiStore.BikeStation.LAT,
+			BixiStore.BikeStation.LNG };
+
+	/**
+	 * The closest bike stations index (built on the first call and cleared when the bike stations change) or <b>NULL</b>.
+	 */
+	private static BikeStationsIndex bikeStationsIndex = null;
+
 	/**
 	 * Delete <b>ALL</b> bike station entries
 	 * @param contentResolver the content resolver
@@ -31,7 +43,9 @@ public class BixiManager {
 	 */
 	public static int deleteAllBikeStations(ContentResolver contentResolver) {
 		MyLog.v(TAG, "deleteAllBikeStations()");
-		return contentResolver.delete(BixiStore.BikeStation.CONTENT_URI, null, null);
+		final int deleted = contentResolver.delete(BixiStore.BikeStation.CONTENT_URI, null, null);
+		clearBikeStationsIndex();
+		return deleted;
 	}
 
 	/**
@@ -41,7 +55,9 @@ public class BixiManager {
 	 * @return true if 1 (or more) bike stations entries have been deleted
 	 */
 	public static boolean deleteBikeStation(ContentResolver contentResolver, String terminalName) {
-		return contentResolver.delete(getBikeStationURI(terminalName), null, null) > 0;
+		final boolean deleted = contentResolver.delete(getBikeStationURI(terminalName), null, null) > 0;
+		clearBikeStationsIndex();
+		return deleted;
 	}
 
 	/**
@@ -53,6 +69,7 @@ public class BixiManager {
 	 */
 	public static BikeStation addBikeStation(ContentResolver contentResolver, BikeStation newBikeStation, boolean findNew) {
 		final Uri uri = contentResolver.insert(BixiStore.BikeStation.CONTENT_URI, newBikeStation.getContentValues());
+		clearBikeStationsIndex();
 		if (findNew && uri != null) {
 			return findBikeStation(contentResolver, uri);
 		} else {
@@ -69,7 +86,13 @@ public class BixiManager {
 	 */
 	public static boolean updateBikeStation(ContentResolver contentResolver, BikeStation newBikeStation, String terminalName) {
 		MyLog.v(TAG, "updateBikeStation(%s)", terminalName);
-		return contentResolver.update(getBikeStationURI(terminalName), newBikeStation.getContentValues(), null, null) > 0;
+		final ContentValues values = newBikeStation.getContentValues();
+		final boolean moved = isBikeStationsIndexChanged(new ContentValues[] { values });
+		final boolean updated = contentResolver.update(getBikeStationURI(terminalName), values, null, null) > 0;
+		if (updated && moved) {
+			clearBikeStationsIndex();
+		}
+		return updated;
 	}
 
 	/**
@@ -92,7 +115,65 @@ public class BixiManager {
 		for (BikeStation bikeStation : newBikeStations) {
 			bulkInsertValues.add(bikeStation.getContentValues());
 		}
-		return contentResolver.bulkInsert(BixiStore.BikeStation.CONTENT_URI, bulkInsertValues.toArray(new ContentValues[] {}));
+		final int inserted = contentResolver.bulkInsert(BixiStore.BikeStation.CONTENT_URI, bulkInsertValues.toArray(new ContentValues[] {}));
+		clearBikeStationsIndex();
+		return inserted;
+	}
+
+	/**
+	 * Synchronize <b>ALL</b> the bike stations entries with the new bike stations (only the changes are written).
+	 * @param contentResolver the content resolver
+	 * @param newBikeStations all the new bike stations entries
+	 * @return the number of bike stations inserted, updated or deleted or -1 if the synchronization failed (removed bike stations NOT deleted)
+	 */
+	public static int syncBikeStations(ContentResolver contentResolver, List<BikeStation> newBikeStations) {
+		MyLog.v(TAG, "syncBikeStations(%s)", newBikeStations.size());
+		Map<String, ContentValues> values = new HashMap<String, ContentValues>();
+		for (BikeStation bikeStation : newBikeStations) {
+			if (bikeStation.getTerminalName() != null) {
+				values.put(bikeStation.getTerminalName(), bikeStation.getContentValues());
+			}
+		}
+		final int changed = syncBikeStationsBatch(contentResolver, values.values().toArray(new ContentValues[values.size()]));
+		if (changed < 0) {
+			return changed;
+		}
+		return changed + endSyncBikeStations(contentResolver, values.keySet().toArray(new String[values.size()]), changed);
+	}
+
+	/**
+	 * Synchronize a batch of new bike stations entries (insert & update only, see {@link #endSyncBikeStations(ContentResolver, String[], int)}).
+	 * @param contentResolver the content resolver
+	 * @param values the new bike stations entries (unique terminal names)
+	 * @return the number of bike stations inserted or updated or -1 if the batch failed (rolled back)
+	 */
+	public static int syncBikeStationsBatch(ContentResolver contentResolver, ContentValues[] values) {
+		MyLog.v(TAG, "syncBikeStationsBatch(%s)", values.length);
+		final boolean moved = isBikeStationsIndexChanged(values); // most syncs only change the bikes & docks counts
+		final int changed = contentResolver.bulkInsert(BixiStore.BikeStation.CONTENT_URI_SYNC, values);
+		if (changed > 0 && moved) {
+			clearBikeStationsIndex();
+		}
+		return changed;
+	}
+
+	/**
+	 * End the synchronization of all the bike stations: delete the bike stations removed from the source and notify the changes (once).
+	 * @param contentResolver the content resolver
+	 * @param syncedTerminalNames the terminal names of all the new bike stations
+	 * @param changed the number of bike stations inserted or updated by the batches
+	 * @return the number of bike stations deleted
+	 */
+	public static int endSyncBikeStations(ContentResolver contentResolver, String[] syncedTerminalNames, int changed) {
+		MyLog.v(TAG, "endSyncBikeStations(%s,%s)", syncedTerminalNames.length, changed);
+		final int deleted = contentResolver.delete(BixiStore.BikeStation.CONTENT_URI_SYNC, null, syncedTerminalNames); // notify if deleted
+		if (deleted > 0) {
+			clearBikeStationsIndex(); // inserted & moved bike stations already cleared by the batches
+		}
+		if (deleted == 0 && changed > 0) {
+			contentResolver.notifyChange(BixiStore.BikeStation.CONTENT_URI, null);
+		}
+		return deleted;
 	}
 
 	/**
@@ -304,4 +385,136 @@ public class BixiManager {
 		}
 		return result;
 	}
+
+	/**
+	 * Find the closest bike stations (k-nearest bike stations from the in-memory index, no around search).
+	 * @param contentResolver the content resolver
+	 * @param maxResult the maximum number of bike stations
+	 * @return the closest bike stations (not sorted) or <b>NULL</b> if the bike stations can't be read
+	 */
+	public static List<BikeStation> findClosestBikeStationsList(ContentResolver contentResolver, double lat, double lng, int maxResult) {
+		MyLog.v(TAG, "findClosestBikeStationsList(%s,%s,%s)", lat, lng, maxResult);
+		final BikeStationsIndex index = getBikeStationsIndex(contentResolver);
+		if (index == null) {
+			return null;
+		}
+		// no maximum distance: the closest bike stations even if far from the location (like the whole list sorted by distance)
+		final int[] positions = index.kdTree.findClosest(lat, lng, maxResult, Float.MAX_VALUE);
+		if (positions.length == 0) {
+			return null;
+		}
+		StringBuilder sb = new StringBuilder();
+		for (int position : positions) {
+			if (sb.length() > 0) {
+				sb.append("+");
+			}
+			sb.append(index.terminalNames[position]);
+		}
+		return findBikeStationsList(contentResolver, sb.toString());
+	}
+
+	/**
+	 * @param values the new bike stations entries
+	 * @return true if the current closest bike stations index doesn't match the new bike stations (new or moved bike stations)
+	 */
+	private static synchronized boolean isBikeStationsIndexChanged(ContentValues[] values) {
+		if (bikeStationsIndex == null) {
+			return true; // index built during the write would be outdated
+		}
+		for (ContentValues value : values) {
+			final Integer position = bikeStationsIndex.positions.get(value.getAsString(BixiStore.BikeStation.TERMINAL_NAME));
+			if (position == null) {
+				return true; // new bike station
+			}
+			final Double lat = value.getAsDouble(BixiStore.BikeStation.LAT);
+			final Double lng = value.getAsDouble(BixiStore.BikeStation.LNG);
+			if (lat == null || lng == null || lat.doubleValue() != bikeStationsIndex.lats[position]
+					|| lng.doubleValue() != bikeStationsIndex.lngs[position]) {
+				return true; // moved bike station
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Clear the closest bike stations index (bike stations added, moved or removed).
+	 */
+	private static synchronized void clearBikeStationsIndex() {
+		bikeStationsIndex = null;
+	}
+
+	/**
+	 * @return the closest bike stations index (built on the first call and after each change) or <b>NULL</b> if no bike stations
+	 */
+	private static synchronized BikeStationsIndex getBikeStationsIndex(ContentResolver contentResolver) {
+		if (bikeStationsIndex == null) {
+			bikeStationsIndex = findBikeStationsIndex(contentResolver);
+		}
+		return bikeStationsIndex;
+	}
+
+	private static BikeStationsIndex findBikeStationsIndex(ContentResolver contentResolver) {
+		MyLog.v(TAG, "findBikeStationsIndex()");
+		Cursor cursor = null;
+		try {
+			final long startTime = System.currentTimeMillis();
+			cursor = contentResolver.query(BixiStore.BikeStation.CONTENT_URI, PROJECTION_BIKE_STATION_LOCATION, null, null, null);
+			if (cursor == null || cursor.getCount() == 0 || !cursor.moveToFirst()) {
+				return null; // try again later
+			}
+			final int count = cursor.getCount();
+			String[] terminalNames = new String[count];
+			int[] positions = new int[count];
+			double[] lats = new double[count];
+			double[] lngs = new double[count];
+			int size = 0;
+			do {
+				terminalNames[size] = cursor.getString(0);
+				positions[size] = size;
+				lats[size] = cursor.getDouble(1);
+				lngs[size] = cursor.getDouble(2);
+				size++;
+			} while (cursor.moveToNext() && size < count);
+			final StopKdTree kdTree = StopKdTree.build(positions, lats, lngs, size);
+			MyLog.d(TAG, "Bike stations index built in %s ms (%s bike stations).", System.currentTimeMillis() - startTime, size);
+			return new BikeStationsIndex(terminalNames, lats, lngs, size, kdTree);
+		} catch (Throwable t) {
+			MyLog.w(TAG, t, "Error!");
+			return null;
+		} finally {
+			if (cursor != null) {
+				cursor.close();
+			}
+		}
+	}
+
+	/**
+	 * The 2-d tree of the bike stations coordinates (the IDs are the positions in the terminal names array).
+	 */
+	private static class BikeStationsIndex {
+
+		private final String[] terminalNames;
+
+		private final double[] lats;
+
+		private final double[] lngs;
+
+		/**
+		 * The positions in the terminal names array by terminal name.
+		 */
+		private final Map<String, Integer> positions;
+
+		private final StopKdTree kdTree;
+
+		public BikeStationsIndex(String[] terminalNames, double[] lats, double[] lngs, int size, StopKdTree kdTree) {
+			this.terminalNames = terminalNames;
+			this.lats = lats;
+			this.lngs = lngs;
+			this.positions = new HashMap<String, Integer>(size);
+			for (int i = 0; i < size; i++) {
+				this.positions.put(terminalNames[i], i);
+			}
+			this.kdTree = kdTree;
+		}
+	}
 }
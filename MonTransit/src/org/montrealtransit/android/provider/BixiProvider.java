@@ -1,6 +1,10 @@
 package org.montrealtransit.android.provider;
 
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 
 import org.montrealtransit.android.Constant;
 import org.montrealtransit.android.LocationUtils;
@@ -12,6 +16,7 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
@@ -35,6 +40,7 @@ public class BixiProvider extends ContentProvider {
 	private static final int BIKE_STATION_IDS = 3;
 	@Deprecated
 	private static final int BIKE_STATION_LOC_LAT_LNG = 4;
+	private static final int BIKE_STATION_SYNC = 5;
 
 	/**
 	 * The URI matcher filter the content URI calls.
@@ -46,6 +52,7 @@ public class BixiProvider extends ContentProvider {
 		URI_MATCHER.addURI(AUTHORITY, "bikestations/#", BIKE_STATION_ID);
 		URI_MATCHER.addURI(AUTHORITY, "bikestations/*", BIKE_STATION_IDS);
 		URI_MATCHER.addURI(AUTHORITY, "bikestationsloc/*", BIKE_STATION_LOC_LAT_LNG);
+		URI_MATCHER.addURI(AUTHORITY, "bikestationssync", BIKE_STATION_SYNC);
 	}
 
 	/**
@@ -192,6 +199,9 @@ public class BixiProvider extends ContentProvider {
 		MyLog.v(TAG, "bulkInsert(%s)", values.length);
 		int count = 0;
 		switch (URI_MATCHER.match(uri)) {
+		case BIKE_STATION_SYNC:
+			MyLog.d(TAG, "INSERT_BULK>BIKE_STATION_SYNC");
+			return syncBikeStations(values); // notified at the end of the sync
 		case BIKE_STATION:
 			MyLog.d(TAG, "INSERT_BULK>BIKE_STATION");
 			SQLiteDatabase db = null;
@@ -227,12 +237,170 @@ public class BixiProvider extends ContentProvider {
 		return count;
 	}
 
+	/**
+	 * Synchronize a batch of new bike stations in 1 transaction (by terminal name): insert the new bike stations and update the changed columns of
+	 * the existing bike stations.
+	 * @param values the new bike stations (unique terminal names)
+	 * @return the number of bike stations inserted or updated or -1 if the batch failed (rolled back)
+	 */
+	private int syncBikeStations(ContentValues[] values) {
+		int inserted = 0;
+		int updated = 0;
+		int unchanged = 0;
+		SQLiteDatabase db = null;
+		Cursor cursor = null;
+		try {
+			db = getDBHelper(getContext()).getWritableDatabase();
+			db.beginTransaction(); // start the transaction
+			// read the current bike stations of the batch
+			String[] terminalNames = new String[values.length];
+			StringBuilder inSb = new StringBuilder();
+			for (int i = 0; i < values.length; i++) {
+				terminalNames[i] = values[i].getAsString(BixiStore.BikeStation.TERMINAL_NAME);
+				inSb.append(i == 0 ? "?" : ",?");
+			}
+			Map<String, ContentValues> currentBikeStations = new HashMap<String, ContentValues>();
+			cursor = db.query(BixiDbHelper.T_BIKE_STATIONS, null, BixiDbHelper.T_BIKE_STATIONS_K_TERMINAL_NAME + " IN (" + inSb + ")", terminalNames,
+					null, null, null);
+			if (cursor != null && cursor.moveToFirst()) {
+				do {
+					ContentValues currentValues = new ContentValues();
+					DatabaseUtils.cursorRowToContentValues(cursor, currentValues);
+					currentBikeStations.put(currentValues.getAsString(BixiStore.BikeStation.TERMINAL_NAME), currentValues);
+				} while (cursor.moveToNext());
+			}
+			// insert or update the new bike stations
+			for (ContentValues newValues : values) {
+				final String terminalName = newValues.getAsString(BixiStore.BikeStation.TERMINAL_NAME);
+				final ContentValues currentValues = currentBikeStations.get(terminalName);
+				if (currentValues == null) {
+					if (db.insert(BixiDbHelper.T_BIKE_STATIONS, BixiDbHelper.T_BIKE_STATIONS_K_ID, newValues) > 0) {
+						inserted++;
+					}
+					continue;
+				}
+				ContentValues changedValues = new ContentValues(newValues);
+				for (Map.Entry<String, Object> newValue : newValues.valueSet()) {
+					if (isSameValue(newValue.getValue(), currentValues.getAsString(newValue.getKey()))) {
+						changedValues.remove(newValue.getKey());
+					}
+				}
+				if (changedValues.size() == 0) {
+					unchanged++;
+					continue;
+				}
+				updated += db.update(BixiDbHelper.T_BIKE_STATIONS, changedValues, BixiDbHelper.T_BIKE_STATIONS_K_TERMINAL_NAME + "=?",
+						new String[] { terminalName });
+			}
+			db.setTransactionSuccessful();// mark the transaction as successful
+			MyLog.d(TAG, "Bike stations sync successful! (inserted:%s, updated:%s, unchanged:%s)", inserted, updated, unchanged);
+		} catch (Exception e) {
+			MyLog.w(TAG, e, "ERROR while synchronizing the bike stations!");
+			return -1; // rolled back
+		} finally {
+			if (cursor != null) {
+				cursor.close();
+			}
+			try {
+				if (db != null) {
+					db.endTransaction(); // end the transaction
+				}
+			} catch (Exception e) {
+				MyLog.w(TAG, e, "ERROR while ending the transaction!");
+			}
+		}
+		return inserted + updated;
+	}
+
+	/**
+	 * Delete the bike stations removed from the source in 1 transaction.
+	 * @param syncedTerminalNames the terminal names of all the new bike stations
+	 * @return the number of bike stations deleted
+	 */
+	private int deleteRemovedBikeStations(String[] syncedTerminalNames) {
+		if (syncedTerminalNames == null || syncedTerminalNames.length == 0) {
+			MyLog.w(TAG, "No bike station synchronized, removed bike stations NOT deleted!");
+			return 0;
+		}
+		int deleted = 0;
+		SQLiteDatabase db = null;
+		Cursor cursor = null;
+		try {
+			db = getDBHelper(getContext()).getWritableDatabase();
+			db.beginTransaction(); // start the transaction
+			Set<String> synced = new HashSet<String>(Arrays.asList(syncedTerminalNames));
+			Set<String> removed = new HashSet<String>();
+			cursor = db.query(BixiDbHelper.T_BIKE_STATIONS, new String[] { BixiDbHelper.T_BIKE_STATIONS_K_TERMINAL_NAME }, null, null, null, null, null);
+			if (cursor != null && cursor.moveToFirst()) {
+				do {
+					final String terminalName = cursor.getString(0);
+					if (!synced.contains(terminalName)) {
+						removed.add(terminalName);
+					}
+				} while (cursor.moveToNext());
+			}
+			for (String terminalName : removed) {
+				if (terminalName == null) {
+					deleted += db.delete(BixiDbHelper.T_BIKE_STATIONS, BixiDbHelper.T_BIKE_STATIONS_K_TERMINAL_NAME + " IS NULL", null);
+				} else {
+					deleted += db.delete(BixiDbHelper.T_BIKE_STATIONS, BixiDbHelper.T_BIKE_STATIONS_K_TERMINAL_NAME + "=?", new String[] { terminalName });
+				}
+			}
+			db.setTransactionSuccessful();// mark the transaction as successful
+			MyLog.d(TAG, "Removed bike stations deleted! (deleted:%s, kept:%s)", deleted, synced.size());
+		} catch (Exception e) {
+			MyLog.w(TAG, e, "ERROR while deleting the removed bike stations!");
+			return 0; // rolled back
+		} finally {
+			if (cursor != null) {
+				cursor.close();
+			}
+			try {
+				if (db != null) {
+					db.endTransaction(); // end the transaction
+				}
+			} catch (Exception e) {
+				MyLog.w(TAG, e, "ERROR while ending the transaction!");
+			}
+		}
+		return deleted;
+	}
+
+	/**
+	 * @param newValue the new value (boolean stored as 1 or 0)
+	 * @param currentValue the current value read from the database
+	 * @return true if the value didn't change
+	 */
+	private static boolean isSameValue(Object newValue, String currentValue) {
+		if (newValue == null || currentValue == null) {
+			return newValue == null && currentValue == null;
+		}
+		if (newValue instanceof Boolean) {
+			return currentValue.equals(((Boolean) newValue).booleanValue() ? "1" : "0");
+		}
+		if (newValue instanceof Double || newValue instanceof Float) {
+			try {
+				return ((Number) newValue).doubleValue() == Double.parseDouble(currentValue);
+			} catch (NumberFormatException nfe) {
+				return false;
+			}
+		}
+		return currentValue.equals(newValue.toString());
+	}
+
 	@Override
 	public synchronized int delete(Uri uri, String selection, String[] selectionArgs) {
 		MyLog.v(TAG, "delete(%s, %s, %s)", uri.getPath(), selection, Arrays.toString(selectionArgs));
 		SQLiteDatabase db = getDBHelper(getContext()).getWritableDatabase();
 		int count = 0;
 		switch (URI_MATCHER.match(uri)) {
+		case BIKE_STATION_SYNC:
+			MyLog.d(TAG, "DELETE>BIKE_STATION_SYNC");
+			count = deleteRemovedBikeStations(selectionArgs);
+			if (count > 0) {
+				getContext().getContentResolver().notifyChange(BixiStore.BikeStation.CONTENT_URI, null);
+			}
+			return count;
 		case BIKE_STATION:
 			MyLog.d(TAG, "DELETE>BIKE_STATION");
 			count = db.delete(BixiDbHelper.T_BIKE_STATIONS, selection, null);
@@ -36,6 +36,10 @@ public class BixiStore {
 		 * The content URI for the location.
 		 */
 		public static final Uri CONTENT_URI_LOC = Uri.parse("content://" + AUTHORITY + "/bikestationsloc");
+		/**
+		 * The content URI to synchronize all the bike stations (bulk insert of all the new bike stations).
+		 */
+		public static final Uri CONTENT_URI_SYNC = Uri.parse("content://" + AUTHORITY + "/bikestationssync");
 		/**
 		 * The MIME type of {@link #CONTENT_URI} providing a directory of bike station entries.
 		 */
@@ -24,7 +24,7 @@ public class DataDbHelper extends SQLiteOpenHelper {
 	/**
 	 * The database version use to manage database changes.
 	 */
-	public static final int DATABASE_VERSION = 5;
+	public static final int DATABASE_VERSION = 6;
 
 	/**
 	 * The favorites table.
@@ -210,6 +210,21 @@ public class DataDbHelper extends SQLiteOpenHelper {
 	 */
 	private static final String DATABASE_CREATE_T_CACHE = "create table " + T_CACHE + " (" + T_CACHE_K_ID + " integer primary key autoincrement, "
 			+ T_CACHE_K_DATE + " integer, " + T_CACHE_K_TYPE + " integer, " + T_CACHE_K_FK_ID + " text," + T_CACHE_K_OBJECT + " text);";
+	/**
+	 * Cache table unique index (1 entry per type & FK ID, the inserts replace the existing entry).
+	 */
+	private static final String DATABASE_CREATE_T_CACHE_INDEX_TYPE_FK_ID = "CREATE UNIQUE INDEX IF NOT EXISTS " + T_CACHE + "_" + T_CACHE_K_TYPE + "_"
+			+ T_CACHE_K_FK_ID + "_idx ON " + T_CACHE + " (" + T_CACHE_K_TYPE + ", " + T_CACHE_K_FK_ID + ");";
+	/**
+	 * Cache table date index (eviction).
+	 */
+	private static final String DATABASE_CREATE_T_CACHE_INDEX_DATE = "CREATE INDEX IF NOT EXISTS " + T_CACHE + "_" + T_CACHE_K_DATE + "_idx ON "
+			+ T_CACHE + " (" + T_CACHE_K_DATE + ");";
+	/**
+	 * Delete the duplicated cache entries (keep the most recent one) before creating the unique index.
+	 */
+	private static final String DATABASE_DELETE_T_CACHE_DUPLICATES = "DELETE FROM " + T_CACHE + " WHERE " + T_CACHE_K_ID + " NOT IN (SELECT MAX("
+			+ T_CACHE_K_ID + ") FROM " + T_CACHE + " GROUP BY " + T_CACHE_K_TYPE + ", " + T_CACHE_K_FK_ID + ");";
 
 	/**
 	 * Default constructor.
@@ -227,6 +242,8 @@ public class DataDbHelper extends SQLiteOpenHelper {
 		db.execSQL(DATABASE_CREATE_T_TWITTER_API);
 		db.execSQL(DATABASE_CREATE_T_SERVICE_STATUS);
 		db.execSQL(DATABASE_CREATE_T_CACHE);
+		db.execSQL(DATABASE_CREATE_T_CACHE_INDEX_TYPE_FK_ID);
+		db.execSQL(DATABASE_CREATE_T_CACHE_INDEX_DATE);
 	}
 
 	@Override
@@ -250,6 +267,11 @@ public class DataDbHelper extends SQLiteOpenHelper {
 			MyLog.v(TAG, "add the Cache table");
 			// just create the Cache table
 			db.execSQL(DATABASE_CREATE_T_CACHE);
+		case 5:
+			MyLog.v(TAG, "add the Cache table indexes");
+			db.execSQL(DATABASE_DELETE_T_CACHE_DUPLICATES);
+			db.execSQL(DATABASE_CREATE_T_CACHE_INDEX_TYPE_FK_ID);
+			db.execSQL(DATABASE_CREATE_T_CACHE_INDEX_DATE);
 			break;
 		default:
 			MyLog.w(TAG, "Old user data destroyed!");
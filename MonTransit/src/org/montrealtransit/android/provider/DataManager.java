@@ -695,6 +695,36 @@ public class DataManager {
 		return count > 0;
 	}
 
+	/**
+	 * Delete one batch of cache entries from the content provider: the entries older than the date first and then the oldest entries above the
+	 * maximum number of entries.
+	 * @param contentResolver the content resolver
+	 * @param date the date in seconds
+	 * @param maxEntries the maximum number of entries
+	 * @param batchSize the maximum number of entries deleted
+	 * @return the number of deleted entries
+	 */
+	public static int evictCache(ContentResolver contentResolver, int date, int maxEntries, int batchSize) {
+		MyLog.v(TAG, "evictCache(%s, %s, %s)", date, maxEntries, batchSize);
+		Uri uri = Uri.withAppendedPath(Cache.CONTENT_URI, Cache.URI_EVICT).buildUpon() //
+				.appendQueryParameter(Cache.URI_EVICT_PARAM_DATE, String.valueOf(date)) //
+				.appendQueryParameter(Cache.URI_EVICT_PARAM_MAX_ENTRIES, String.valueOf(maxEntries)) //
+				.appendQueryParameter(Cache.URI_EVICT_PARAM_BATCH_SIZE, String.valueOf(batchSize)) //
+				.build();
+		return contentResolver.delete(uri, null, null);
+	}
+
+	/**
+	 * Save a cache object in the content provider (replace the existing cache object with the same type & FK ID).
+	 * @param contentResolver the content resolver
+	 * @param cache the cache object
+	 * @return true if saved
+	 */
+	public static boolean saveCache(ContentResolver contentResolver, Cache cache) {
+		MyLog.v(TAG, "saveCache()");
+		return contentResolver.insert(Cache.CONTENT_URI, cache.getContentValues()) != null;
+	}
+
 	/**
 	 * Delete all cache entries from the content provider.
 	 * @param contentResolver the content resolver
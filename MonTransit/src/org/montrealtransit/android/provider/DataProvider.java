@@ -13,6 +13,7 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
@@ -54,6 +55,7 @@ public class DataProvider extends ContentProvider {
 	private static final int CACHE_ID = 14;
 	private static final int CACHE_FKID = 15;
 	private static final int CACHE_DATE = 16;
+	private static final int CACHE_EVICT = 17;
 
 	/**
 	 * The URI matcher filter the content URI calls.
@@ -62,6 +64,7 @@ public class DataProvider extends ContentProvider {
 	static {
 		URI_MATCHER = new UriMatcher(UriMatcher.NO_MATCH);
 		URI_MATCHER.addURI(AUTHORITY, "cache", CACHE);
+		URI_MATCHER.addURI(AUTHORITY, "cache/" + DataStore.Cache.URI_EVICT, CACHE_EVICT); // before "cache/*"
 		URI_MATCHER.addURI(AUTHORITY, "cache/#", CACHE_ID);
 		URI_MATCHER.addURI(AUTHORITY, "cache/*", CACHE_FKID);
 		URI_MATCHER.addURI(AUTHORITY, "cache/#/date", CACHE_DATE);
@@ -260,6 +263,7 @@ public class DataProvider extends ContentProvider {
 			return DataStore.ServiceStatus.CONTENT_ITEM_TYPE;
 		case CACHE:
 		case CACHE_DATE:
+		case CACHE_EVICT:
 			return DataStore.Cache.CONTENT_TYPE;
 		case CACHE_ID:
 		case CACHE_FKID:
@@ -318,6 +322,12 @@ public class DataProvider extends ContentProvider {
 			MyLog.v(TAG, "DELETE>CACHE_DATE");
 			count = db.delete(DataDbHelper.T_CACHE, DataDbHelper.T_CACHE + "." + DataDbHelper.T_CACHE_K_DATE + " < " + uri.getPathSegments().get(1), null);
 			break;
+		case CACHE_EVICT:
+			MyLog.v(TAG, "DELETE>CACHE_EVICT");
+			count = evictCache(db, Integer.parseInt(uri.getQueryParameter(DataStore.Cache.URI_EVICT_PARAM_DATE)),
+					Integer.parseInt(uri.getQueryParameter(DataStore.Cache.URI_EVICT_PARAM_MAX_ENTRIES)),
+					Integer.parseInt(uri.getQueryParameter(DataStore.Cache.URI_EVICT_PARAM_BATCH_SIZE)));
+			break;
 		default:
 			throw new IllegalArgumentException("Unknown URI (delete): " + uri);
 		}
@@ -362,7 +372,8 @@ public class DataProvider extends ContentProvider {
 			}
 			break;
 		case CACHE:
-			long cacheId = db.insert(DataDbHelper.T_CACHE, DataDbHelper.T_CACHE_K_OBJECT, values);
+			// upsert: replace the existing entry with the same type & FK ID (unique index)
+			long cacheId = db.replace(DataDbHelper.T_CACHE, DataDbHelper.T_CACHE_K_OBJECT, values);
 			if (cacheId > 0) {
 				insertUri = ContentUris.withAppendedId(DataStore.Cache.CONTENT_URI, cacheId);
 			}
@@ -378,6 +389,24 @@ public class DataProvider extends ContentProvider {
 		}
 	}
 
+	/**
+	 * Delete one batch of cache entries: the entries older than the date first and then the oldest entries above the maximum number of entries.
+	 * @return the number of deleted entries
+	 */
+	private static int evictCache(SQLiteDatabase db, int date, int maxEntries, int batchSize) {
+		int count = db.delete(DataDbHelper.T_CACHE, DataDbHelper.T_CACHE_K_ID + " IN (SELECT " + DataDbHelper.T_CACHE_K_ID + " FROM " + DataDbHelper.T_CACHE
+				+ " WHERE " + DataDbHelper.T_CACHE_K_DATE + " < " + date + " ORDER BY " + DataDbHelper.T_CACHE_K_DATE + " LIMIT " + batchSize + ")", null);
+		if (count < batchSize) {
+			final long extraEntries = DatabaseUtils.queryNumEntries(db, DataDbHelper.T_CACHE) - maxEntries;
+			if (extraEntries > 0) {
+				count += db.delete(DataDbHelper.T_CACHE, DataDbHelper.T_CACHE_K_ID + " IN (SELECT " + DataDbHelper.T_CACHE_K_ID + " FROM "
+						+ DataDbHelper.T_CACHE + " ORDER BY " + DataDbHelper.T_CACHE_K_DATE + " LIMIT " + Math.min(extraEntries, batchSize - count) + ")",
+						null);
+			}
+		}
+		return count;
+	}
+
 	/**
 	 * The SQLite open helper object.
 	 */
@@ -762,6 +762,17 @@ public class DataStore {
 		 * Content URI for cache date.
 		 */
 		public static final String URI_DATE = "date";
+		/**
+		 * Content URI for cache eviction.
+		 */
+		public static final String URI_EVICT = "evict";
+		/**
+		 * The eviction URI parameters: the date (in seconds) before which entries are too old, the maximum number of entries and the maximum number of
+		 * entries deleted at once.
+		 */
+		public static final String URI_EVICT_PARAM_DATE = "date";
+		public static final String URI_EVICT_PARAM_MAX_ENTRIES = "max";
+		public static final String URI_EVICT_PARAM_BATCH_SIZE = "batch";
 		/**
 		 * The MIME type of {@link #CONTENT_URI} providing a directory of cache entries.
 		 */
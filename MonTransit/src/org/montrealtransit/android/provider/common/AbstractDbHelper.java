@@ -1,7 +1,6 @@
 package org.montrealtransit.android.provider.common;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.util.Arrays;
 
 import org.montrealtransit.android.MyLog;
@@ -79,14 +78,51 @@ public abstract class AbstractDbHelper extends SQLiteOpenHelper {
 			+ T_TRIP_STOPS_K_STOP_ID + "," + T_TRIP_STOPS_K_STOP_SEQUENCE + ") VALUES(%s)";
 	public static final String T_TRIP_STOPS_SQL_DROP = SqlUtils.getSQLDropIfExistsQuery(T_TRIP_STOPS);
 
+	public static final String T_TRIP_STOPS_IDX_TRIP_ID_STOP_SEQUENCE_SQL_CREATE = SqlUtils.getSQLCreateIndexQuery(T_TRIP_STOPS, T_TRIP_STOPS_K_TRIP_ID,
+			T_TRIP_STOPS_K_STOP_SEQUENCE);
+	public static final String T_TRIP_STOPS_IDX_STOP_ID_SQL_CREATE = SqlUtils.getSQLCreateIndexQuery(T_TRIP_STOPS, T_TRIP_STOPS_K_STOP_ID);
+	public static final String T_STOP_IDX_CODE_SQL_CREATE = SqlUtils.getSQLCreateIndexQuery(T_STOP, T_STOP_K_CODE);
+	public static final String T_STOP_IDX_LAT_LNG_SQL_CREATE = SqlUtils.getSQLCreateIndexQuery(T_STOP, T_STOP_K_LAT, T_STOP_K_LNG);
+	public static final String T_TRIP_IDX_ROUTE_ID_SQL_CREATE = SqlUtils.getSQLCreateIndexQuery(T_TRIP, T_TRIP_K_ROUTE_ID);
+
+	/**
+	 * The secondary indexes used by the {@link AbstractProvider} joins, created after the data is deployed.
+	 */
+	public static final String[] INDEXES_SQL_CREATE = new String[] { T_TRIP_STOPS_IDX_TRIP_ID_STOP_SEQUENCE_SQL_CREATE, T_TRIP_STOPS_IDX_STOP_ID_SQL_CREATE,
+			T_STOP_IDX_CODE_SQL_CREATE, T_STOP_IDX_LAT_LNG_SQL_CREATE, T_TRIP_IDX_ROUTE_ID_SQL_CREATE };
+
 	private Context context;
 
+	private boolean prebuiltDbChecked = false;
+
 	public AbstractDbHelper(Context context, String name, CursorFactory factory, int version) {
 		super(context, name, factory, version);
 		MyLog.v(TAG, "AbstractDbHelper(%s, %s)", name, version);
 		this.context = context;
 	}
 
+	@Override
+	public synchronized SQLiteDatabase getReadableDatabase() {
+		deployPrebuiltDbIfNecessary();
+		return super.getReadableDatabase();
+	}
+
+	@Override
+	public synchronized SQLiteDatabase getWritableDatabase() {
+		deployPrebuiltDbIfNecessary();
+		return super.getWritableDatabase();
+	}
+
+	/**
+	 * Swap in the packaged DB before opening the DB so onCreate()/onUpgrade() only run if there is no usable packaged DB.
+	 */
+	private void deployPrebuiltDbIfNecessary() {
+		if (!this.prebuiltDbChecked) {
+			this.prebuiltDbChecked = true;
+			PrebuiltDbDeployer.deployIfNecessary(this.context, getDbName(), getDbVersion());
+		}
+	}
+
 	@Override
 	public void onCreate(SQLiteDatabase db) {
 		MyLog.v(TAG, "onCreate()");
@@ -143,6 +179,39 @@ public abstract class AbstractDbHelper extends SQLiteOpenHelper {
 		initDbTableWithRetry(db, T_TRIP, T_TRIP_SQL_CREATE, T_TRIP_SQL_INSERT, T_TRIP_SQL_DROP, getTripFiles());
 		initDbTableWithRetry(db, T_STOP, T_STOP_SQL_CREATE, T_STOP_SQL_INSERT, T_STOP_SQL_DROP, getStopFiles());
 		initDbTableWithRetry(db, T_TRIP_STOPS, T_TRIP_STOPS_SQL_CREATE, T_TRIP_STOPS_SQL_INSERT, T_TRIP_STOPS_SQL_DROP, getTripStopsFiles());
+		initDbIndexes(db); // after the data to build each index once
+	}
+
+	/**
+	 * Create the missing indexes (DB deployed by an older version of the app).
+	 */
+	@Override
+	public void onOpen(SQLiteDatabase db) {
+		super.onOpen(db);
+		if (!db.isReadOnly()) {
+			initDbIndexes(db);
+		}
+	}
+
+	private void initDbIndexes(SQLiteDatabase db) {
+		MyLog.v(TAG, "initDbIndexes()");
+		long startTime = System.currentTimeMillis();
+		try {
+			db.beginTransaction();
+			for (String sqlCreateIndex : INDEXES_SQL_CREATE) {
+				db.execSQL(sqlCreateIndex); // create if not exists
+			}
+			db.setTransactionSuccessful();
+		} catch (Exception e) {
+			MyLog.w(TAG, e, "ERROR while creating the database '%s' indexes!", getDbName());
+		} finally {
+			try {
+				db.endTransaction();
+			} catch (Exception e) {
+				MyLog.w(TAG, e, "ERROR while closing the database '%s' transaction!", getDbName());
+			}
+		}
+		MyLog.d(TAG, "DB %s indexes ready in %s ms.", getDbName(), System.currentTimeMillis() - startTime);
 	}
 
 	private void initDbTableWithRetry(SQLiteDatabase db, String table, String sqlCreate, String sqlInsert, String sqlDrop, int[] files) {
@@ -161,7 +230,8 @@ public abstract class AbstractDbHelper extends SQLiteOpenHelper {
 
 	private boolean initDbTable(SQLiteDatabase db, String table, String sqlCreate, String sqlInsert, String sqlDrop, int[] files) {
 		MyLog.v(TAG, "initDbTable(%s)", table);
-		BufferedReader br = null;
+		InputStream is = null;
+		DbBulkLoader loader = null;
 		try {
 			db.beginTransaction();
 			// MyLog.d(TAG, "create tables");
@@ -169,14 +239,13 @@ public abstract class AbstractDbHelper extends SQLiteOpenHelper {
 			db.execSQL(sqlDrop); // drop if exists
 			db.execSQL(sqlCreate); // create if not exists
 			// deploy data
-			String line;
+			loader = new DbBulkLoader(db, table, sqlInsert);
 			for (int file : files) {
 				// MyLog.d(TAG, "deploy data from " + fileId);
-				br = new BufferedReader(new InputStreamReader(this.context.getResources().openRawResource(file), "UTF8"), 8192);
-				while ((line = br.readLine()) != null) {
-					// db.execSQL(line);
-					db.execSQL(String.format(sqlInsert, line));
-				}
+				is = this.context.getResources().openRawResource(file);
+				loader.load(is);
+				is.close();
+				is = null;
 			}
 			// mark the transaction as successful
 			db.setTransactionSuccessful();
@@ -188,6 +257,9 @@ public abstract class AbstractDbHelper extends SQLiteOpenHelper {
 			// TODO handles no space left on the device
 			return false;
 		} finally {
+			if (loader != null) {
+				loader.close();
+			}
 			try {
 				if (db != null) {
 					db.endTransaction(); // end the transaction
@@ -196,8 +268,8 @@ public abstract class AbstractDbHelper extends SQLiteOpenHelper {
 				MyLog.w(TAG, e, "ERROR while closing the new database '%s'!", getDbName());
 			}
 			try {
-				if (br != null) {
-					br.close();
+				if (is != null) {
+					is.close();
 				}
 			} catch (Exception e) {
 				MyLog.w(TAG, e, "ERROR while closing the input stream!");
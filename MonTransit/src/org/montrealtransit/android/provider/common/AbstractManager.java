@@ -1,8 +1,12 @@
 package org.montrealtransit.android.provider.common;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.montrealtransit.android.LocationUtils;
@@ -26,6 +30,7 @@ import android.database.Cursor;
 import android.location.Location;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.text.TextUtils;
 import android.view.Gravity;
 import android.widget.Toast;
 
@@ -52,6 +57,8 @@ public class AbstractManager {
 	private static final String[] PROJECTION_STOP = new String[] { StopColumns.T_STOP_K_ID, StopColumns.T_STOP_K_CODE, StopColumns.T_STOP_K_NAME,
 			StopColumns.T_STOP_K_LAT, StopColumns.T_STOP_K_LNG };
 
+	private static final String[] PROJECTION_STOP_LOCATION = new String[] { StopColumns.T_STOP_K_ID, StopColumns.T_STOP_K_LAT, StopColumns.T_STOP_K_LNG };
+
 	private static final String[] PROJECTION_STOP_CODE = new String[] { StopColumns.T_STOP_K_CODE };
 
 	private static final String[] PROJECTION_ROUTE_SHORT_NAME = new String[] { RouteColumns.T_ROUTE_K_SHORT_NAME };
@@ -517,42 +524,65 @@ public class AbstractManager {
 		return routeStops;
 	}
 
-	public static List<RouteStop> findRouteStopsWithLatLngList(Context context, String[] authorities, double lat, double lng, boolean filterByUID) {
-		MyLog.v(TAG, "findRouteStopsWithLatLngList(%s,%s)", lat, lng);
-		List<RouteStop> routeStops = null;
-		double aroundDiff = LocationUtils.MIN_AROUND_DIFF;
-		do {
-			// MyLog.d(TAG, "findRouteStopsWithLocationList() > try with: %s", aroundDiff);
-			// load route trip stops with location (square)
-			routeStops = new ArrayList<RouteStop>();
-			for (String authority : authorities) {
-				final List<RouteStop> newRouteStops = findRouteStopsWithLatLngList(context, Utils.newContentUri(authority), lat, lng, aroundDiff, filterByUID);
-				if (newRouteStops != null) {
-					routeStops.addAll(newRouteStops);
+	/**
+	 * The closest stops index of each authority.
+	 */
+	private static Map<String, StopSpatialIndex> stopSpatialIndexes = new HashMap<String, StopSpatialIndex>();
+
+	/**
+	 * @return the closest stops index of the authority (built on the first call and when the DB version changes) or <b>NULL</b> if the stops can't be
+	 *         read (DB not ready...)
+	 */
+	public static StopSpatialIndex getStopSpatialIndex(Context context, Uri contentUri) {
+		synchronized (stopSpatialIndexes) {
+			StopSpatialIndex stopSpatialIndex = stopSpatialIndexes.get(contentUri.getAuthority());
+			if (stopSpatialIndex != null && stopSpatialIndex.isVersionCheckRequired()) {
+				final int dbVersion = findDbVersion(context, contentUri);
+				if (dbVersion != stopSpatialIndex.getDbVersion()) {
+					MyLog.d(TAG, "Stops index of %s outdated (DB version %s instead of %s).", contentUri.getAuthority(), dbVersion,
+							stopSpatialIndex.getDbVersion());
+					stopSpatialIndexes.remove(contentUri.getAuthority());
+					stopSpatialIndex = null;
+				} else {
+					stopSpatialIndex.setVersionChecked();
 				}
 			}
-			// update route trip stops distance
-			LocationUtils.updateDistance(routeStops, lat, lng);
-			// find maximum distance covered (circle)
-			float maxDistance = LocationUtils.getAroundCoveredDistance(lat, lng, aroundDiff);
-			// remove items out of the covered circle
-			LocationUtils.removeTooFar(routeStops, maxDistance);
-			// increment around for next try
-			aroundDiff += LocationUtils.INC_AROUND_DIFF;
-		} while (Utils.getCollectionSize(routeStops) <= Utils.MIN_NEARBY_LIST && aroundDiff < LocationUtils.MAX_AROUND_DIFF);
-		// MyLog.d(TAG, "findRouteStopsWithLocationList() > result count: %s", (routeStops == null ? null : routeStops.size()));
-		return routeStops;
+			if (stopSpatialIndex == null) {
+				stopSpatialIndex = findStopSpatialIndex(context, contentUri);
+				if (stopSpatialIndex != null) {
+					stopSpatialIndexes.put(contentUri.getAuthority(), stopSpatialIndex);
+				}
+			}
+			return stopSpatialIndex;
+		}
 	}
 
-	private static List<RouteStop> findRouteStopsWithLatLngList(Context context, Uri contentUri, double lat, double lng, double aroundDiff, boolean filterByUID) {
-		// MyLog.v(TAG, "findRouteStopsWithLatLngList(%s,%s)", lat, lng);
+	private static StopSpatialIndex findStopSpatialIndex(Context context, Uri contentUri) {
+		MyLog.v(TAG, "findStopSpatialIndex(%s)", contentUri.getAuthority());
 		showSetupRequiredIfNecessary(context, contentUri);
+		final int dbVersion = findDbVersion(context, contentUri);
 		Cursor cursor = null;
 		try {
-			String selection = LocationUtils.genAroundWhere(lat, lng, RouteTripStopColumns.T_STOP_K_LAT, RouteTripStopColumns.T_STOP_K_LNG, aroundDiff);
-			cursor = context.getContentResolver().query(getRouteTripStopUri(contentUri), PROJECTION_ROUTE_TRIP_STOP, selection, null,
-					RouteTripStopColumns.T_TRIP_STOPS_K_STOP_SEQUENCE + " ASC");
-			return getRouteStops(cursor, contentUri.getAuthority(), filterByUID);
+			final long startTime = System.currentTimeMillis();
+			cursor = context.getContentResolver().query(getStopUri(contentUri), PROJECTION_STOP_LOCATION, null, null, null);
+			if (cursor == null || cursor.getCount() == 0 || !cursor.moveToFirst()) {
+				return null; // try again later
+			}
+			final int count = cursor.getCount();
+			int[] stopIds = new int[count];
+			double[] lats = new double[count];
+			double[] lngs = new double[count];
+			int size = 0;
+			do {
+				stopIds[size] = cursor.getInt(0);
+				lats[size] = cursor.getDouble(1);
+				lngs[size] = cursor.getDouble(2);
+				size++;
+			} while (cursor.moveToNext() && size < count);
+			StopKdTree stopKdTree = StopKdTree.build(stopIds, lats, lngs, size);
+			MyLog.d(TAG, "Stops index of %s (DB version %s) built in %s ms (%s stops).", contentUri.getAuthority(), dbVersion, System.currentTimeMillis()
+					- startTime, size);
+			return new StopSpatialIndex(contentUri.getAuthority(), dbVersion, stopKdTree);
 		} catch (Throwable t) {
 			MyLog.w(TAG, t, "Error!");
 			return null;
@@ -563,72 +593,112 @@ public class AbstractManager {
 		}
 	}
 
-	public static List<RouteTripStop> findRouteTripStopsWithLocationList(Context context, String[] authorities, Location location, boolean filterByUID) {
-		MyLog.v(TAG, "findRouteTripStopsWithLocationList(%s)", LocationUtils.locationToString(location));
-		List<RouteTripStop> routeTripStops = null;
-		double aroundDiff = LocationUtils.MIN_AROUND_DIFF;
-		do {
-			// MyLog.d(TAG, "findRouteTripStopsWithLocationList() > try with: %s", aroundDiff);
-			// load route trip stops with location (square)
-			routeTripStops = new ArrayList<RouteTripStop>();
-			for (String authority : authorities) {
-				final List<RouteTripStop> newRouteTripStops = findRouteTripStopsWithLocationList(context, Utils.newContentUri(authority), location, aroundDiff,
-						filterByUID);
-				if (newRouteTripStops != null) {
-					routeTripStops.addAll(newRouteTripStops);
+	/**
+	 * @return the route trip stops of the closest stops of the authority (closest stop first, inside the largest area covered by the around search) or
+	 *         <b>NULL</b> if the stops can't be read
+	 */
+	private static List<RouteTripStop> findClosestRouteTripStopsList(Context context, Uri contentUri, double lat, double lng, int maxStops) {
+		final StopSpatialIndex stopSpatialIndex = getStopSpatialIndex(context, contentUri);
+		if (stopSpatialIndex == null) {
+			return null;
+		}
+		final float maxDistance = LocationUtils.getAroundCoveredDistance(lat, lng, LocationUtils.MAX_AROUND_DIFF);
+		final int[] stopIds = stopSpatialIndex.getStopKdTree().findClosest(lat, lng, maxStops, maxDistance);
+		// the result is built from this map (the shared cache may evict a stop before the end)
+		Map<Integer, List<RouteTripStop>> stopsRouteTripStops = new HashMap<Integer, List<RouteTripStop>>();
+		final List<Integer> missingStopIds = stopSpatialIndex.getRouteTripStops(stopIds, stopsRouteTripStops);
+		if (missingStopIds.size() > 0) {
+			// only read the stops new since the last location update
+			final List<RouteTripStop> newRouteTripStops = findRouteTripStopWithStopIdsList(context, contentUri, missingStopIds);
+			if (newRouteTripStops == null) {
+				return null;
+			}
+			Map<Integer, List<RouteTripStop>> newStopsRouteTripStops = new HashMap<Integer, List<RouteTripStop>>();
+			for (Integer stopId : missingStopIds) {
+				newStopsRouteTripStops.put(stopId, new ArrayList<RouteTripStop>());
+			}
+			for (RouteTripStop routeTripStop : newRouteTripStops) {
+				newStopsRouteTripStops.get(routeTripStop.stop.id).add(routeTripStop);
+			}
+			for (Map.Entry<Integer, List<RouteTripStop>> stopRouteTripStops : newStopsRouteTripStops.entrySet()) {
+				stopsRouteTripStops.put(stopRouteTripStops.getKey(),
+						stopSpatialIndex.putRouteTripStops(stopRouteTripStops.getKey(), stopRouteTripStops.getValue()));
+			}
+			MyLog.d(TAG, "Closest stops of %s: %s stops read, %s stops cached.", contentUri.getAuthority(), missingStopIds.size(), stopIds.length
+					- missingStopIds.size());
+		}
+		List<RouteTripStop> result = new ArrayList<RouteTripStop>();
+		for (int stopId : stopIds) {
+			final List<RouteTripStop> stopRouteTripStops = stopsRouteTripStops.get(stopId);
+			if (stopRouteTripStops != null) {
+				result.addAll(stopRouteTripStops);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Find the route trip stops of the closest stops (k-nearest stops from the in-memory stops index, no around search).
+	 * @param maxStops the maximum number of stops for each authority (the route trip stops of the N closest stops contain the N closest route trip
+	 *            stops)
+	 */
+	public static List<RouteTripStop> findClosestRouteTripStopsList(Context context, String[] authorities, double lat, double lng, int maxStops,
+			boolean filterByUID) {
+		MyLog.v(TAG, "findClosestRouteTripStopsList(%s,%s,%s)", lat, lng, maxStops);
+		List<RouteTripStop> routeTripStops = new ArrayList<RouteTripStop>();
+		Set<String> uids = new HashSet<String>();
+		for (String authority : authorities) {
+			final List<RouteTripStop> newRouteTripStops = findClosestRouteTripStopsList(context, Utils.newContentUri(authority), lat, lng, maxStops);
+			if (newRouteTripStops == null) {
+				continue;
+			}
+			for (RouteTripStop routeTripStop : newRouteTripStops) {
+				if (filterByUID && !uids.add(routeTripStop.getUID())) {
+					continue; // remove duplicates (same stop + route but different trip ID)
 				}
+				routeTripStops.add(routeTripStop);
 			}
-			// update route trip stops distance
-			LocationUtils.updateDistance(routeTripStops, location.getLatitude(), location.getLongitude());
-			// find maximum distance covered (circle)
-			float maxDistance = LocationUtils.getAroundCoveredDistance(location.getLatitude(), location.getLongitude(), aroundDiff);
-			// remove items out of the covered circle
-			LocationUtils.removeTooFar(routeTripStops, maxDistance);
-			// increment around for next try
-			aroundDiff += LocationUtils.INC_AROUND_DIFF;
-		} while (Utils.getCollectionSize(routeTripStops) <= Utils.MIN_NEARBY_LIST && aroundDiff < LocationUtils.MAX_AROUND_DIFF);
-		// MyLog.d(TAG, "findRouteTripStopsWithLocationList() > result count: %s", (routeTripStops == null ? null : routeTripStops.size()));
+		}
+		LocationUtils.updateDistance(routeTripStops, lat, lng);
 		return routeTripStops;
 	}
 
-	public static List<RouteTripStop> findRouteTripStopsWithLatLngList(Context context, String[] authorities, double lat, double lng, boolean filterByUID) {
-		MyLog.v(TAG, "findRouteTripStopsWithLatLngList(%s,%s)", lat, lng);
-		List<RouteTripStop> routeTripStops = null;
-		double aroundDiff = LocationUtils.MIN_AROUND_DIFF;
-		do {
-			// MyLog.d(TAG, "findRouteTripStopsWithLatLngList() > try with: %s", aroundDiff);
-			// load route trip stops with location (square)
-			routeTripStops = new ArrayList<RouteTripStop>();
-			for (String authority : authorities) {
-				final List<RouteTripStop> newRouteTripStops = findRouteTripStopsWithLatLngList(context, Utils.newContentUri(authority), lat, lng, aroundDiff,
-						filterByUID);
-				if (newRouteTripStops != null) {
-					routeTripStops.addAll(newRouteTripStops);
+	/**
+	 * Find the route stops of the closest stops (k-nearest stops from the in-memory stops index, no around search).
+	 * @param maxStops the maximum number of stops for each authority
+	 */
+	public static List<RouteStop> findClosestRouteStopsList(Context context, String[] authorities, double lat, double lng, int maxStops, boolean filterByUID) {
+		MyLog.v(TAG, "findClosestRouteStopsList(%s,%s,%s)", lat, lng, maxStops);
+		List<RouteStop> routeStops = new ArrayList<RouteStop>();
+		Set<String> uids = new HashSet<String>();
+		for (String authority : authorities) {
+			final List<RouteTripStop> newRouteTripStops = findClosestRouteTripStopsList(context, Utils.newContentUri(authority), lat, lng, maxStops);
+			if (newRouteTripStops == null) {
+				continue;
+			}
+			for (RouteTripStop routeTripStop : newRouteTripStops) {
+				final RouteStop routeStop = new RouteStop(routeTripStop.authority, routeTripStop.route, null, routeTripStop.stop);
+				if (filterByUID && !uids.add(routeStop.getUID())) {
+					continue; // remove duplicates (same stop + route but different trip ID)
 				}
+				routeStops.add(routeStop);
 			}
-			// update route trip stops distance
-			LocationUtils.updateDistance(routeTripStops, lat, lng);
-			// find maximum distance covered (circle)
-			float maxDistance = LocationUtils.getAroundCoveredDistance(lat, lng, aroundDiff);
-			// remove items out of the covered circle
-			LocationUtils.removeTooFar(routeTripStops, maxDistance);
-			// increment around for next try
-			aroundDiff += LocationUtils.INC_AROUND_DIFF;
-		} while (Utils.getCollectionSize(routeTripStops) <= Utils.MIN_NEARBY_LIST && aroundDiff < LocationUtils.MAX_AROUND_DIFF);
-		// MyLog.d(TAG, "findRouteTripStopsWithLatLngList() > result count: %s", (routeTripStops == null ? null : routeTripStops.size()));
-		return routeTripStops;
+		}
+		LocationUtils.updateDistance(routeStops, lat, lng);
+		return routeStops;
 	}
 
-	private static List<RouteTripStop> findRouteTripStopsWithLatLngList(Context context, Uri contentUri, double lat, double lng, double aroundDiff,
-			boolean filterByUID) {
-		MyLog.v(TAG, "findRouteTripStopsWithLatLngList(%s,%s)", lat, lng);
-		showSetupRequiredIfNecessary(context, contentUri);
+	/**
+	 * @return all the route trip stops of the stops (sorted by route ID and stop sequence)
+	 */
+	private static List<RouteTripStop> findRouteTripStopWithStopIdsList(Context context, Uri contentUri, List<Integer> stopIds) {
+		MyLog.v(TAG, "findRouteTripStopWithStopIdsList(%s)", stopIds.size());
 		Cursor cursor = null;
 		try {
-			final String selection = LocationUtils.genAroundWhere(lat, lng, RouteTripStopColumns.T_STOP_K_LAT, RouteTripStopColumns.T_STOP_K_LNG, aroundDiff);
+			final String selection = RouteTripStopColumns.T_STOP_K_ID + " IN (" + TextUtils.join(",", stopIds) + ")";
 			final String sortOrder = RouteTripStopColumns.T_TRIP_K_ROUTE_ID + "," + RouteTripStopColumns.T_TRIP_STOPS_K_STOP_SEQUENCE + " ASC";
 			cursor = context.getContentResolver().query(getRouteTripStopUri(contentUri), PROJECTION_ROUTE_TRIP_STOP, selection, null, sortOrder);
-			return getRouteTripStops(cursor, contentUri.getAuthority(), filterByUID);
+			return getRouteTripStops(cursor, contentUri.getAuthority(), false);
 		} catch (Throwable t) {
 			MyLog.w(TAG, t, "Error!");
 			return null;
@@ -825,6 +895,77 @@ public class AbstractManager {
 		return tripStop;
 	}
 
+	private static final String[] PROJECTION_TRIP_LAST_STOP = new String[] { TripStopColumns.T_TRIP_K_ID, TripStopColumns.T_STOP_K_ID };
+
+	/**
+	 * Find the last stop of many trips in 1 query (instead of 1 {@link #findTripLastTripStop(Context, Uri, Integer)} query for each trip).
+	 * @return the last stop ID of each trip ID
+	 */
+	public static Map<Integer, Integer> findTripsLastStopIds(Context context, Uri contentUri, Collection<Integer> tripIds) {
+		MyLog.v(TAG, "findTripsLastStopIds(%s)", tripIds.size());
+		Map<Integer, Integer> result = new HashMap<Integer, Integer>();
+		if (tripIds.size() == 0) {
+			return result;
+		}
+		showSetupRequiredIfNecessary(context, contentUri);
+		Cursor cursor = null;
+		try {
+			final String tripStopSequence = AbstractDbHelper.T_TRIP_STOPS + "." + AbstractDbHelper.T_TRIP_STOPS_K_STOP_SEQUENCE;
+			final String tripStopTripId = AbstractDbHelper.T_TRIP_STOPS + "." + AbstractDbHelper.T_TRIP_STOPS_K_TRIP_ID;
+			// the last stop sequence of the trip is read from the (trip ID, stop sequence) index
+			final String selection = tripStopTripId + " IN (" + TextUtils.join(",", tripIds) + ") AND " + tripStopSequence + " = (SELECT MAX(last."
+					+ AbstractDbHelper.T_TRIP_STOPS_K_STOP_SEQUENCE + ") FROM " + AbstractDbHelper.T_TRIP_STOPS + " last WHERE last."
+					+ AbstractDbHelper.T_TRIP_STOPS_K_TRIP_ID + " = " + tripStopTripId + ")";
+			cursor = context.getContentResolver().query(getTripStopUri(contentUri), PROJECTION_TRIP_LAST_STOP, selection, null, null);
+			if (cursor != null && cursor.getCount() > 0) {
+				if (cursor.moveToFirst()) {
+					do {
+						result.put(cursor.getInt(0), cursor.getInt(1));
+					} while (cursor.moveToNext());
+				}
+			}
+		} catch (Throwable t) {
+			MyLog.w(TAG, t, "Error!");
+		} finally {
+			if (cursor != null) {
+				cursor.close();
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Remove the route trip stops where the trip ends (no departure) with 1 query for each authority.
+	 */
+	public static void removeLastTripStops(Context context, List<RouteTripStop> routeTripStops) {
+		MyLog.v(TAG, "removeLastTripStops(%s)", routeTripStops == null ? null : routeTripStops.size());
+		if (routeTripStops == null || routeTripStops.size() == 0) {
+			return;
+		}
+		Map<String, Set<Integer>> authorityTripIds = new HashMap<String, Set<Integer>>();
+		for (RouteTripStop routeTripStop : routeTripStops) {
+			Set<Integer> tripIds = authorityTripIds.get(routeTripStop.authority);
+			if (tripIds == null) {
+				tripIds = new HashSet<Integer>();
+				authorityTripIds.put(routeTripStop.authority, tripIds);
+			}
+			tripIds.add(routeTripStop.trip.id);
+		}
+		Map<String, Map<Integer, Integer>> authorityTripsLastStopIds = new HashMap<String, Map<Integer, Integer>>();
+		for (Map.Entry<String, Set<Integer>> tripIds : authorityTripIds.entrySet()) {
+			authorityTripsLastStopIds.put(tripIds.getKey(), findTripsLastStopIds(context, Utils.newContentUri(tripIds.getKey()), tripIds.getValue()));
+		}
+		Iterator<RouteTripStop> it = routeTripStops.iterator();
+		while (it.hasNext()) {
+			final RouteTripStop routeTripStop = it.next();
+			// IF last stop of the trip DO
+			final Integer lastStopId = authorityTripsLastStopIds.get(routeTripStop.authority).get(routeTripStop.trip.id);
+			if (lastStopId != null && routeTripStop.stop.id == lastStopId) {
+				it.remove();
+			}
+		}
+	}
+
 	// public static Stop findStopWithId(Context context, Uri contentUri, int id) {
 	// showSetupRequiredIfNecessary(context, contentUri);
 	// MyLog.v(TAG, "findStopWithId(%s)", id);
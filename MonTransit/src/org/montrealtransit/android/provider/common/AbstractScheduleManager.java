@@ -1,8 +1,13 @@
 package org.montrealtransit.android.provider.common;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
+import org.json.JSONArray;
 import org.json.JSONObject;
 import org.montrealtransit.android.MyLog;
 import org.montrealtransit.android.data.RouteTripStop;
@@ -33,9 +38,15 @@ public abstract class AbstractScheduleManager {
 
 	private static final String PING_CONTENT_DIRECTORY = "ping";
 	private static final String DEPARTURE_CONTENT_DIRECTORY = "departure";
+	private static final String STOP_DEPARTURE_CONTENT_DIRECTORY = "stop/%s/departure";
 
 	private static boolean pingChecked = false;
 
+	/**
+	 * The schedule authorities without the typed departure contract (older schedule apps).
+	 */
+	private static final Set<String> departureV1UnsupportedAuthorities = new HashSet<String>();
+
 	public static void wakeUp(final ContentResolver contentResolver, final Uri contentUri) {
 		MyLog.v(TAG, "wakeUp()");
 		if (pingChecked) {
@@ -80,6 +91,84 @@ public abstract class AbstractScheduleManager {
 			MyLog.w(TAG, "RouteTripStop mandatory!");
 			return null;
 		}
+		if (isDepartureV1Supported(contentUri.getAuthority())) {
+			Cursor cursor = null;
+			try {
+				cursor = contentResolver.query(DepartureContract.getUri(contentUri, routeTripStop, timestamp, cacheOnly, cacheValidityInSec),
+						DepartureContract.PROJECTION, null, null, null);
+				return cursor == null ? null : DepartureContract.getStopTimes(cursor);
+			} catch (IllegalArgumentException iae) {
+				MyLog.d(TAG, "Typed departure not supported by '%s' (%s).", contentUri.getAuthority(), iae.getMessage());
+				setDepartureV1Unsupported(contentUri.getAuthority()); // older provider, use JSON
+			} catch (Throwable t) {
+				MyLog.w(TAG, t, "Error!");
+				return null;
+			} finally {
+				if (cursor != null) {
+					cursor.close();
+				}
+			}
+		}
+		return findStopTimesJSON(contentResolver, contentUri, routeTripStop, timestamp, cacheOnly, cacheValidityInSec);
+	}
+
+	private static boolean isDepartureV1Supported(String scheduleAuthority) {
+		synchronized (departureV1UnsupportedAuthorities) {
+			return !departureV1UnsupportedAuthorities.contains(scheduleAuthority);
+		}
+	}
+
+	private static void setDepartureV1Unsupported(String scheduleAuthority) {
+		synchronized (departureV1UnsupportedAuthorities) {
+			departureV1UnsupportedAuthorities.add(scheduleAuthority);
+		}
+	}
+
+	/**
+	 * Find the departures of multiple route trip stops with one provider call (batch departure URI).
+	 * <p>
+	 * Older schedule apps without the batch departure URI are called once per route trip stop.
+	 * @return the stop times of each route trip stop UUID with a result
+	 */
+	public static Map<String, StopTimes> findStopTimes(ContentResolver contentResolver, Uri contentUri, List<RouteTripStop> routeTripStops, Long timestamp,
+			Boolean cacheOnly, Integer cacheValidityInSec) {
+		MyLog.v(TAG, "findStopTimes(%s, %s, %s, %s)", routeTripStops == null ? null : routeTripStops.size(), timestamp, cacheOnly, cacheValidityInSec);
+		if (routeTripStops == null || routeTripStops.size() == 0) {
+			return new HashMap<String, StopTimes>();
+		}
+		if (isDepartureV1Supported(contentUri.getAuthority())) {
+			Cursor cursor = null;
+			try {
+				cursor = contentResolver.query(DepartureContract.getBatchUri(contentUri, timestamp, cacheOnly, cacheValidityInSec),
+						DepartureContract.BATCH_PROJECTION, null, DepartureContract.getSelectionArgs(routeTripStops), null);
+				return cursor == null ? null : DepartureContract.getStopTimesByUUID(cursor);
+			} catch (IllegalArgumentException iae) {
+				MyLog.d(TAG, "Batch departure not supported by '%s' (%s).", contentUri.getAuthority(), iae.getMessage());
+				setDepartureV1Unsupported(contentUri.getAuthority()); // older provider, 1 call per route trip stop
+			} catch (Throwable t) {
+				MyLog.w(TAG, t, "Error!");
+				return null;
+			} finally {
+				if (cursor != null) {
+					cursor.close();
+				}
+			}
+		}
+		Map<String, StopTimes> result = new HashMap<String, StopTimes>();
+		for (RouteTripStop routeTripStop : routeTripStops) {
+			final StopTimes stopTimes = findStopTimesJSON(contentResolver, contentUri, routeTripStop, timestamp, cacheOnly, cacheValidityInSec);
+			if (stopTimes != null) {
+				result.put(routeTripStop.getUUID(), stopTimes);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Find the departures with the JSON departure contract (older schedule apps).
+	 */
+	private static StopTimes findStopTimesJSON(ContentResolver contentResolver, Uri contentUri, RouteTripStop routeTripStop, Long timestamp,
+			Boolean cacheOnly, Integer cacheValidityInSec) {
 		StopTimes result = null;
 		Cursor cursor = null;
 		try {
@@ -110,4 +199,61 @@ public abstract class AbstractScheduleManager {
 		}
 		return result;
 	}
+
+	/**
+	 * Find the departures of all the trips of the stop with one provider call.
+	 * @return the stop times of each trip ID with at least one departure or null if not supported by the provider
+	 */
+	public static Map<Integer, StopTimes> findStopTimesByTrip(ContentResolver contentResolver, Uri contentUri, int stopId, Long timestamp, Boolean cacheOnly,
+			Integer cacheValidityInSec) {
+		MyLog.v(TAG, "findStopTimesByTrip(%s, %s, %s, %s)", stopId, timestamp, cacheOnly, cacheValidityInSec);
+		Map<Integer, StopTimes> result = null;
+		Cursor cursor = null;
+		try {
+			JSONObject jSelection = new JSONObject();
+			if (timestamp != null) {
+				jSelection.put("timestamp", timestamp);
+			}
+			if (cacheOnly != null) {
+				jSelection.put("cacheOnly", cacheOnly);
+			}
+			if (cacheValidityInSec != null) {
+				jSelection.put("cacheValidityInSec", cacheValidityInSec);
+			}
+			String selection = jSelection.toString();
+			cursor = contentResolver.query(Uri.withAppendedPath(contentUri, String.format(STOP_DEPARTURE_CONTENT_DIRECTORY, stopId)), null, selection,
+					null, null);
+			if (cursor != null && cursor.getCount() > 0) {
+				if (cursor.moveToFirst()) {
+					JSONObject jStopTimes = new JSONObject(cursor.getString(cursor.getColumnIndexOrThrow("json")));
+					final String sourceName = jStopTimes.getString("source");
+					final boolean realtime = jStopTimes.getBoolean("realtime");
+					// split the departures (sorted by time) by trip
+					Map<Integer, List<Long>> tripTimestamps = new HashMap<Integer, List<Long>>();
+					JSONArray jDepartures = jStopTimes.getJSONArray("departures");
+					for (int i = 0; i < jDepartures.length(); i++) {
+						JSONObject jDeparture = jDepartures.getJSONObject(i);
+						final Integer tripId = jDeparture.getInt("tripId");
+						List<Long> timestamps = tripTimestamps.get(tripId);
+						if (timestamps == null) {
+							timestamps = new ArrayList<Long>();
+							tripTimestamps.put(tripId, timestamps);
+						}
+						timestamps.add(jDeparture.getLong("timestamp"));
+					}
+					result = new HashMap<Integer, StopTimes>();
+					for (Map.Entry<Integer, List<Long>> trip : tripTimestamps.entrySet()) {
+						result.put(trip.getKey(), StopTimes.fromTimestamps(sourceName, realtime, trip.getValue()));
+					}
+				}
+			}
+		} catch (Throwable t) {
+			MyLog.w(TAG, t, "Error!"); // older provider without stop departure
+		} finally {
+			if (cursor != null) {
+				cursor.close();
+			}
+		}
+		return result;
+	}
 }
@@ -1,7 +1,14 @@
 package org.montrealtransit.android.provider.common;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.concurrent.CountDownLatch;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -29,6 +36,9 @@ public abstract class AbstractScheduleProvider extends ContentProvider {
 	public static final String DEPARTURE_CONTENT_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/vnd." + GLOBAL_AUTHORITY + ".departure";
 
 	private static final int DEPARTURE = 1;
+	private static final int STOP_DEPARTURE = 2;
+	private static final int DEPARTURE_V1 = 3;
+	private static final int DEPARTURE_BATCH_V1 = 4;
 	private static final int PING = 99;
 
 	// protected static final int VERSION = 100;
@@ -36,9 +46,27 @@ public abstract class AbstractScheduleProvider extends ContentProvider {
 	// protected static final int LABEL = 102;
 	// protected static final int SETUP_REQUIRED = 103;
 
+	/**
+	 * The departures of this provider in memory.
+	 */
+	private final DepartureCache departureCache = new DepartureCache(new DepartureCache.OnClearListener() {
+		@Override
+		public void onClear() {
+			onDepartureCacheCleared();
+		}
+	});
+
+	/**
+	 * The departures being loaded by this provider for each cache UUID (route trip stop UUID + schedule authority).
+	 */
+	private final Map<String, InFlightDeparture> inFlightDepartures = new HashMap<String, InFlightDeparture>();
+
 	public static UriMatcher getNewUriMatcher(String authority) {
 		UriMatcher URI_MATCHER = new UriMatcher(UriMatcher.NO_MATCH);
 		URI_MATCHER.addURI(authority, "departure", DEPARTURE);
+		URI_MATCHER.addURI(authority, "stop/#/departure", STOP_DEPARTURE);
+		URI_MATCHER.addURI(authority, DepartureContract.PATH, DEPARTURE_V1);
+		URI_MATCHER.addURI(authority, DepartureContract.BATCH_PATH, DEPARTURE_BATCH_V1);
 		URI_MATCHER.addURI(authority, "ping", PING);
 		// URI_MATCHER.addURI(authority, "version", VERSION);
 		// URI_MATCHER.addURI(authority, "deployed", DEPLOYED);
@@ -64,6 +92,12 @@ public abstract class AbstractScheduleProvider extends ContentProvider {
 			return null;
 		case DEPARTURE:
 			return getDeparture(selection);
+		case DEPARTURE_V1:
+			return getDeparture(uri);
+		case DEPARTURE_BATCH_V1:
+			return getDepartureBatch(uri, selectionArgs);
+		case STOP_DEPARTURE:
+			return getStopDeparture(Integer.parseInt(uri.getPathSegments().get(1)), selection);
 		default:
 			throw new IllegalArgumentException(String.format("Unknown URI (query): '%s'", uri));
 		}
@@ -74,6 +108,9 @@ public abstract class AbstractScheduleProvider extends ContentProvider {
 		MyLog.v(TAG, "getType(%s)", uri.getPath());
 		switch (getURIMATCHER().match(uri)) {
 		case DEPARTURE:
+		case STOP_DEPARTURE:
+		case DEPARTURE_V1:
+		case DEPARTURE_BATCH_V1:
 			return DEPARTURE_CONTENT_TYPE;
 		case PING:
 			return null;
@@ -91,92 +128,401 @@ public abstract class AbstractScheduleProvider extends ContentProvider {
 			long timestamp = jSelection.has("timestamp") ? jSelection.getLong("timestamp") : System.currentTimeMillis();
 			boolean cacheOnly = jSelection.has("cacheOnly") ? jSelection.getBoolean("cacheOnly") : false;
 			int cacheValidityInSec = jSelection.has("cacheValidityInSec") ? jSelection.getInt("cacheValidityInSec") : getCACHE_MAX_VALIDITY_IN_SEC();
+			return getDeparture(routeTripStop, timestamp, cacheOnly, cacheValidityInSec, false);
+		} catch (JSONException jsone) {
+			MyLog.w(TAG, jsone, "Error while parsing JSON '%s'!", selection);
+			return null;
+		}
+	}
+
+	/**
+	 * @param uri the departure URI (see {@link DepartureContract})
+	 * @return the departures cursor (1 row per departure timestamp)
+	 */
+	public Cursor getDeparture(Uri uri) {
+		MyLog.d(TAG, "getDeparture(%s)", uri);
+		try {
+			RouteTripStop routeTripStop = DepartureContract.getRouteTripStop(uri);
+			long timestamp = DepartureContract.getLongParameter(uri, DepartureContract.PARAM_TIMESTAMP, System.currentTimeMillis());
+			boolean cacheOnly = DepartureContract.getBooleanParameter(uri, DepartureContract.PARAM_CACHE_ONLY, false);
+			int cacheValidityInSec = DepartureContract.getIntParameter(uri, DepartureContract.PARAM_CACHE_VALIDITY_IN_SEC, getCACHE_MAX_VALIDITY_IN_SEC());
+			return getDeparture(routeTripStop, timestamp, cacheOnly, cacheValidityInSec, true);
+		} catch (NumberFormatException nfe) {
+			MyLog.w(TAG, nfe, "Error while parsing URI '%s'!", uri);
+			return null;
+		}
+	}
+
+	/**
+	 * @param typed true for the typed departures cursor, false for the JSON cursor
+	 */
+	private Cursor getDeparture(RouteTripStop routeTripStop, long timestamp, boolean cacheOnly, int cacheValidityInSec, boolean typed) {
+		int cacheNotRefreshedInSec = Math.min(getCACHE_NOT_REFRESHED_IN_SEC(), cacheValidityInSec);
+		// read cache
+		String cacheUUID = getCacheUUID(routeTripStop);
+		Cache cache = getDataAlreadyInCacheIfStillUseful(cacheUUID);
+		// IF cache only DO return cache OR nothing
+		if (cacheOnly) {
+			// MyLog.d(TAG, "getDeparture() > use cache (only)");
+			return cache == null ? null : getCacheCursor(cacheUUID, cache, typed);
+		}
+		// IF cache doesn't have to be refreshed DO return cache
+		int tooOld = Utils.currentTimeSec() - cacheNotRefreshedInSec;
+		if (cache != null && tooOld <= cache.getDate()) {
+			// MyLog.d(TAG, "getDeparture() > use cache");
+			return getCacheCursor(cacheUUID, cache, typed);
+		}
+		if (cacheValidityInSec <= 0) {
+			onRefreshForced(cacheUUID);
+		}
+		final Calendar now = Calendar.getInstance();
+		now.setTimeInMillis(timestamp);
+		// get departure from content provider
+		// MyLog.d(TAG, "getDeparture() > NOT use cache, use content provider");
+		JSONObject jResult = getDepartureSingleFlight(routeTripStop, now, cache, cacheUUID);
+		return typed ? DepartureContract.getCursor(jResult) : getDepartureCursor(jResult);
+	}
+
+	/**
+	 * @param uri the batch departure URI (see {@link DepartureContract})
+	 * @param selectionArgs the relative departure URI of each route trip stop
+	 * @return the batch departures cursor (1 row per route trip stop UUID & departure timestamp)
+	 */
+	public Cursor getDepartureBatch(Uri uri, String[] selectionArgs) {
+		MyLog.d(TAG, "getDepartureBatch(%s, %s)", uri, selectionArgs == null ? null : selectionArgs.length);
+		try {
+			long timestamp = DepartureContract.getLongParameter(uri, DepartureContract.PARAM_TIMESTAMP, System.currentTimeMillis());
+			boolean cacheOnly = DepartureContract.getBooleanParameter(uri, DepartureContract.PARAM_CACHE_ONLY, false);
+			int cacheValidityInSec = DepartureContract.getIntParameter(uri, DepartureContract.PARAM_CACHE_VALIDITY_IN_SEC, getCACHE_MAX_VALIDITY_IN_SEC());
+			int cacheNotRefreshedInSec = Math.min(getCACHE_NOT_REFRESHED_IN_SEC(), cacheValidityInSec);
+			int tooOld = Utils.currentTimeSec() - cacheNotRefreshedInSec;
+			Map<String, JSONObject> results = new HashMap<String, JSONObject>();
+			List<RouteTripStop> routeTripStopsToLoad = new ArrayList<RouteTripStop>();
+			Map<String, Cache> caches = new HashMap<String, Cache>();
+			if (selectionArgs != null) {
+				for (String selectionArg : selectionArgs) {
+					final RouteTripStop routeTripStop = DepartureContract.getRouteTripStop(Uri.parse(selectionArg));
+					final String cacheUUID = getCacheUUID(routeTripStop);
+					final Cache cache = getDataAlreadyInCacheIfStillUseful(cacheUUID);
+					// IF cache only OR cache doesn't have to be refreshed DO return cache (if any)
+					if (cacheOnly || (cache != null && tooOld <= cache.getDate())) {
+						if (cache != null) {
+							results.put(routeTripStop.getUUID(), this.departureCache.getJSON(cacheUUID, cache));
+						}
+						continue;
+					}
+					if (cacheValidityInSec <= 0) {
+						onRefreshForced(cacheUUID);
+					}
+					caches.put(routeTripStop.getUUID(), cache);
+					routeTripStopsToLoad.add(routeTripStop);
+				}
+			}
+			if (routeTripStopsToLoad.size() > 0) {
+				final Calendar now = Calendar.getInstance();
+				now.setTimeInMillis(timestamp);
+				results.putAll(getDeparturesSingleFlight(routeTripStopsToLoad, now, caches));
+			}
+			return DepartureContract.getBatchCursor(results);
+		} catch (NumberFormatException nfe) {
+			MyLog.w(TAG, nfe, "Error while parsing URI '%s'!", uri);
+			return null;
+		}
+	}
+
+	/**
+	 * Override to load the departures of multiple route trip stops at once (shared schedule lookups).
+	 * <p>
+	 * Called with the route trip stops not already being loaded by another caller only.
+	 * @param caches the current cache of each route trip stop UUID (or null)
+	 * @return the departures of each route trip stop UUID (see {@link #getDeparture(RouteTripStop, Calendar, Cache, String)})
+	 */
+	public Map<String, JSONObject> getDepartures(List<RouteTripStop> routeTripStops, Calendar now, Map<String, Cache> caches) {
+		Map<String, JSONObject> result = new HashMap<String, JSONObject>();
+		for (RouteTripStop routeTripStop : routeTripStops) {
+			final String uuid = routeTripStop.getUUID();
+			result.put(uuid, getDeparture(routeTripStop, now, caches.get(uuid), getCacheUUID(routeTripStop)));
+		}
+		return result;
+	}
+
+	/**
+	 * Load the departures of the route trip stops not already being loaded by another caller and wait for the others.
+	 * @return the departures of each route trip stop UUID (see {@link #getDepartures(List, Calendar, Map)})
+	 */
+	private Map<String, JSONObject> getDeparturesSingleFlight(List<RouteTripStop> routeTripStops, Calendar now, Map<String, Cache> caches) {
+		List<RouteTripStop> routeTripStopsToLoad = new ArrayList<RouteTripStop>();
+		Map<String, InFlightDeparture> inFlightToWait = new HashMap<String, InFlightDeparture>();
+		synchronized (this.inFlightDepartures) {
+			for (RouteTripStop routeTripStop : routeTripStops) {
+				final String cacheUUID = getCacheUUID(routeTripStop);
+				final InFlightDeparture inFlightDeparture = this.inFlightDepartures.get(cacheUUID);
+				if (inFlightDeparture != null) {
+					inFlightToWait.put(routeTripStop.getUUID(), inFlightDeparture);
+				} else {
+					this.inFlightDepartures.put(cacheUUID, new InFlightDeparture());
+					routeTripStopsToLoad.add(routeTripStop);
+				}
+			}
+		}
+		Map<String, JSONObject> result = new HashMap<String, JSONObject>();
+		try {
+			if (routeTripStopsToLoad.size() > 0) {
+				result.putAll(getDepartures(routeTripStopsToLoad, now, caches));
+			}
+		} finally {
+			for (RouteTripStop routeTripStop : routeTripStopsToLoad) {
+				final InFlightDeparture inFlightDeparture;
+				synchronized (this.inFlightDepartures) {
+					inFlightDeparture = this.inFlightDepartures.remove(getCacheUUID(routeTripStop));
+				}
+				inFlightDeparture.setResult(result.get(routeTripStop.getUUID()));
+			}
+		}
+		if (inFlightToWait.size() > 0) {
+			MyLog.d(TAG, "Waiting for the departures already loading for %s route trip stops...", inFlightToWait.size());
+			for (Map.Entry<String, InFlightDeparture> inFlightDeparture : inFlightToWait.entrySet()) {
+				result.put(inFlightDeparture.getKey(), inFlightDeparture.getValue().await());
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Load the departures or wait for the same departures already being loaded by another caller (1 request at a time for each cache UUID).
+	 * @return the departures (see {@link #getDeparture(RouteTripStop, Calendar, Cache, String)})
+	 */
+	private JSONObject getDepartureSingleFlight(final RouteTripStop routeTripStop, final Calendar now, final Cache cache, final String cacheUUID) {
+		return getSingleFlight(cacheUUID, new DepartureLoader() {
+			@Override
+			public JSONObject load() {
+				return getDeparture(routeTripStop, now, cache, cacheUUID);
+			}
+		});
+	}
+
+	/**
+	 * Run the loader or wait for the result of the same cache UUID already being loaded by another caller.
+	 */
+	private JSONObject getSingleFlight(String cacheUUID, DepartureLoader loader) {
+		InFlightDeparture inFlightDeparture;
+		synchronized (this.inFlightDepartures) {
+			inFlightDeparture = this.inFlightDepartures.get(cacheUUID);
+			if (inFlightDeparture == null) {
+				this.inFlightDepartures.put(cacheUUID, new InFlightDeparture());
+			}
+		}
+		if (inFlightDeparture != null) {
+			MyLog.d(TAG, "Waiting for the departures already loading for '%s'...", cacheUUID);
+			return inFlightDeparture.await();
+		}
+		JSONObject jResult = null;
+		try {
+			jResult = loader.load();
+			return jResult;
+		} finally {
+			synchronized (this.inFlightDepartures) {
+				inFlightDeparture = this.inFlightDepartures.remove(cacheUUID);
+			}
+			inFlightDeparture.setResult(jResult);
+		}
+	}
+
+	/**
+	 * @return the cache UUID of the route trip stop departures in this provider
+	 */
+	public String getCacheUUID(RouteTripStop routeTripStop) {
+		return routeTripStop.getUUID() + getAUTHORITY();
+	}
+
+	private Cursor getCacheCursor(String cacheUUID, Cache cache, boolean typed) {
+		if (typed) {
+			return DepartureContract.getCursor(this.departureCache.getJSON(cacheUUID, cache));
+		}
+		return getDepartureCursor(cache.getObject()); // not parsed
+	}
+
+	public Cursor getStopDeparture(int stopId, String selection) {
+		MyLog.d(TAG, "getStopDeparture(%s, %s)", stopId, selection);
+		if (!isStopDepartureSupported()) {
+			return null; // no stop departure board, no cache lookup
+		}
+		try {
+			JSONObject jSelection = selection == null ? new JSONObject() : new JSONObject(selection);
+			long timestamp = jSelection.has("timestamp") ? jSelection.getLong("timestamp") : System.currentTimeMillis();
+			boolean cacheOnly = jSelection.has("cacheOnly") ? jSelection.getBoolean("cacheOnly") : false;
+			int cacheValidityInSec = jSelection.has("cacheValidityInSec") ? jSelection.getInt("cacheValidityInSec") : getCACHE_MAX_VALIDITY_IN_SEC();
 			int cacheNotRefreshedInSec = Math.min(getCACHE_NOT_REFRESHED_IN_SEC(), cacheValidityInSec);
 			// read cache
-			String cacheUUID = routeTripStop.getUUID() + getAUTHORITY();
+			String cacheUUID = getStopCacheUUID(stopId);
 			Cache cache = getDataAlreadyInCacheIfStillUseful(cacheUUID);
 			// IF cache only DO return cache OR nothing
 			if (cacheOnly) {
-				JSONObject jResult = null;
-				if (cache != null) {
-					try {
-						jResult = new JSONObject(cache.getObject());
-					} catch (JSONException jsone) {
-						MyLog.w(TAG, jsone, "Error while parsing JSON from cache!");
-						// cache not valid, returning empty
-					}
-				}
-				// MyLog.d(TAG, "getDeparture() > use cache (only)");
-				return getDepartureCursor(jResult);
+				return cache == null ? null : getDepartureCursor(cache.getObject());
 			}
 			// IF cache doesn't have to be refreshed DO return cache
 			int tooOld = Utils.currentTimeSec() - cacheNotRefreshedInSec;
 			if (cache != null && tooOld <= cache.getDate()) {
-				try {
-					// MyLog.d(TAG, "getDeparture() > use cache");
-					return getDepartureCursor(new JSONObject(cache.getObject()));
-				} catch (JSONException jsone) {
-					MyLog.w(TAG, jsone, "Error while parsing JSON from cache!");
-					// cache not valid, loading from www
-				}
+				return getDepartureCursor(cache.getObject());
 			}
 			final Calendar now = Calendar.getInstance();
 			now.setTimeInMillis(timestamp);
-			// get departure from content provider
-			// MyLog.d(TAG, "getDeparture() > NOT use cache, use content provider");
-			return getDeparture(routeTripStop, now, cache, cacheUUID);
+			// get stop departure from content provider
+			return getDepartureCursor(getStopDepartureSingleFlight(stopId, now, cacheUUID));
 		} catch (JSONException jsone) {
 			MyLog.w(TAG, jsone, "Error while parsing JSON '%s'!", selection);
 			return null;
 		}
 	}
 
+	private JSONObject getStopDepartureSingleFlight(final int stopId, final Calendar now, final String cacheUUID) {
+		return getSingleFlight(cacheUUID, new DepartureLoader() {
+			@Override
+			public JSONObject load() {
+				JSONObject jResult = getStopDeparture(stopId, now);
+				saveToCache(cacheUUID, jResult);
+				return jResult;
+			}
+		});
+	}
+
+	/**
+	 * Override with {@link #getStopDeparture(int, Calendar)} to return the departures of all the trips of the stop at once.
+	 * @return true if this provider returns the stop departure board
+	 */
+	public boolean isStopDepartureSupported() {
+		return false;
+	}
+
+	/**
+	 * Override to return the departures of all the trips of the stop at once (see {@link #isStopDepartureSupported()}).
+	 * @return the stop departure board (see {@link #getStopDepartureJSON(boolean, String, SortedMap)}) or null if not supported
+	 */
+	public JSONObject getStopDeparture(int stopId, Calendar now) {
+		return null;
+	}
+
+	/**
+	 * @return the cache UUID of the departures of all the trips of the stop in this provider
+	 */
+	public String getStopCacheUUID(int stopId) {
+		return "stop" + stopId + getAUTHORITY();
+	}
+
+	/**
+	 * @param tripIdsByTimestamp the trip IDs of each departure timestamp
+	 * @return the departures of all the trips of the stop merged and sorted by time
+	 */
+	public JSONObject getStopDepartureJSON(boolean realtime, String source, SortedMap<Long, SortedSet<Integer>> tripIdsByTimestamp) throws JSONException {
+		final JSONObject jResult = new JSONObject();
+		jResult.put("realtime", realtime);
+		jResult.put("source", source);
+		final JSONArray jDepartures = new JSONArray();
+		for (Map.Entry<Long, SortedSet<Integer>> departure : tripIdsByTimestamp.entrySet()) {
+			for (Integer tripId : departure.getValue()) {
+				final JSONObject jDeparture = new JSONObject();
+				jDeparture.put("timestamp", departure.getKey());
+				jDeparture.put("tripId", tripId);
+				jDepartures.put(jDeparture);
+			}
+		}
+		jResult.put("departures", jDepartures);
+		return jResult;
+	}
+
 	public Cursor getDepartureCursor(JSONObject jsonObject) {
 		if (jsonObject == null) {
 			return null;
 		}
+		return getDepartureCursor(jsonObject.toString());
+	}
+
+	/**
+	 * @param json the departure JSON (not parsed)
+	 */
+	public Cursor getDepartureCursor(String json) {
+		if (json == null) {
+			return null;
+		}
 		MatrixCursor matrixCursor = new MatrixCursor(new String[] { "json" });
-		matrixCursor.addRow(new Object[] { jsonObject.toString() });
+		matrixCursor.addRow(new Object[] { json });
 		return matrixCursor;
 	}
 
 	private Cache getDataAlreadyInCacheIfStillUseful(String uuid) {
 		MyLog.v(TAG, "getDataAlreadyInCacheIfStillUseful(%s)", uuid);
-		// load cache from database
-		Cache cache = DataManager.findCache(getContext().getContentResolver(), Cache.KEY_TYPE_VALUE_AUTHORITY_ROUTE_TRIP_STOP_JSON, uuid);
+		Cache cache;
+		if (this.departureCache.contains(uuid)) {
+			cache = this.departureCache.get(uuid);
+		} else {
+			// load cache from database (once)
+			cache = DataManager.findCache(getContext().getContentResolver(), Cache.KEY_TYPE_VALUE_AUTHORITY_ROUTE_TRIP_STOP_JSON, uuid);
+			this.departureCache.put(uuid, cache);
+		}
 		// compute the too old date
 		int tooOld = Utils.currentTimeSec() - getCACHE_MAX_VALIDITY_IN_SEC();
 		// IF the cache is too old DO
 		if (cache != null && tooOld >= cache.getDate()) {
-			// don't use the cache
+			// don't use the cache (deleted by the eviction)
 			cache = null;
-			// delete all too old cache
-			try {
-				DataManager.deleteCacheOlderThan(getContext().getContentResolver(), tooOld);
-			} catch (Exception e) {
-				MyLog.w(TAG, e, "Can't clean the cache!");
-			}
+			this.departureCache.put(uuid, null);
+			DepartureCache.evictIfNecessary(getContext().getContentResolver());
 		}
 		return cache;
 	}
 
 	public void saveToCache(String uuid, JSONObject jResult) {
 		MyLog.v(TAG, "saveToCache(%s)", uuid);
-		final JSONArray jTimestamps = jResult == null ? null : jResult.optJSONArray("timestamps");
+		JSONArray jTimestamps = jResult == null ? null : jResult.optJSONArray("timestamps");
+		if (jTimestamps == null && jResult != null) {
+			jTimestamps = jResult.optJSONArray("departures"); // stop departure board
+		}
 		if (jTimestamps == null || jTimestamps.length() == 0) {
 			// MyLog.d(TAG, "saveToCache(%s,%s) > skipped because no timestamp", uuid, jResult);
 			return;
 		}
-		Cache newCache = new Cache(Cache.KEY_TYPE_VALUE_AUTHORITY_ROUTE_TRIP_STOP_JSON, uuid, jResult.toString());
-		// remove existing cache for this bus stop
-		DataManager.deleteCacheIfExist(getContext().getContentResolver(), Cache.KEY_TYPE_VALUE_AUTHORITY_ROUTE_TRIP_STOP_JSON, uuid);
-		// save the new value to cache
-		DataManager.addCache(getContext().getContentResolver(), newCache);
+		final Cache newCache = new Cache(Cache.KEY_TYPE_VALUE_AUTHORITY_ROUTE_TRIP_STOP_JSON, uuid, jResult.toString());
+		this.departureCache.put(uuid, newCache, jResult);
+		// write through to the database in the background
+		DepartureCache.getWriteExecutor().execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					// replace existing cache for this bus stop
+					DataManager.saveCache(getContext().getContentResolver(), newCache);
+				} catch (Throwable t) {
+					MyLog.w(TAG, t, "Error!");
+				}
+			}
+		});
+		DepartureCache.evictIfNecessary(getContext().getContentResolver());
+	}
+
+	/**
+	 * Override to drop the data kept in memory for these departures (called before loading departures refreshed by the user).
+	 */
+	public void onRefreshForced(String cacheUUID) {
+	}
+
+	/**
+	 * Override to clear the data built from the cached departures (called when the departures cache is cleared).
+	 */
+	public void onDepartureCacheCleared() {
+	}
+
+	/**
+	 * @return the in-memory departures cache (hit & miss counters)
+	 */
+	public DepartureCache getDepartureCache() {
+		return departureCache;
 	}
 
 	public abstract void ping();
 
-	public abstract Cursor getDeparture(RouteTripStop routeTripStop, Calendar now, Cache cache, String cacheUUID);
+	/**
+	 * @return the departures (JSON: realtime, source, timestamps, messages & error) or null
+	 */
+	public abstract JSONObject getDeparture(RouteTripStop routeTripStop, Calendar now, Cache cache, String cacheUUID);
 
 	public abstract UriMatcher getURIMATCHER();
 
@@ -186,6 +532,43 @@ public abstract class AbstractScheduleProvider extends ContentProvider {
 
 	public abstract int getCACHE_MAX_VALIDITY_IN_SEC();
 
+	/**
+	 * The departures being loaded, shared with the callers asking for the same departures at the same time.
+	 */
+	private interface DepartureLoader {
+
+		/**
+		 * @return the departures or null
+		 */
+		JSONObject load();
+	}
+
+	private static class InFlightDeparture {
+
+		private final CountDownLatch done = new CountDownLatch(1);
+
+		private JSONObject result;
+
+		public void setResult(JSONObject result) {
+			this.result = result;
+			this.done.countDown();
+		}
+
+		/**
+		 * @return the departures or null if interrupted or not loaded
+		 */
+		public JSONObject await() {
+			try {
+				this.done.await();
+				return this.result;
+			} catch (InterruptedException ie) {
+				MyLog.d(TAG, "Interrupted while waiting for the departures!");
+				Thread.currentThread().interrupt(); // restore the interrupt status
+				return null;
+			}
+		}
+	}
+
 	@Override
 	public int delete(Uri uri, String selection, String[] selectionArgs) {
 		MyLog.v(TAG, "delete()");
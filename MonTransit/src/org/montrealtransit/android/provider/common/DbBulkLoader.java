@@ -0,0 +1,224 @@
+package org.montrealtransit.android.provider.common;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+import org.montrealtransit.android.MyLog;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * Deploy raw data files into a DB table.
+ * <p>
+ * Each line of the files contains the SQL values of one row (ex: <code>10,'10','De Lorimier',45.59,-73.54</code>). The values are parsed into typed
+ * columns (integer, real, text, null) and bound into one compiled insert statement reused for all the rows of the table.
+ * <p>
+ * The caller is responsible for the transaction.
+ */
+public class DbBulkLoader {
+
+	private static final String TAG = DbBulkLoader.class.getSimpleName();
+
+	private static final int TYPE_NULL = 0;
+	private static final int TYPE_INTEGER = 1;
+	private static final int TYPE_REAL = 2;
+	private static final int TYPE_TEXT = 3;
+
+	private SQLiteDatabase db;
+
+	private String table;
+
+	/**
+	 * The insert SQL query with a <code>%s</code> for the values.
+	 */
+	private String sqlInsert;
+
+	private SQLiteStatement statement;
+
+	private int columnCount = -1;
+
+	// current line values (re-used for each line)
+	private int[] types = new int[8];
+	private long[] longs = new long[8];
+	private double[] doubles = new double[8];
+	private String[] strings = new String[8];
+	private StringBuilder sb = new StringBuilder();
+
+	private int rowCount = 0;
+
+	private long startTime;
+
+	/**
+	 * @param sqlInsert the insert SQL query with a <code>%s</code> for the values (ex: <code>INSERT INTO route (_id,short_name) VALUES(%s)</code>)
+	 */
+	public DbBulkLoader(SQLiteDatabase db, String table, String sqlInsert) {
+		this.db = db;
+		this.table = table;
+		this.sqlInsert = sqlInsert;
+		this.startTime = System.currentTimeMillis();
+	}
+
+	/**
+	 * Insert all the lines of the input stream. The input stream is NOT closed.
+	 */
+	public void load(InputStream is) throws IOException {
+		BufferedReader br = new BufferedReader(new InputStreamReader(is, "UTF8"), 8192);
+		String line;
+		while ((line = br.readLine()) != null) {
+			if (line.length() == 0) {
+				continue;
+			}
+			insert(line);
+		}
+	}
+
+	/**
+	 * Insert one line.
+	 */
+	public void insert(String line) {
+		final int count = parseLine(line);
+		if (this.statement == null) {
+			this.columnCount = count;
+			this.statement = this.db.compileStatement(String.format(this.sqlInsert, getPlaceholders(count)));
+		} else if (count != this.columnCount) {
+			throw new IllegalArgumentException(String.format("Wrong number of values (%s instead of %s) in '%s'!", count, this.columnCount, line));
+		}
+		for (int i = 0; i < count; i++) {
+			final int index = i + 1;
+			switch (this.types[i]) {
+			case TYPE_INTEGER:
+				this.statement.bindLong(index, this.longs[i]);
+				break;
+			case TYPE_REAL:
+				this.statement.bindDouble(index, this.doubles[i]);
+				break;
+			case TYPE_TEXT:
+				this.statement.bindString(index, this.strings[i]);
+				break;
+			default:
+				this.statement.bindNull(index);
+				break;
+			}
+		}
+		this.statement.executeInsert();
+		this.rowCount++;
+	}
+
+	/**
+	 * Release the compiled statement and log the table statistics.
+	 */
+	public void close() {
+		if (this.statement != null) {
+			this.statement.close();
+			this.statement = null;
+		}
+		final long duration = getDurationInMs();
+		MyLog.d(TAG, "DB table %s: %s rows in %s ms (%s rows/sec).", this.table, this.rowCount, duration, getRowsPerSec());
+	}
+
+	public int getRowCount() {
+		return rowCount;
+	}
+
+	public long getDurationInMs() {
+		return System.currentTimeMillis() - this.startTime;
+	}
+
+	public long getRowsPerSec() {
+		final long duration = getDurationInMs();
+		return duration <= 0 ? this.rowCount : this.rowCount * 1000L / duration;
+	}
+
+	/**
+	 * Parse the SQL values of the line into the typed columns arrays.
+	 * @return the number of values
+	 */
+	private int parseLine(String line) {
+		final int length = line.length();
+		int count = 0;
+		int i = 0;
+		while (true) {
+			ensureCapacity(count + 1);
+			if (i < length && line.charAt(i) == '\'') { // text
+				this.sb.setLength(0);
+				i++;
+				while (true) {
+					if (i >= length) {
+						throw new IllegalArgumentException(String.format("Unterminated text value in '%s'!", line));
+					}
+					final char c = line.charAt(i);
+					if (c == '\'') {
+						if (i + 1 < length && line.charAt(i + 1) == '\'') { // escaped quote
+							this.sb.append(c);
+							i += 2;
+							continue;
+						}
+						i++;
+						break;
+					}
+					this.sb.append(c);
+					i++;
+				}
+				this.types[count] = TYPE_TEXT;
+				this.strings[count] = this.sb.toString();
+			} else {
+				int end = line.indexOf(',', i);
+				if (end < 0) {
+					end = length;
+				}
+				final String value = line.substring(i, end).trim();
+				if (value.length() == 0 || "NULL".equalsIgnoreCase(value)) {
+					this.types[count] = TYPE_NULL;
+				} else if (value.indexOf('.') >= 0 || value.indexOf('e') >= 0 || value.indexOf('E') >= 0) {
+					this.types[count] = TYPE_REAL;
+					this.doubles[count] = Double.parseDouble(value);
+				} else {
+					this.types[count] = TYPE_INTEGER;
+					this.longs[count] = Long.parseLong(value);
+				}
+				i = end;
+			}
+			count++;
+			if (i >= length) {
+				return count;
+			}
+			if (line.charAt(i) != ',') {
+				throw new IllegalArgumentException(String.format("Unexpected character at %s in '%s'!", i, line));
+			}
+			i++; // next value
+		}
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity <= this.types.length) {
+			return;
+		}
+		final int newCapacity = capacity * 2;
+		int[] newTypes = new int[newCapacity];
+		System.arraycopy(this.types, 0, newTypes, 0, this.types.length);
+		this.types = newTypes;
+		long[] newLongs = new long[newCapacity];
+		System.arraycopy(this.longs, 0, newLongs, 0, this.longs.length);
+		this.longs = newLongs;
+		double[] newDoubles = new double[newCapacity];
+		System.arraycopy(this.doubles, 0, newDoubles, 0, this.doubles.length);
+		this.doubles = newDoubles;
+		String[] newStrings = new String[newCapacity];
+		System.arraycopy(this.strings, 0, newStrings, 0, this.strings.length);
+		this.strings = newStrings;
+	}
+
+	private static String getPlaceholders(int count) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < count; i++) {
+			if (sb.length() > 0) {
+				sb.append(',');
+			}
+			sb.append('?');
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,248 @@
+package org.montrealtransit.android.provider.common;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.montrealtransit.android.MyLog;
+import org.montrealtransit.android.Utils;
+import org.montrealtransit.android.provider.DataManager;
+import org.montrealtransit.android.provider.DataStore.Cache;
+
+import android.content.ContentResolver;
+
+/**
+ * In-memory LRU cache of the departures in front of the cache table.
+ * <p>
+ * The departures JSON is parsed at most once per entry (typed departure cursor).
+ * <p>
+ * The cache table is read only once per UUID (the entry is null if the UUID is not in the table) and the new departures are written to the table in
+ * the background, in order, by a single thread. The same thread evicts the old entries of the cache table in small batches (age & size budgets).
+ */
+public class DepartureCache {
+
+	private static final String TAG = DepartureCache.class.getSimpleName();
+
+	/**
+	 * The maximum number of departures in memory.
+	 */
+	private static final int MAX_ENTRIES = 100;
+
+	/**
+	 * The cache table maximum age (the longest cache validity of the schedule providers).
+	 */
+	private static final int EVICTION_MAX_AGE_IN_SEC = 24 * 60 * 60; // 1 day
+
+	/**
+	 * The cache table maximum number of entries.
+	 */
+	private static final int EVICTION_MAX_ENTRIES = 500;
+
+	/**
+	 * The maximum number of entries deleted at once (short write transactions).
+	 */
+	private static final int EVICTION_BATCH_SIZE = 50;
+
+	/**
+	 * The minimum time between 2 evictions.
+	 */
+	private static final long EVICTION_INTERVAL_IN_MS = 10 * 60 * 1000; // 10 minutes
+
+	private static long lastEvictionInMs = -1;
+
+	private static Executor writeExecutor;
+
+	/**
+	 * All the departures caches of the process (1 per schedule provider).
+	 */
+	private static final List<DepartureCache> instances = new ArrayList<DepartureCache>();
+
+	/**
+	 * The departures of each UUID (least recently used first).
+	 */
+	private final Map<String, Entry> caches = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+			return size() > MAX_ENTRIES;
+		}
+	};
+
+	private int hitCount = 0;
+
+	private int missCount = 0;
+
+	private final OnClearListener onClearListener;
+
+	/**
+	 * @param onClearListener the listener called after clearing this cache or null
+	 */
+	public DepartureCache(OnClearListener onClearListener) {
+		this.onClearListener = onClearListener;
+		synchronized (instances) {
+			instances.add(this);
+		}
+	}
+
+	/**
+	 * Clear all the departures caches in memory (when the cache table is cleared).
+	 */
+	public static void clearAll() {
+		synchronized (instances) {
+			for (DepartureCache instance : instances) {
+				instance.clear();
+			}
+		}
+	}
+
+	/**
+	 * @return the executor writing to the cache table (1 thread, every write queued)
+	 */
+	public static synchronized Executor getWriteExecutor() {
+		if (writeExecutor == null) {
+			writeExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+		}
+		return writeExecutor;
+	}
+
+	/**
+	 * Evict the old entries of the cache table in the background (at most once every {@link #EVICTION_INTERVAL_IN_MS}).
+	 */
+	public static void evictIfNecessary(final ContentResolver contentResolver) {
+		synchronized (DepartureCache.class) {
+			final long now = System.currentTimeMillis();
+			if (lastEvictionInMs > 0 && now - lastEvictionInMs < EVICTION_INTERVAL_IN_MS) {
+				return;
+			}
+			lastEvictionInMs = now;
+		}
+		getWriteExecutor().execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					final int tooOld = Utils.currentTimeSec() - EVICTION_MAX_AGE_IN_SEC;
+					int total = 0;
+					int count;
+					do {
+						count = DataManager.evictCache(contentResolver, tooOld, EVICTION_MAX_ENTRIES, EVICTION_BATCH_SIZE);
+						total += count;
+					} while (count >= EVICTION_BATCH_SIZE);
+					MyLog.d(TAG, "Cache eviction: %s entries deleted.", total);
+				} catch (Throwable t) {
+					MyLog.w(TAG, t, "Can't clean the cache!");
+				}
+			}
+		});
+	}
+
+	/**
+	 * @return true if the UUID is in memory (the departures may be null if not in the cache table)
+	 */
+	public synchronized boolean contains(String uuid) {
+		if (this.caches.containsKey(uuid)) {
+			this.hitCount++;
+			return true;
+		}
+		this.missCount++;
+		return false;
+	}
+
+	/**
+	 * @return the departures or null
+	 */
+	public synchronized Cache get(String uuid) {
+		final Entry entry = this.caches.get(uuid);
+		return entry == null ? null : entry.cache;
+	}
+
+	/**
+	 * @param cache the departures read from the cache table
+	 * @return the parsed departures (parsed only once while the departures are in memory) or null
+	 */
+	public synchronized JSONObject getJSON(String uuid, Cache cache) {
+		final Entry entry = this.caches.get(uuid);
+		if (entry != null && entry.cache == cache && entry.json != null) {
+			return entry.json;
+		}
+		try {
+			final JSONObject json = new JSONObject(cache.getObject());
+			if (entry != null && entry.cache == cache) {
+				entry.json = json;
+			}
+			return json;
+		} catch (JSONException jsone) {
+			MyLog.w(TAG, jsone, "Error while parsing JSON from cache!");
+			return null;
+		}
+	}
+
+	/**
+	 * @param cache the departures or null if not in the cache table
+	 */
+	public synchronized void put(String uuid, Cache cache) {
+		this.caches.put(uuid, new Entry(cache, null));
+	}
+
+	/**
+	 * @param cache the new departures
+	 * @param json the new departures (already parsed)
+	 */
+	public synchronized void put(String uuid, Cache cache, JSONObject json) {
+		this.caches.put(uuid, new Entry(cache, json));
+	}
+
+	public void clear() {
+		synchronized (this) {
+			this.caches.clear();
+		}
+		if (this.onClearListener != null) {
+			this.onClearListener.onClear();
+		}
+	}
+
+	/**
+	 * Listen to the clearing of the departures cache (to clear the data built from the cached departures).
+	 */
+	public interface OnClearListener {
+
+		void onClear();
+	}
+
+	public synchronized int getHitCount() {
+		return hitCount;
+	}
+
+	public synchronized int getMissCount() {
+		return missCount;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return new StringBuilder().append(DepartureCache.class.getSimpleName()).append(":[") //
+				.append("size:").append(this.caches.size()).append(',') //
+				.append("hit:").append(this.hitCount).append(',') //
+				.append("miss:").append(this.missCount) //
+				.append(']').toString();
+	}
+
+	private static class Entry {
+
+		private final Cache cache;
+
+		private JSONObject json;
+
+		public Entry(Cache cache, JSONObject json) {
+			this.cache = cache;
+			this.json = json;
+		}
+	}
+}
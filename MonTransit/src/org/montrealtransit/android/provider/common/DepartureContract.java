@@ -0,0 +1,316 @@
+package org.montrealtransit.android.provider.common;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.montrealtransit.android.data.Route;
+import org.montrealtransit.android.data.RouteTripStop;
+import org.montrealtransit.android.data.Stop;
+import org.montrealtransit.android.data.StopTimes;
+import org.montrealtransit.android.data.Trip;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.text.TextUtils;
+
+/**
+ * Typed & versioned departure contract between the schedule providers and the app.
+ * <p>
+ * The route, trip & stop IDs are in the URI path, the other values are query parameters and the result is 1 row per departure timestamp (INTEGER)
+ * with the source, real-time flag, error & messages in the cursor extras. The older "departure" URI (JSON selection, 1 JSON row) is still served for
+ * the older apps.
+ * <p>
+ * The batch departure URI returns the departures of multiple route trip stops with one provider call: 1 row per route trip stop UUID & departure
+ * timestamp with the extras of each route trip stop UUID in the cursor extras.
+ */
+public class DepartureContract {
+
+	public static final int VERSION = 1;
+
+	/**
+	 * The departure URI path (for the URI matcher).
+	 */
+	public static final String PATH = "departure/v" + VERSION + "/route/#/trip/#/stop/#";
+
+	private static final String PATH_FORMAT = "departure/v" + VERSION + "/route/%s/trip/%s/stop/%s";
+
+	/**
+	 * The batch departure URI path (for the URI matcher), the route trip stops are the selection arguments (see {@link #getSelectionArgs(List)}).
+	 */
+	public static final String BATCH_PATH = "departure/v" + VERSION + "/batch";
+
+	private static final int PATH_ROUTE_ID_IDX = 3;
+	private static final int PATH_TRIP_ID_IDX = 5;
+	private static final int PATH_STOP_ID_IDX = 7;
+
+	public static final String PARAM_TIMESTAMP = "timestamp";
+	public static final String PARAM_CACHE_ONLY = "cacheOnly";
+	public static final String PARAM_CACHE_VALIDITY_IN_SEC = "cacheValidityInSec";
+	public static final String PARAM_AUTHORITY = "authority";
+	public static final String PARAM_ROUTE_SHORT_NAME = "routeShortName";
+	public static final String PARAM_TRIP_HEADSIGN_TYPE = "tripHeadsignType";
+	public static final String PARAM_TRIP_HEADSIGN_VALUE = "tripHeadsignValue";
+
+	public static final String COLUMN_TIMESTAMP = "timestamp";
+	public static final String COLUMN_UUID = "uuid";
+
+	public static final String[] PROJECTION = new String[] { COLUMN_TIMESTAMP };
+	public static final String[] BATCH_PROJECTION = new String[] { COLUMN_UUID, COLUMN_TIMESTAMP };
+
+	public static final String EXTRA_VERSION = "version";
+	public static final String EXTRA_SOURCE = "source";
+	public static final String EXTRA_REALTIME = "realtime";
+	public static final String EXTRA_ERROR = "error";
+	public static final String EXTRA_MESSAGE = "message";
+	public static final String EXTRA_MESSAGE2 = "message2";
+
+	/**
+	 * @return the departure URI of the route trip stop
+	 */
+	public static Uri getUri(Uri contentUri, RouteTripStop routeTripStop, Long timestamp, Boolean cacheOnly, Integer cacheValidityInSec) {
+		Uri.Builder builder = Uri.withAppendedPath(contentUri, getPath(routeTripStop)).buildUpon();
+		appendRouteTripStop(builder, routeTripStop);
+		appendOptions(builder, timestamp, cacheOnly, cacheValidityInSec);
+		return builder.build();
+	}
+
+	/**
+	 * @return the batch departure URI (use with {@link #getSelectionArgs(List)})
+	 */
+	public static Uri getBatchUri(Uri contentUri, Long timestamp, Boolean cacheOnly, Integer cacheValidityInSec) {
+		Uri.Builder builder = Uri.withAppendedPath(contentUri, BATCH_PATH).buildUpon();
+		appendOptions(builder, timestamp, cacheOnly, cacheValidityInSec);
+		return builder.build();
+	}
+
+	/**
+	 * @return the relative departure URI of each route trip stop (batch departure selection arguments)
+	 */
+	public static String[] getSelectionArgs(List<RouteTripStop> routeTripStops) {
+		String[] selectionArgs = new String[routeTripStops.size()];
+		for (int i = 0; i < selectionArgs.length; i++) {
+			final RouteTripStop routeTripStop = routeTripStops.get(i);
+			Uri.Builder builder = new Uri.Builder().encodedPath(getPath(routeTripStop));
+			appendRouteTripStop(builder, routeTripStop);
+			selectionArgs[i] = builder.build().toString();
+		}
+		return selectionArgs;
+	}
+
+	private static String getPath(RouteTripStop routeTripStop) {
+		return String.format(PATH_FORMAT, routeTripStop.route.id, routeTripStop.trip.id, routeTripStop.stop.id);
+	}
+
+	private static void appendRouteTripStop(Uri.Builder builder, RouteTripStop routeTripStop) {
+		builder.appendQueryParameter(PARAM_AUTHORITY, routeTripStop.authority);
+		if (routeTripStop.route.shortName != null) {
+			builder.appendQueryParameter(PARAM_ROUTE_SHORT_NAME, routeTripStop.route.shortName);
+		}
+		builder.appendQueryParameter(PARAM_TRIP_HEADSIGN_TYPE, String.valueOf(routeTripStop.trip.headsignType));
+		if (routeTripStop.trip.headsignValue != null) {
+			builder.appendQueryParameter(PARAM_TRIP_HEADSIGN_VALUE, routeTripStop.trip.headsignValue);
+		}
+	}
+
+	private static void appendOptions(Uri.Builder builder, Long timestamp, Boolean cacheOnly, Integer cacheValidityInSec) {
+		if (timestamp != null) {
+			builder.appendQueryParameter(PARAM_TIMESTAMP, String.valueOf(timestamp));
+		}
+		if (cacheOnly != null) {
+			builder.appendQueryParameter(PARAM_CACHE_ONLY, String.valueOf(cacheOnly));
+		}
+		if (cacheValidityInSec != null) {
+			builder.appendQueryParameter(PARAM_CACHE_VALIDITY_IN_SEC, String.valueOf(cacheValidityInSec));
+		}
+	}
+
+	/**
+	 * @param uri the departure URI or the relative departure URI (batch departure selection argument)
+	 * @return the route trip stop of the departure URI (only the fields used by the schedule providers)
+	 */
+	public static RouteTripStop getRouteTripStop(Uri uri) {
+		final List<String> pathSegments = uri.getPathSegments();
+		final Route route = new Route();
+		route.id = Integer.parseInt(pathSegments.get(PATH_ROUTE_ID_IDX));
+		route.shortName = uri.getQueryParameter(PARAM_ROUTE_SHORT_NAME);
+		final Trip trip = new Trip();
+		trip.id = Integer.parseInt(pathSegments.get(PATH_TRIP_ID_IDX));
+		trip.routeId = route.id;
+		final String headsignType = uri.getQueryParameter(PARAM_TRIP_HEADSIGN_TYPE);
+		if (!TextUtils.isEmpty(headsignType)) {
+			trip.headsignType = Integer.parseInt(headsignType);
+		}
+		final String headsignValue = uri.getQueryParameter(PARAM_TRIP_HEADSIGN_VALUE);
+		if (headsignValue != null) {
+			trip.headsignValue = headsignValue;
+		}
+		final Stop stop = new Stop();
+		stop.id = Integer.parseInt(pathSegments.get(PATH_STOP_ID_IDX));
+		return new RouteTripStop(uri.getQueryParameter(PARAM_AUTHORITY), route, trip, stop);
+	}
+
+	/**
+	 * @return the query parameter as a long or the default value
+	 */
+	public static long getLongParameter(Uri uri, String key, long defaultValue) {
+		final String value = uri.getQueryParameter(key);
+		return TextUtils.isEmpty(value) ? defaultValue : Long.parseLong(value);
+	}
+
+	/**
+	 * @return the query parameter as an integer or the default value
+	 */
+	public static int getIntParameter(Uri uri, String key, int defaultValue) {
+		final String value = uri.getQueryParameter(key);
+		return TextUtils.isEmpty(value) ? defaultValue : Integer.parseInt(value);
+	}
+
+	/**
+	 * @return the query parameter as a boolean or the default value
+	 */
+	public static boolean getBooleanParameter(Uri uri, String key, boolean defaultValue) {
+		final String value = uri.getQueryParameter(key);
+		return TextUtils.isEmpty(value) ? defaultValue : Boolean.parseBoolean(value);
+	}
+
+	/**
+	 * @param jResult the departures (schedule providers & cache JSON format)
+	 * @return the departures cursor or null
+	 */
+	public static Cursor getCursor(JSONObject jResult) {
+		if (jResult == null) {
+			return null;
+		}
+		final DepartureCursor cursor = new DepartureCursor(PROJECTION, getExtras(jResult));
+		final JSONArray jTimestamps = jResult.optJSONArray("timestamps");
+		if (jTimestamps != null) {
+			for (int i = 0; i < jTimestamps.length(); i++) {
+				cursor.addRow(new Object[] { jTimestamps.optLong(i) });
+			}
+		}
+		return cursor;
+	}
+
+	/**
+	 * @param jResults the departures of each route trip stop UUID (schedule providers & cache JSON format)
+	 * @return the batch departures cursor
+	 */
+	public static Cursor getBatchCursor(Map<String, JSONObject> jResults) {
+		final Bundle extras = new Bundle();
+		extras.putInt(EXTRA_VERSION, VERSION);
+		final DepartureCursor cursor = new DepartureCursor(BATCH_PROJECTION, extras);
+		for (Map.Entry<String, JSONObject> jResult : jResults.entrySet()) {
+			if (jResult.getValue() == null) {
+				continue;
+			}
+			extras.putBundle(jResult.getKey(), getExtras(jResult.getValue()));
+			final JSONArray jTimestamps = jResult.getValue().optJSONArray("timestamps");
+			if (jTimestamps != null) {
+				for (int i = 0; i < jTimestamps.length(); i++) {
+					cursor.addRow(new Object[] { jResult.getKey(), jTimestamps.optLong(i) });
+				}
+			}
+		}
+		return cursor;
+	}
+
+	private static Bundle getExtras(JSONObject jResult) {
+		final Bundle extras = new Bundle();
+		extras.putInt(EXTRA_VERSION, VERSION);
+		extras.putString(EXTRA_SOURCE, jResult.optString("source"));
+		extras.putBoolean(EXTRA_REALTIME, jResult.optBoolean("realtime"));
+		if (jResult.has("error")) {
+			extras.putString(EXTRA_ERROR, jResult.optString("error"));
+		}
+		final JSONArray jMessages = jResult.optJSONArray("messages");
+		if (jMessages != null && jMessages.length() > 0) {
+			extras.putString(EXTRA_MESSAGE, jMessages.optString(0));
+			if (jMessages.length() > 1) {
+				extras.putString(EXTRA_MESSAGE2, jMessages.optString(1));
+			}
+		}
+		return extras;
+	}
+
+	/**
+	 * @param cursor the departures cursor
+	 * @return the stop times
+	 */
+	public static StopTimes getStopTimes(Cursor cursor) {
+		final List<Long> timestamps = new ArrayList<Long>(cursor.getCount());
+		if (cursor.moveToFirst()) {
+			final int timestampIdx = cursor.getColumnIndexOrThrow(COLUMN_TIMESTAMP);
+			do {
+				timestamps.add(cursor.getLong(timestampIdx));
+			} while (cursor.moveToNext());
+		}
+		return getStopTimes(cursor.getExtras(), timestamps);
+	}
+
+	/**
+	 * @param cursor the batch departures cursor
+	 * @return the stop times of each route trip stop UUID with departures (or error) in the result
+	 */
+	public static Map<String, StopTimes> getStopTimesByUUID(Cursor cursor) {
+		final Map<String, List<Long>> uuidTimestamps = new HashMap<String, List<Long>>();
+		if (cursor.moveToFirst()) {
+			final int uuidIdx = cursor.getColumnIndexOrThrow(COLUMN_UUID);
+			final int timestampIdx = cursor.getColumnIndexOrThrow(COLUMN_TIMESTAMP);
+			do {
+				final String uuid = cursor.getString(uuidIdx);
+				List<Long> timestamps = uuidTimestamps.get(uuid);
+				if (timestamps == null) {
+					timestamps = new ArrayList<Long>();
+					uuidTimestamps.put(uuid, timestamps);
+				}
+				timestamps.add(cursor.getLong(timestampIdx));
+			} while (cursor.moveToNext());
+		}
+		final Map<String, StopTimes> result = new HashMap<String, StopTimes>();
+		final Bundle extras = cursor.getExtras();
+		for (String uuid : extras.keySet()) {
+			if (EXTRA_VERSION.equals(uuid)) {
+				continue;
+			}
+			final List<Long> timestamps = uuidTimestamps.get(uuid);
+			result.put(uuid, getStopTimes(extras.getBundle(uuid), timestamps == null ? new ArrayList<Long>() : timestamps));
+		}
+		return result;
+	}
+
+	private static StopTimes getStopTimes(Bundle extras, List<Long> timestamps) {
+		final StopTimes stopTimes = StopTimes.fromTimestamps(extras.getString(EXTRA_SOURCE), extras.getBoolean(EXTRA_REALTIME), timestamps);
+		stopTimes.setError(extras.getString(EXTRA_ERROR));
+		if (extras.containsKey(EXTRA_MESSAGE)) {
+			stopTimes.addMessageString(extras.getString(EXTRA_MESSAGE));
+		}
+		if (extras.containsKey(EXTRA_MESSAGE2)) {
+			stopTimes.addMessage2String(extras.getString(EXTRA_MESSAGE2));
+		}
+		return stopTimes;
+	}
+
+	/**
+	 * The departures cursor with the departures metadata in the extras (sent with the rows to the other process).
+	 */
+	private static class DepartureCursor extends MatrixCursor {
+
+		private final Bundle extras;
+
+		public DepartureCursor(String[] columnNames, Bundle extras) {
+			super(columnNames);
+			this.extras = extras;
+		}
+
+		@Override
+		public Bundle getExtras() {
+			return this.extras;
+		}
+	}
+}
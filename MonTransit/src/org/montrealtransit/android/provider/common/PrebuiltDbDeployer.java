@@ -0,0 +1,111 @@
+package org.montrealtransit.android.provider.common;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+
+import org.montrealtransit.android.MyLog;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * Deploy the SQLite DB files generated at build time (assets/databases/) instead of inserting the raw files rows on the device.
+ * <p>
+ * The packaged file is copied next to the DB and then renamed over it so a DB is never half-copied. If there is no packaged file (built without
+ * the Ant target) or if the copy fails, the DB helper falls back to its raw files in onCreate()/onUpgrade().
+ */
+public class PrebuiltDbDeployer {
+
+	private static final String TAG = PrebuiltDbDeployer.class.getSimpleName();
+
+	private static final String ASSET_DIR = "databases/";
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * @return true if the packaged DB has been deployed
+	 */
+	public static boolean deployIfNecessary(Context context, String dbName, int dbVersion) {
+		MyLog.v(TAG, "deployIfNecessary(%s, %s)", dbName, dbVersion);
+		if (AbstractDbHelper.isDbExist(context, dbName) && AbstractDbHelper.getCurrentDbVersion(context, dbName) == dbVersion) {
+			return false; // already deployed
+		}
+		long startTime = System.currentTimeMillis();
+		InputStream is = null;
+		FileOutputStream os = null;
+		File dbFile = context.getDatabasePath(dbName);
+		File tmpFile = new File(dbFile.getParentFile(), dbName + ".tmp");
+		try {
+			try {
+				is = context.getAssets().open(ASSET_DIR + dbName);
+			} catch (FileNotFoundException fnfe) {
+				MyLog.d(TAG, "No packaged DB '%s'.", dbName);
+				return false;
+			}
+			if (!dbFile.getParentFile().exists() && !dbFile.getParentFile().mkdirs()) {
+				MyLog.w(TAG, "Can't create databases directory for '%s'!", dbName);
+				return false;
+			}
+			os = new FileOutputStream(tmpFile);
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int length;
+			while ((length = is.read(buffer)) > 0) {
+				os.write(buffer, 0, length);
+			}
+			os.flush();
+			os.getFD().sync();
+			os.close();
+			os = null;
+			final int packagedVersion = getDbVersion(tmpFile);
+			if (packagedVersion != dbVersion) {
+				MyLog.w(TAG, "Packaged DB '%s' version is %s instead of %s!", dbName, packagedVersion, dbVersion);
+				tmpFile.delete();
+				return false;
+			}
+			new File(dbFile.getPath() + "-journal").delete(); // journal of the old DB
+			if (!tmpFile.renameTo(dbFile)) {
+				MyLog.w(TAG, "Can't replace DB '%s' with packaged DB!", dbName);
+				tmpFile.delete();
+				return false;
+			}
+			MyLog.d(TAG, "Packaged DB '%s' deployed in %s ms (%s bytes).", dbName, System.currentTimeMillis() - startTime, dbFile.length());
+			return true;
+		} catch (Exception e) {
+			MyLog.w(TAG, e, "ERROR while deploying packaged DB '%s'!", dbName);
+			tmpFile.delete();
+			return false;
+		} finally {
+			try {
+				if (is != null) {
+					is.close();
+				}
+			} catch (Exception e) {
+				MyLog.w(TAG, e, "ERROR while closing the input stream!");
+			}
+			try {
+				if (os != null) {
+					os.close();
+				}
+			} catch (Exception e) {
+				MyLog.w(TAG, e, "ERROR while closing the output stream!");
+			}
+		}
+	}
+
+	private static int getDbVersion(File dbFile) {
+		SQLiteDatabase db = null;
+		try {
+			db = SQLiteDatabase.openDatabase(dbFile.getPath(), null, SQLiteDatabase.OPEN_READONLY);
+			return db.getVersion();
+		} catch (Throwable t) {
+			MyLog.w(TAG, t, "Error while reading DB '%s' version!", dbFile);
+			return -1;
+		} finally {
+			if (db != null) {
+				db.close();
+			}
+		}
+	}
+}
@@ -6,6 +6,8 @@ public final class SqlUtils {
 	public static final String CREATE_TABLE_IF_NOT_EXIST = CREATE_TABLE + "IF NOT EXISTS ";
 	public static final String DROP_TABLE = "DROP TABLE ";
 	public static final String DROP_TABLE_IF_EXISTS = DROP_TABLE + "IF EXISTS ";
+	public static final String CREATE_INDEX = "CREATE INDEX ";
+	public static final String CREATE_INDEX_IF_NOT_EXIST = CREATE_INDEX + "IF NOT EXISTS ";
 
 	public static final String INT = " integer";
 	public static final String INT_PK = INT + " PRIMARY KEY";
@@ -27,6 +29,23 @@ public final class SqlUtils {
 		return " FOREIGN KEY(" + columnName + ") REFERENCES " + fkTable + "(" + fkColumn + ")";
 	}
 
+	/**
+	 * @return the create index query (index name: table_column1_column2_idx)
+	 */
+	public static String getSQLCreateIndexQuery(String table, String... columnNames) {
+		StringBuilder indexNameSb = new StringBuilder(table);
+		StringBuilder columnsSb = new StringBuilder();
+		for (String columnName : columnNames) {
+			indexNameSb.append('_').append(columnName);
+			if (columnsSb.length() > 0) {
+				columnsSb.append(',');
+			}
+			columnsSb.append(columnName);
+		}
+		indexNameSb.append("_idx");
+		return CREATE_INDEX_IF_NOT_EXIST + indexNameSb + " ON " + table + "(" + columnsSb + ")";
+	}
+
 	private SqlUtils() {
 	}
 
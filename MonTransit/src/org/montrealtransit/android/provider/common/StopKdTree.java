@@ -0,0 +1,227 @@
+package org.montrealtransit.android.provider.common;
+
+/**
+ * Immutable 2-d tree of the stops coordinates answering k-nearest stops queries.
+ * <p>
+ * The tree is stored in primitive arrays sorted in place: the node of the range [lo, hi) is the middle item, splitting on the latitude (even depth)
+ * or the longitude (odd depth). The distance is the equirectangular approximation (good enough at the scale of a city) and the callers compute the
+ * real distance of the result.
+ */
+public class StopKdTree {
+
+	/**
+	 * Length of one degree of latitude (mean Earth radius).
+	 */
+	private static final double METERS_PER_DEGREE = 111195.0;
+
+	private final int[] stopIds;
+	private final double[] lats;
+	private final double[] lngs;
+
+	private StopKdTree(int[] stopIds, double[] lats, double[] lngs) {
+		this.stopIds = stopIds;
+		this.lats = lats;
+		this.lngs = lngs;
+	}
+
+	/**
+	 * @param stopIds the stop IDs
+	 * @param lats the stop latitudes
+	 * @param lngs the stop longitudes
+	 * @param size the number of stops in the arrays (the arrays are copied)
+	 */
+	public static StopKdTree build(int[] stopIds, double[] lats, double[] lngs, int size) {
+		int[] treeStopIds = new int[size];
+		double[] treeLats = new double[size];
+		double[] treeLngs = new double[size];
+		System.arraycopy(stopIds, 0, treeStopIds, 0, size);
+		System.arraycopy(lats, 0, treeLats, 0, size);
+		System.arraycopy(lngs, 0, treeLngs, 0, size);
+		StopKdTree tree = new StopKdTree(treeStopIds, treeLats, treeLngs);
+		tree.build(0, size, 0);
+		return tree;
+	}
+
+	public int size() {
+		return this.stopIds.length;
+	}
+
+	/**
+	 * @param lat the latitude
+	 * @param lng the longitude
+	 * @param k the maximum number of stops
+	 * @param maxDistanceInMeters the maximum distance
+	 * @return the IDs of the k closest stops (closest first)
+	 */
+	public int[] findClosest(double lat, double lng, int k, float maxDistanceInMeters) {
+		if (k <= 0 || size() == 0) {
+			return new int[0];
+		}
+		final double maxDistanceInDegrees = maxDistanceInMeters / METERS_PER_DEGREE;
+		Search search = new Search(lat, lng, Math.min(k, size()), maxDistanceInDegrees * maxDistanceInDegrees);
+		search(search, 0, size(), 0);
+		return search.getStopIds();
+	}
+
+	private void build(int lo, int hi, int depth) {
+		if (hi - lo <= 1) {
+			return;
+		}
+		final int mid = (lo + hi) >>> 1;
+		select(lo, hi - 1, mid, depth % 2 == 0 ? this.lats : this.lngs);
+		build(lo, mid, depth + 1);
+		build(mid + 1, hi, depth + 1);
+	}
+
+	/**
+	 * Move the k-th smallest item of [left, right] to k, smaller items before and bigger items after (quick select).
+	 */
+	private void select(int left, int right, int k, double[] values) {
+		while (right > left) {
+			final double pivot = values[(left + right) >>> 1];
+			int i = left;
+			int j = right;
+			while (i <= j) {
+				while (values[i] < pivot) {
+					i++;
+				}
+				while (values[j] > pivot) {
+					j--;
+				}
+				if (i <= j) {
+					swap(i, j);
+					i++;
+					j--;
+				}
+			}
+			if (k <= j) {
+				right = j;
+			} else if (k >= i) {
+				left = i;
+			} else {
+				return;
+			}
+		}
+	}
+
+	private void swap(int i, int j) {
+		final int stopId = this.stopIds[i];
+		this.stopIds[i] = this.stopIds[j];
+		this.stopIds[j] = stopId;
+		final double lat = this.lats[i];
+		this.lats[i] = this.lats[j];
+		this.lats[j] = lat;
+		final double lng = this.lngs[i];
+		this.lngs[i] = this.lngs[j];
+		this.lngs[j] = lng;
+	}
+
+	private void search(Search search, int lo, int hi, int depth) {
+		if (lo >= hi) {
+			return;
+		}
+		final int mid = (lo + hi) >>> 1;
+		final double dLat = search.lat - this.lats[mid];
+		final double dLng = (search.lng - this.lngs[mid]) * search.lngScale;
+		search.offer(mid, dLat * dLat + dLng * dLng);
+		final double diff = depth % 2 == 0 ? dLat : dLng;
+		if (diff < 0) {
+			search(search, lo, mid, depth + 1);
+			if (diff * diff <= search.getBound()) {
+				search(search, mid + 1, hi, depth + 1);
+			}
+		} else {
+			search(search, mid + 1, hi, depth + 1);
+			if (diff * diff <= search.getBound()) {
+				search(search, lo, mid, depth + 1);
+			}
+		}
+	}
+
+	/**
+	 * The state of one query: a max-heap of the k closest items found so far.
+	 */
+	private class Search {
+
+		private final double lat;
+		private final double lng;
+		private final double lngScale;
+		private final double maxDistance;
+
+		private final int[] heapIdx;
+		private final double[] heapDistances;
+		private int count = 0;
+
+		public Search(double lat, double lng, int k, double maxDistance) {
+			this.lat = lat;
+			this.lng = lng;
+			this.lngScale = Math.cos(Math.toRadians(lat));
+			this.maxDistance = maxDistance;
+			this.heapIdx = new int[k];
+			this.heapDistances = new double[k];
+		}
+
+		public double getBound() {
+			return this.count < this.heapIdx.length ? this.maxDistance : this.heapDistances[0];
+		}
+
+		public void offer(int idx, double distance) {
+			if (distance > getBound()) {
+				return;
+			}
+			if (this.count < this.heapIdx.length) {
+				int i = this.count++;
+				while (i > 0) { // sift up
+					final int parent = (i - 1) / 2;
+					if (this.heapDistances[parent] >= distance) {
+						break;
+					}
+					this.heapIdx[i] = this.heapIdx[parent];
+					this.heapDistances[i] = this.heapDistances[parent];
+					i = parent;
+				}
+				this.heapIdx[i] = idx;
+				this.heapDistances[i] = distance;
+			} else {
+				siftDown(idx, distance, this.count);
+			}
+		}
+
+		/**
+		 * Replace the root (farthest item) of the heap [0, size) with the new item.
+		 */
+		private void siftDown(int idx, double distance, int size) {
+			int i = 0;
+			while (true) {
+				int child = 2 * i + 1;
+				if (child >= size) {
+					break;
+				}
+				if (child + 1 < size && this.heapDistances[child + 1] > this.heapDistances[child]) {
+					child++;
+				}
+				if (this.heapDistances[child] <= distance) {
+					break;
+				}
+				this.heapIdx[i] = this.heapIdx[child];
+				this.heapDistances[i] = this.heapDistances[child];
+				i = child;
+			}
+			this.heapIdx[i] = idx;
+			this.heapDistances[i] = distance;
+		}
+
+		/**
+		 * @return the stop IDs, closest first (empties the heap)
+		 */
+		public int[] getStopIds() {
+			int[] result = new int[this.count];
+			for (int size = this.count; size > 0; size--) {
+				result[size - 1] = StopKdTree.this.stopIds[this.heapIdx[0]];
+				siftDown(this.heapIdx[size - 1], this.heapDistances[size - 1], size - 1);
+			}
+			this.count = 0;
+			return result;
+		}
+	}
+}
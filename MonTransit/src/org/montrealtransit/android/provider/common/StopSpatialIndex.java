@@ -0,0 +1,114 @@
+package org.montrealtransit.android.provider.common;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.montrealtransit.android.data.RouteTripStop;
+import org.montrealtransit.android.data.Stop;
+
+/**
+ * In-memory closest stops index of one authority: the {@link StopKdTree} of all the stops and the route trip stops of the most recently used stops.
+ * <p>
+ * The index is built for one DB version and never modified (except the route trip stops cache). As the user walks, the closest stops are mostly the
+ * same so the route trip stops are read from the cache instead of the content provider.
+ */
+public class StopSpatialIndex {
+
+	/**
+	 * The maximum number of stops in the route trip stops cache.
+	 */
+	private static final int MAX_CACHED_STOPS = 500;
+
+	/**
+	 * The minimum time between 2 checks of the DB version.
+	 */
+	private static final long VERSION_CHECK_INTERVAL_IN_MS = 60 * 1000; // 1 minute
+
+	private final String authority;
+
+	private final int dbVersion;
+
+	private final StopKdTree stopKdTree;
+
+	private long lastVersionCheckInMs;
+
+	/**
+	 * The route trip stops of each stop, sorted by route ID and stop sequence (least recently used first).
+	 */
+	private final Map<Integer, List<RouteTripStop>> routeTripStops = new LinkedHashMap<Integer, List<RouteTripStop>>(16, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, List<RouteTripStop>> eldest) {
+			return size() > MAX_CACHED_STOPS;
+		}
+	};
+
+	public StopSpatialIndex(String authority, int dbVersion, StopKdTree stopKdTree) {
+		this.authority = authority;
+		this.dbVersion = dbVersion;
+		this.stopKdTree = stopKdTree;
+		this.lastVersionCheckInMs = System.currentTimeMillis();
+	}
+
+	public String getAuthority() {
+		return authority;
+	}
+
+	public int getDbVersion() {
+		return dbVersion;
+	}
+
+	public StopKdTree getStopKdTree() {
+		return stopKdTree;
+	}
+
+	/**
+	 * @return true if the DB version should be checked again (the version is checked at most once every minute)
+	 */
+	public boolean isVersionCheckRequired() {
+		return System.currentTimeMillis() - this.lastVersionCheckInMs > VERSION_CHECK_INTERVAL_IN_MS;
+	}
+
+	public void setVersionChecked() {
+		this.lastVersionCheckInMs = System.currentTimeMillis();
+	}
+
+	/**
+	 * @param stopRouteTripStops the route trip stops of the stop (empty if none)
+	 * @return a copy of the route trip stops (the distance is stored in the {@link Stop})
+	 */
+	public synchronized List<RouteTripStop> putRouteTripStops(int stopId, List<RouteTripStop> stopRouteTripStops) {
+		this.routeTripStops.put(stopId, stopRouteTripStops);
+		return copy(stopRouteTripStops);
+	}
+
+	/**
+	 * Add a copy of the cached route trip stops of each stop to the result (the distance is stored in the {@link Stop}).
+	 * @param result the route trip stops of each cached stop
+	 * @return the IDs of the stops not in the cache
+	 */
+	public synchronized List<Integer> getRouteTripStops(int[] stopIds, Map<Integer, List<RouteTripStop>> result) {
+		List<Integer> missingStopIds = new ArrayList<Integer>();
+		for (int stopId : stopIds) {
+			final List<RouteTripStop> stopRouteTripStops = this.routeTripStops.get(stopId);
+			if (stopRouteTripStops == null) {
+				missingStopIds.add(stopId);
+			} else {
+				result.put(stopId, copy(stopRouteTripStops));
+			}
+		}
+		return missingStopIds;
+	}
+
+	private List<RouteTripStop> copy(List<RouteTripStop> stopRouteTripStops) {
+		List<RouteTripStop> result = new ArrayList<RouteTripStop>(stopRouteTripStops.size());
+		for (RouteTripStop routeTripStop : stopRouteTripStops) {
+			result.add(new RouteTripStop(this.authority, routeTripStop.route, routeTripStop.trip, new Stop(routeTripStop.stop)));
+		}
+		return result;
+	}
+}
@@ -2,32 +2,39 @@ package org.montrealtransit.android.provider.stmbus.schedule;
 
 import java.net.HttpURLConnection;
 import java.net.SocketException;
-import java.net.URL;
-import java.net.URLConnection;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.montrealtransit.android.AnalyticsUtils;
+import org.montrealtransit.android.CircuitBreaker;
 import org.montrealtransit.android.Constant;
+import org.montrealtransit.android.HttpUtils;
 import org.montrealtransit.android.MyLog;
 import org.montrealtransit.android.R;
 import org.montrealtransit.android.Utils;
+import org.montrealtransit.android.api.SupportFactory;
 import org.montrealtransit.android.data.RouteTripStop;
 import org.montrealtransit.android.provider.DataStore.Cache;
 import org.montrealtransit.android.provider.StmBusScheduleManager;
 import org.montrealtransit.android.provider.common.AbstractScheduleProvider;
 
 import android.content.UriMatcher;
-import android.database.Cursor;
 import android.os.Environment;
 import android.text.TextUtils;
 
@@ -64,6 +71,59 @@ public class StmBusLiveScheduleProvider extends AbstractScheduleProvider {
 	// NOT THREAD SAFE
 	private static final SimpleDateFormat URL_TIME_FORMAT = new SimpleDateFormat(URL_TIME_FORMAT_PATTERN);
 
+	/**
+	 * The maximum number of departures asked to the source (the rest of the day most of the time).
+	 */
+	private static final int URL_LIMIT = 100;
+
+	/**
+	 * The maximum number of departures windows in memory.
+	 */
+	private static final int MAX_WINDOWS = 50;
+
+	/**
+	 * How long (in seconds) before the departures window is too old to be reused (new messages from the source?).
+	 */
+	public static final int WINDOW_MAX_AGE_IN_SEC = 30 * 60; // 30 minutes
+
+	/**
+	 * The minimum number of next departures in the departures window before asking the source for more.
+	 */
+	public static final int WINDOW_MIN_NEXT_DEPARTURES = 5;
+
+	/**
+	 * The maximum time to connect to the source and then the maximum time waiting for data (the offline schedule is shown in the meantime).
+	 */
+	public static final int LATENCY_BUDGET_IN_MS = 5 * 1000; // 5 seconds
+
+	/**
+	 * The number of source failures in a row before skipping the source.
+	 */
+	public static final int CIRCUIT_BREAKER_FAILURE_THRESHOLD = 3;
+
+	/**
+	 * How long (in seconds) the source is skipped before probing it again.
+	 */
+	public static final int CIRCUIT_BREAKER_COOL_DOWN_IN_SEC = 60; // 1 minute
+
+	private static final CircuitBreaker CIRCUIT_BREAKER = new CircuitBreaker(SOURCE_NAME, CIRCUIT_BREAKER_FAILURE_THRESHOLD,
+			CIRCUIT_BREAKER_COOL_DOWN_IN_SEC * 1000L);
+
+	private static Executor probeExecutor;
+
+	/**
+	 * The departures windows fetched from the source for each cache UUID (least recently used first, null after a forced refresh).
+	 */
+	private final Map<String, DepartureWindow> windows = new LinkedHashMap<String, DepartureWindow>(16, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, DepartureWindow> eldest) {
+			return size() > MAX_WINDOWS;
+		}
+	};
+
 	@Override
 	public String getAUTHORITY() {
 		return AUTHORITY;
@@ -76,8 +136,40 @@ public class StmBusLiveScheduleProvider extends AbstractScheduleProvider {
 	}
 
 	@Override
-	public Cursor getDeparture(RouteTripStop routeTripStop, Calendar now, Cache cache, String cacheUUID) {
+	public JSONObject getDeparture(RouteTripStop routeTripStop, Calendar now, Cache cache, String cacheUUID) {
+		return getDeparture(routeTripStop, now, cache, cacheUUID, false);
+	}
+
+	/**
+	 * @param probe true if probing the source in the background (circuit breaker open)
+	 */
+	private JSONObject getDeparture(final RouteTripStop routeTripStop, final Calendar now, final Cache cache, final String cacheUUID, boolean probe) {
 		try {
+			// IF the departures fetched earlier today are still useful DO filter them instead of asking the source again
+			final DepartureWindow window = getDepartureWindow(cacheUUID, cache);
+			if (window != null && window.isUseful(now.getTimeInMillis())) {
+				MyLog.d(TAG, "Departures window reused for '%s'.", cacheUUID);
+				return window.toJSON(now.getTimeInMillis());
+			}
+			// IF the source is failing DO answer at once (cache or error) and probe the source in the background
+			if (!probe && !CIRCUIT_BREAKER.isClosed()) {
+				MyLog.d(TAG, "Source skipped for '%s' (%s).", cacheUUID, CIRCUIT_BREAKER);
+				if (CIRCUIT_BREAKER.tryProbe()) {
+					getProbeExecutor().execute(new Runnable() {
+						@Override
+						public void run() {
+							try {
+								getDeparture(routeTripStop, now, cache, cacheUUID, true); // saved to cache if the source is back
+							} catch (Throwable t) {
+								MyLog.w(TAG, t, "Error!");
+							} finally {
+								CIRCUIT_BREAKER.endProbe();
+							}
+						}
+					});
+				}
+				return getSourceUnavailableDeparture(cache, cacheUUID);
+			}
 			final Date nowDate = now.getTime();
 			final String urlDateS = URL_DATE_FORMAT.format(nowDate);
 			final String urlTimeS = URL_TIME_FORMAT.format(nowDate);
@@ -97,14 +189,14 @@ public class StmBusLiveScheduleProvider extends AbstractScheduleProvider {
 			List<Long> allTimestamps = new ArrayList<Long>();
 			// try to load from www
 			try {
-				URL url = new URL(getUrlStringWithDateAndTime(routeTripStop, urlDateS, urlTimeS));
-				URLConnection urlc = url.openConnection();
-				MyLog.d(TAG, "URL created: '%s'", url.toString());
-				HttpURLConnection httpUrlConnection = (HttpURLConnection) urlc;
-				switch (httpUrlConnection.getResponseCode()) {
+				HttpURLConnection httpUrlConnection = HttpUtils.openConnection(getUrlStringWithDateAndTime(routeTripStop, urlDateS, urlTimeS), false,
+						LATENCY_BUDGET_IN_MS, LATENCY_BUDGET_IN_MS);
+				MyLog.d(TAG, "URL created: '%s'", httpUrlConnection.getURL());
+				switch (HttpUtils.getResponseCode(httpUrlConnection)) {
 				case HttpURLConnection.HTTP_OK:
 					MyLog.d(TAG, "HttpURLConnection.HTTP_OK");
-					String json = Utils.getJson(urlc);
+					String json = HttpUtils.readString(httpUrlConnection);
+					CIRCUIT_BREAKER.onSuccess();
 					// MyLog.d(TAG, "json:%s", json);
 					AnalyticsUtils.dispatch(getContext()); // while we are connected, send the analytics data
 					final JSONObject jResponse = new JSONObject(json);
@@ -158,6 +250,7 @@ public class StmBusLiveScheduleProvider extends AbstractScheduleProvider {
 					AnalyticsUtils.trackEvent(getContext(), AnalyticsUtils.CATEGORY_ERROR, AnalyticsUtils.ACTION_HTTP_ERROR, SOURCE_NAME,
 							httpUrlConnection.getResponseCode());
 					errorMessage = getContext().getString(R.string.error);
+					CIRCUIT_BREAKER.onFailure();
 					break;
 				}
 			} catch (UnknownHostException uhe) {
@@ -168,23 +261,31 @@ public class StmBusLiveScheduleProvider extends AbstractScheduleProvider {
 				jMessages.put(noInternetMsg);
 			} catch (SocketException se) {
 				MyLog.w(TAG, se, "No Internet Connection!");
+				CIRCUIT_BREAKER.onFailure();
+				if (!TextUtils.isEmpty(noOfflineSchedule)) {
+					jMessages.put(noOfflineSchedule);
+				}
+				jMessages.put(noInternetMsg);
+			} catch (SocketTimeoutException ste) {
+				MyLog.w(TAG, ste, "Connection too slow!");
+				CIRCUIT_BREAKER.onFailure();
 				if (!TextUtils.isEmpty(noOfflineSchedule)) {
 					jMessages.put(noOfflineSchedule);
 				}
 				jMessages.put(noInternetMsg);
 			} catch (Exception e) {
 				MyLog.e(TAG, e, "INTERNAL ERROR: Unknown Exception");
+				CIRCUIT_BREAKER.onFailure();
 				errorMessage = getContext().getString(R.string.error);
 			}
 			// IF we had cache AND no new data DO use cache instead
 			if (cache != null && allTimestamps.size() == 0) {
 				// at this point, loaded cache is valid because it would have been deleted if too old before calling this provider
-				try {
-					return getDepartureCursor(new JSONObject(cache.getObject()));
-				} catch (JSONException jsone) {
-					MyLog.w(TAG, jsone, "Error while parsing JSON from cache!");
-					// cache not valid, returning error from www
+				final JSONObject jCache = getDepartureCache().getJSON(cacheUUID, cache);
+				if (jCache != null) {
+					return jCache;
 				}
+				// cache not valid, returning error from www
 			}
 			// create JSON
 			final JSONObject jResult = new JSONObject();
@@ -201,11 +302,14 @@ public class StmBusLiveScheduleProvider extends AbstractScheduleProvider {
 			if (!TextUtils.isEmpty(errorMessage)) {
 				jResult.put("error", errorMessage);
 			}
+			if (allTimestamps.size() > 0) {
+				putDepartureWindow(cacheUUID, new DepartureWindow(System.currentTimeMillis(), toArray(allTimestamps), jMessages));
+			}
 			// MyLog.d(TAG, "jResult: %s", jResult);
 			// save to cache
 			saveToCache(cacheUUID, jResult);
 			// return result
-			return getDepartureCursor(jResult);
+			return jResult;
 		} catch (JSONException jsone) {
 			MyLog.w(TAG, jsone, "Error while parsing JSON '%s'!", routeTripStop);
 			return null;
@@ -239,6 +343,7 @@ public class StmBusLiveScheduleProvider extends AbstractScheduleProvider {
 	public static final SimpleDateFormat TO_TIMESTAMP_FORMAT = new SimpleDateFormat(URL_DATE_FORMAT_PATTERN + SOURCE_FORMAT_PATTERN);
 
 	public static final int STM_DAYS_ENDS_AT_ON_THE_NEXT_DAY = 500; // 05:00 AM
+	private static final long STM_DAYS_ENDS_AT_IN_MS = ((STM_DAYS_ENDS_AT_ON_THE_NEXT_DAY / 100) * 60 + STM_DAYS_ENDS_AT_ON_THE_NEXT_DAY % 100) * 60 * 1000L;
 	private static final long ONE_DAY_IN_MILLIS = 1 * 24 * 60 * 60 * 1000;
 
 	private Long parseTime(String urlDateS, String timeToParse, long previousTimestamp) {
@@ -273,12 +378,186 @@ public class StmBusLiveScheduleProvider extends AbstractScheduleProvider {
 				.append(URL_PART_2_BEFORE_ROUTE_ID).append(routeTripStop.route.id) // line number
 				.append(URL_PART_3_BEFORE_STOP_CODE).append(routeTripStop.stop.id) // stop code
 				.append(URL_PART_4_BEFORE_TRIP_HEADSIGN_VALUE).append(routeTripStop.trip.headsignValue) // line direction
-				.append(URL_PART_5_BEFORE_LIMIT).append(100) // without limit, return all schedule for the day
+				.append(URL_PART_5_BEFORE_LIMIT).append(URL_LIMIT) // without limit, return all schedule for the day
 				.append(URL_PART_6_BEFORE_DATE).append(urlDateS) // date 20100602
 				.append(URL_PART_7_BEFORE_TIME).append(urlTimeS) // time 2359
 				.toString();
 	}
 
+	/**
+	 * @return the cached departures or the source error (source skipped by the circuit breaker)
+	 */
+	private JSONObject getSourceUnavailableDeparture(Cache cache, String cacheUUID) throws JSONException {
+		if (cache != null) {
+			final JSONObject jCache = getDepartureCache().getJSON(cacheUUID, cache);
+			if (jCache != null) {
+				return jCache;
+			}
+		}
+		final JSONObject jResult = new JSONObject();
+		jResult.put("realtime", true);
+		jResult.put("source", SOURCE_NAME);
+		jResult.put("timestamps", new JSONArray());
+		jResult.put("messages", new JSONArray());
+		jResult.put("error", getContext().getString(R.string.error_http_504_and_source));
+		return jResult;
+	}
+
+	/**
+	 * @return the executor probing the source in the background (1 thread)
+	 */
+	private static synchronized Executor getProbeExecutor() {
+		if (probeExecutor == null) {
+			probeExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS, SupportFactory.get().getNewBlockingQueue(), new RejectedExecutionHandler() {
+
+				@Override
+				public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+					MyLog.d(TAG, "Source probe rejected!");
+					CIRCUIT_BREAKER.endProbe(); // too bad, next query will probe
+				}
+			});
+		}
+		return probeExecutor;
+	}
+
+	/**
+	 * @param cache the departures in the cache table (used if the departures window is not in memory) or null
+	 * @return the departures window fetched from the source or null
+	 */
+	private DepartureWindow getDepartureWindow(String cacheUUID, Cache cache) throws JSONException {
+		synchronized (this.windows) {
+			if (this.windows.containsKey(cacheUUID)) {
+				return this.windows.get(cacheUUID); // null if refresh forced
+			}
+		}
+		if (cache == null) {
+			return null;
+		}
+		final JSONObject jCache = getDepartureCache().getJSON(cacheUUID, cache);
+		final JSONArray jTimestamps = jCache == null ? null : jCache.optJSONArray("timestamps");
+		if (jTimestamps == null || jTimestamps.length() == 0 || jCache.has("error")) {
+			return null;
+		}
+		long[] timestamps = new long[jTimestamps.length()];
+		for (int i = 0; i < timestamps.length; i++) {
+			timestamps[i] = jTimestamps.getLong(i);
+		}
+		final JSONArray jMessages = jCache.optJSONArray("messages");
+		final DepartureWindow window = new DepartureWindow(cache.getDate() * 1000L, timestamps, jMessages == null ? new JSONArray() : jMessages);
+		putDepartureWindow(cacheUUID, window);
+		return window;
+	}
+
+	@Override
+	public void onRefreshForced(String cacheUUID) {
+		synchronized (this.windows) {
+			this.windows.put(cacheUUID, null); // ask the source again (not rebuilt from the cache table)
+		}
+	}
+
+	@Override
+	public void onDepartureCacheCleared() {
+		synchronized (this.windows) {
+			this.windows.clear();
+		}
+	}
+
+	private void putDepartureWindow(String cacheUUID, DepartureWindow window) {
+		synchronized (this.windows) {
+			this.windows.put(cacheUUID, window);
+		}
+	}
+
+	private static long[] toArray(List<Long> sortedTimestamps) {
+		long[] result = new long[sortedTimestamps.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = sortedTimestamps.get(i).longValue();
+		}
+		return result;
+	}
+
+	/**
+	 * @return the STM service day of the time (the day ends at {@link #STM_DAYS_ENDS_AT_ON_THE_NEXT_DAY} on the next day)
+	 */
+	private static int getServiceDay(long timeInMillis) {
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTimeInMillis(timeInMillis - STM_DAYS_ENDS_AT_IN_MS);
+		return calendar.get(Calendar.YEAR) * 1000 + calendar.get(Calendar.DAY_OF_YEAR);
+	}
+
+	/**
+	 * The departures of 1 route trip stop fetched from the source for 1 service day (sorted timestamps), filtered by time to answer the next queries.
+	 */
+	private static class DepartureWindow {
+
+		private final long fetchedAtInMs;
+
+		private final int serviceDay;
+
+		private final long[] timestamps;
+
+		private final JSONArray jMessages;
+
+		/**
+		 * True if the source returned less departures than asked (no more departures today).
+		 */
+		private final boolean complete;
+
+		public DepartureWindow(long fetchedAtInMs, long[] timestamps, JSONArray jMessages) {
+			this.fetchedAtInMs = fetchedAtInMs;
+			this.serviceDay = getServiceDay(fetchedAtInMs);
+			this.timestamps = timestamps;
+			this.jMessages = jMessages;
+			this.complete = timestamps.length < URL_LIMIT;
+		}
+
+		/**
+		 * @return true if the window is recent, from the same service day and still has enough next departures
+		 */
+		public boolean isUseful(long nowInMs) {
+			if (System.currentTimeMillis() - this.fetchedAtInMs > WINDOW_MAX_AGE_IN_SEC * 1000L) {
+				return false; // too old
+			}
+			if (getServiceDay(nowInMs) != this.serviceDay) {
+				return false; // another day
+			}
+			return this.complete || this.timestamps.length - getFirstNextIndex(nowInMs) >= WINDOW_MIN_NEXT_DEPARTURES;
+		}
+
+		/**
+		 * @return the index of the 1st departure after now (binary search)
+		 */
+		private int getFirstNextIndex(long nowInMs) {
+			int lo = 0;
+			int hi = this.timestamps.length;
+			while (lo < hi) {
+				final int mid = (lo + hi) >>> 1;
+				if (this.timestamps[mid] < nowInMs) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			return lo;
+		}
+
+		/**
+		 * @return the departures JSON (the previous departure and the next departures)
+		 */
+		public JSONObject toJSON(long nowInMs) throws JSONException {
+			final JSONObject jResult = new JSONObject();
+			jResult.put("realtime", true); // not actually real-time but close enough (better than planned schedule)
+			jResult.put("source", SOURCE_NAME);
+			final JSONArray jTimestamps = new JSONArray();
+			for (int i = Math.max(0, getFirstNextIndex(nowInMs) - 1); i < this.timestamps.length; i++) {
+				jTimestamps.put(this.timestamps[i]);
+			}
+			jResult.put("timestamps", jTimestamps);
+			jResult.put("messages", this.jMessages);
+			return jResult;
+		}
+	}
+
 	@Override
 	public UriMatcher getURIMATCHER() {
 		return URI_MATCHER;
@@ -5,10 +5,15 @@ import java.io.InputStreamReader;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
-import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -18,14 +23,11 @@ import org.montrealtransit.android.R;
 import org.montrealtransit.android.data.RouteTripStop;
 import org.montrealtransit.android.provider.DataStore.Cache;
 import org.montrealtransit.android.provider.common.AbstractScheduleProvider;
-import org.montrealtransit.android.provider.common.ServiceDateColumns;
+import org.montrealtransit.android.provider.common.ServiceDateCalendar;
 
 import android.content.Context;
 import android.content.UriMatcher;
 import android.database.Cursor;
-import android.database.sqlite.SQLiteDatabase;
-import android.database.sqlite.SQLiteQueryBuilder;
-import android.text.TextUtils;
 
 public class StmSubwayScheduleProvider extends AbstractScheduleProvider {
 
@@ -39,6 +41,11 @@ public class StmSubwayScheduleProvider extends AbstractScheduleProvider {
 
 	private static int currentDbVersion = -1;
 
+	/**
+	 * The service dates of the current DB version.
+	 */
+	private static volatile ServiceDateCalendar serviceDateCalendar;
+
 	@Override
 	public void ping() {
 		// remove this app icon
@@ -67,6 +74,9 @@ public class StmSubwayScheduleProvider extends AbstractScheduleProvider {
 					MyLog.d(TAG, "Update DB...");
 					stmSubwayScheduleDbHelper.close();
 					stmSubwayScheduleDbHelper = null;
+					synchronized (StmSubwayScheduleProvider.class) { // same lock as getServiceDateCalendar()
+						serviceDateCalendar = null;
+					}
 					return getDBHelper(context);
 				}
 			} catch (Throwable t) {
@@ -83,54 +93,61 @@ public class StmSubwayScheduleProvider extends AbstractScheduleProvider {
 	private static final SimpleDateFormat TIME_FORMAT = new SimpleDateFormat("HHmmss");
 
 	@Override
-	public Cursor getDeparture(RouteTripStop routeTripStop, Calendar now, Cache cache, String cacheUUID) {
+	public JSONObject getDeparture(RouteTripStop routeTripStop, Calendar now, Cache cache, String cacheUUID) {
+		MyLog.d(TAG, "Checking yesterday, today and tomorrow schedule...");
+		List<Long> allTimestamps = new ArrayList<Long>(findScheduleList(routeTripStop.trip.id, routeTripStop.stop.id, now).keySet());
+		MyLog.d(TAG, "Checking yesterday, today and tomorrow schedule... DONE (%s)", allTimestamps.size());
+		return getDepartureJSON(routeTripStop, allTimestamps, cacheUUID);
+	}
+
+	@Override
+	public Map<String, JSONObject> getDepartures(List<RouteTripStop> routeTripStops, Calendar now, Map<String, Cache> caches) {
+		MyLog.d(TAG, "Checking yesterday, today and tomorrow schedule of %s route trip stops...", routeTripStops.size());
+		Map<String, JSONObject> result = new HashMap<String, JSONObject>();
+		// 1st find the dates service(s) once
+		final ScheduleDays days = new ScheduleDays(now);
+		final Map<String, Set<String>> datesServiceIds = findServices(days.dates);
+		// 2nd read each stop schedule file once
+		Map<Integer, List<RouteTripStop>> stopRouteTripStops = new HashMap<Integer, List<RouteTripStop>>();
+		for (RouteTripStop routeTripStop : routeTripStops) {
+			List<RouteTripStop> stopList = stopRouteTripStops.get(routeTripStop.stop.id);
+			if (stopList == null) {
+				stopList = new ArrayList<RouteTripStop>();
+				stopRouteTripStops.put(routeTripStop.stop.id, stopList);
+			}
+			stopList.add(routeTripStop);
+		}
+		for (Map.Entry<Integer, List<RouteTripStop>> stop : stopRouteTripStops.entrySet()) {
+			final List<RouteTripStop> stopList = stop.getValue();
+			// 1 trip: stop reading at the end of the trip, more trips: read all the trips
+			final Integer tripId = stopList.size() == 1 ? stopList.get(0).trip.id : null;
+			SortedMap<Long, SortedSet<Integer>> tripIdsByTimestamp = findScheduleList(tripId, stop.getKey(), days.dates, days.afterTimes, days.untilTimes,
+					datesServiceIds);
+			for (RouteTripStop routeTripStop : stopList) {
+				List<Long> allTimestamps = new ArrayList<Long>();
+				for (Map.Entry<Long, SortedSet<Integer>> departure : tripIdsByTimestamp.entrySet()) {
+					if (departure.getValue().contains(routeTripStop.trip.id)) {
+						allTimestamps.add(departure.getKey());
+					}
+				}
+				result.put(routeTripStop.getUUID(), getDepartureJSON(routeTripStop, allTimestamps, getCacheUUID(routeTripStop)));
+			}
+		}
+		MyLog.d(TAG, "Checking yesterday, today and tomorrow schedule of %s route trip stops... DONE (%s stops)", routeTripStops.size(),
+				stopRouteTripStops.size());
+		return result;
+	}
+
+	/**
+	 * @return the departures JSON (saved to the cache)
+	 */
+	private JSONObject getDepartureJSON(RouteTripStop routeTripStop, List<Long> allTimestamps, String cacheUUID) {
 		try {
-			List<Long> allTimestamps = new ArrayList<Long>();
-			// 1ST - check if YESTERDAY schedule is over (because trips started yesterday end with 240000+ time)
-			MyLog.d(TAG, "Checking if yesterday schedule is over...");
-			Calendar yesterday = (Calendar) now.clone();
-			yesterday.add(Calendar.DATE, -1);
-			final String dateYesterday = DATE_FORMAT.format(yesterday.getTime());
-			// MyLog.d(TAG, "Date Yesterday: %s", dateYesterday);
-			final String timeYesterday = String.valueOf(Integer.valueOf(TIME_FORMAT.format(yesterday.getTime())) + 240000);
-			// yesterday.add(Calendar.DATE, +1); TODO ?
-			// MyLog.d(TAG, "Time Yesterday: %s", timeYesterday);
-			final Set<Long> yesterdayTimestamps = findScheduleList(routeTripStop.route.id, routeTripStop.trip.id, routeTripStop.stop.id, dateYesterday,
-					timeYesterday);
-			// MyLog.d(TAG, "result: %s", yesterdayTimestamps.size());
-			allTimestamps.addAll(yesterdayTimestamps);
-			MyLog.d(TAG, "Checking if yesterday schedule is over... DONE");
-			// 2ND - check TODAY schedule
-			MyLog.d(TAG, "Checking today schedule...");
-			final String dateNow = DATE_FORMAT.format(now.getTime());
-			// MyLog.d(TAG, "Date Now: %s", dateNow);
-			final String timeNow = TIME_FORMAT.format(now.getTime());
-			// MyLog.d(TAG, "Time Now: %s", timeNow);
-			final Set<Long> todayTimestamps = findScheduleList(routeTripStop.route.id, routeTripStop.trip.id, routeTripStop.stop.id, dateNow, timeNow);
-			// MyLog.d(TAG, "result: %s", todayTimestamps.size());
-			allTimestamps.addAll(todayTimestamps);
-			MyLog.d(TAG, "Checking today schedule... DONE");
-			// 3RD - look for last schedule => not necessary, query should ask for now minus the previous duration they want to have
-			// 4TH - check TOMORROW schedule
-			MyLog.d(TAG, "Checking tomorrow schedule...");
-			Calendar tomorrow = (Calendar) now.clone();
-			tomorrow.add(Calendar.DATE, +1);
-			final String tomorrowDate = DATE_FORMAT.format(tomorrow.getTime());
-			// MyLog.d(TAG, "Date tomorrow: %s", tomorrowDate);
-			// tomorrow.add(Calendar.DATE, -1);// TODO?
-			final String afterMidnightHour = "000000";
-			// MyLog.d(TAG, "Date tomorrow: %s", afterMidnightHour);
-			final Set<Long> tomorrowTimestamps = findScheduleList(routeTripStop.route.id, routeTripStop.trip.id, routeTripStop.stop.id, tomorrowDate,
-					afterMidnightHour);
-			// MyLog.d(TAG, "result: %s", tomorrowTimestamps.size());
-			allTimestamps.addAll(tomorrowTimestamps);
-			MyLog.d(TAG, "Checking tomorrow schedule... DONE");
 			// create JSON
 			final JSONObject jResult = new JSONObject();
 			jResult.put("realtime", false);
 			jResult.put("source", getContext().getString(R.string.offline_schedule));
 			final JSONArray jTimestamps = new JSONArray();
-			Collections.sort(allTimestamps);
 			for (Long t : allTimestamps) {
 				jTimestamps.put(t);
 			}
@@ -145,13 +162,31 @@ public class StmSubwayScheduleProvider extends AbstractScheduleProvider {
 			// save to cache
 			saveToCache(cacheUUID, jResult);
 			// return result
-			return getDepartureCursor(jResult);
+			return jResult;
 		} catch (JSONException jsone) {
 			MyLog.w(TAG, jsone, "Error while parsing JSON '%s'!", routeTripStop);
 			return null;
 		}
 	}
 
+	@Override
+	public boolean isStopDepartureSupported() {
+		return true;
+	}
+
+	@Override
+	public JSONObject getStopDeparture(int stopId, Calendar now) {
+		try {
+			MyLog.d(TAG, "Checking yesterday, today and tomorrow schedule of all trips...");
+			SortedMap<Long, SortedSet<Integer>> tripIdsByTimestamp = findScheduleList(null, stopId, now);
+			MyLog.d(TAG, "Checking yesterday, today and tomorrow schedule of all trips... DONE (%s)", tripIdsByTimestamp.size());
+			return getStopDepartureJSON(false, getContext().getString(R.string.offline_schedule), tripIdsByTimestamp);
+		} catch (JSONException jsone) {
+			MyLog.w(TAG, jsone, "Error while creating JSON for stop '%s'!", stopId);
+			return null;
+		}
+	}
+
 	public static final int CACHE_MAX_VALIDITY_IN_SEC = 24 * 60 * 60; // 1 day
 
 	@Override
@@ -166,57 +201,133 @@ public class StmSubwayScheduleProvider extends AbstractScheduleProvider {
 		return CACHE_NOT_REFRESHED_IN_SEC;
 	}
 
-	private static final String[] PROJECTION_SERVICE_DATES = new String[] { "service_id" };
-
 	private static final String RAW_FILE_FORMAT = "ca_mtl_stm_subway_schedules_stop_%s";
 
-	private static final int STOP_SCHEDULE_FILE_COL_SERVICE_IDX = 0;
-	private static final int STOP_SCHEDULE_FILE_COL_TRIP_IDX = 1;
-	private static final int STOP_SCHEDULE_FILE_COL_STOP_IDX = 2;
-	private static final int STOP_SCHEDULE_FILE_COL_DEPARTURE_IDX = 3;
-
-	private Set<Long> findScheduleList(int routeId, int tripId, int stopId, String dateS, String timeS) {
-		MyLog.v(TAG, "findScheduleList(%s,%s,%s,%s,%s)", routeId, tripId, stopId, dateS, timeS);
-		long timeI = Integer.parseInt(timeS);
-		Set<Long> result = new HashSet<Long>();
-		// 1st find date service(s) in DB
-		Set<String> serviceIds = findServices(dateS);
-		// MyLog.d(TAG, "findScheduleList() > found %s service(s)", serviceIds.size());
-		// 2nd read schedule file
+	/**
+	 * Find the departures from now until the same time tomorrow in one pass over the stop schedule file.
+	 * <p>
+	 * The yesterday schedule may not be over (trips started yesterday end with 240000+ time) and the tomorrow schedule is read until the same time
+	 * tomorrow (the result is not kept longer than that).
+	 * @param tripId the trip ID or null for all the trips of the stop
+	 * @return the trip IDs of each departure timestamp (sorted)
+	 */
+	private SortedMap<Long, SortedSet<Integer>> findScheduleList(Integer tripId, int stopId, Calendar now) {
+		final ScheduleDays days = new ScheduleDays(now);
+		return findScheduleList(tripId, stopId, days.dates, days.afterTimes, days.untilTimes, findServices(days.dates));
+	}
+
+	/**
+	 * The days of the schedule from now until the same time tomorrow.
+	 */
+	private static class ScheduleDays {
+
+		/**
+		 * Yesterday, today & tomorrow (yyyyMMdd).
+		 */
+		private final String[] dates;
+		private final int[] afterTimes;
+		private final int[] untilTimes;
+
+		public ScheduleDays(Calendar now) {
+			Calendar yesterday = (Calendar) now.clone();
+			yesterday.add(Calendar.DATE, -1);
+			Calendar tomorrow = (Calendar) now.clone();
+			tomorrow.add(Calendar.DATE, +1);
+			final int timeNow = Integer.parseInt(TIME_FORMAT.format(now.getTime()));
+			this.dates = new String[] { DATE_FORMAT.format(yesterday.getTime()), DATE_FORMAT.format(now.getTime()),
+					DATE_FORMAT.format(tomorrow.getTime()) };
+			this.afterTimes = new int[] { timeNow + 240000, timeNow, 0 };
+			this.untilTimes = new int[] { Integer.MAX_VALUE, Integer.MAX_VALUE, timeNow };
+		}
+	}
+
+	/**
+	 * Find the departures of multiple days in one pass over the stop schedule file.
+	 * @param tripId the trip ID or null for all the trips of the stop
+	 * @param dates the dates (yyyyMMdd)
+	 * @param afterTimes the departures (HHMMSS) of each date have to be strictly after this time
+	 * @param untilTimes the departures (HHMMSS) of each date have to be before or at this time
+	 * @param datesServiceIds the service IDs of each date
+	 * @return the trip IDs of each departure timestamp (sorted)
+	 */
+	private SortedMap<Long, SortedSet<Integer>> findScheduleList(Integer tripId, int stopId, String[] dates, int[] afterTimes, int[] untilTimes,
+			Map<String, Set<String>> datesServiceIds) {
+		MyLog.v(TAG, "findScheduleList(%s,%s,%s)", tripId, stopId, dates.length);
+		SortedMap<Long, SortedSet<Integer>> result = new TreeMap<Long, SortedSet<Integer>>();
+		final Set<String> remainingServiceIds = new HashSet<String>();
+		for (Set<String> dateServiceIds : datesServiceIds.values()) {
+			remainingServiceIds.addAll(dateServiceIds);
+		}
+		// MyLog.d(TAG, "findScheduleList() > found %s service(s)", remainingServiceIds.size());
+		if (remainingServiceIds.size() == 0) {
+			return result;
+		}
+		// 2nd read schedule file once
 		BufferedReader br = null;
 		String line = null;
 		String fileName = String.format(RAW_FILE_FORMAT, stopId);
+		String currentServiceId = null; // the service ID of the current matching (service, trip) group (service group for all trips)
 		try {
 			br = new BufferedReader(new InputStreamReader(getContext().getResources().openRawResource(
 					getContext().getResources().getIdentifier(fileName, "raw", getContext().getPackageName())), "UTF8"), 8192);
 			while ((line = br.readLine()) != null) {
 				try {
-					String[] lineItems = line.split(",");
-					if (lineItems.length != 4) {
+					final int tripIdx = line.indexOf(',');
+					final int stopIdx = line.indexOf(',', tripIdx + 1);
+					final int departureIdx = line.indexOf(',', stopIdx + 1);
+					if (tripIdx < 0 || stopIdx < 0 || departureIdx < 0) {
 						MyLog.w(TAG, "Cannot parse schedule '%s'!", line);
 						continue;
 					}
-					final String lineServiceId = lineItems[STOP_SCHEDULE_FILE_COL_SERVICE_IDX].substring(1, lineItems[STOP_SCHEDULE_FILE_COL_SERVICE_IDX].length() - 1);
-					if (!serviceIds.contains(lineServiceId)) {
-						// MyLog.d(TAG, "Wrong service id '%s' while looking for service ids '%s'!", lineServiceId, serviceIds);
+					// check trip ID 1st to avoid creating the service ID string for each line
+					final int lineTripId = parseInt(line, tripIdx + 1, stopIdx);
+					if (tripId != null && tripId.intValue() != lineTripId) {
+						// MyLog.d(TAG, "Wrong trip id while looking for trip id '%s'!", tripId);
+						if (currentServiceId != null) { // end of the matching (service, trip) group
+							remainingServiceIds.remove(currentServiceId);
+							currentServiceId = null;
+							if (remainingServiceIds.size() == 0) {
+								break; // file is sorted by service & trip, all useful departures found
+							}
+						}
 						continue;
 					}
-					// MyLog.d(TAG, "GOOD service id '%s' while looking for service ids '%s'!", lineServiceId, serviceIds);
-					final int lineTripId = Integer.parseInt(lineItems[STOP_SCHEDULE_FILE_COL_TRIP_IDX]);
-					if (tripId != lineTripId) { // TODO LATER other trip ID schedule maybe useful in cache ???
-						// MyLog.d(TAG, "Wrong trip id '%s' while looking for trip id '%s'!", lineTripId, tripId);
-						continue;
+					final String lineServiceId = line.substring(1, tripIdx - 1);
+					if (!lineServiceId.equals(currentServiceId)) {
+						if (currentServiceId != null) { // end of the matching (service, trip) group
+							remainingServiceIds.remove(currentServiceId);
+							currentServiceId = null;
+							if (remainingServiceIds.size() == 0) {
+								break; // file is sorted by service & trip, all useful departures found
+							}
+						}
+						if (!remainingServiceIds.contains(lineServiceId)) {
+							// MyLog.d(TAG, "Wrong service id '%s' while looking for service ids '%s'!", lineServiceId, remainingServiceIds);
+							continue;
+						}
+						currentServiceId = lineServiceId;
 					}
-					final int lineStopId = Integer.parseInt(lineItems[STOP_SCHEDULE_FILE_COL_STOP_IDX]);
+					final int lineStopId = parseInt(line, stopIdx + 1, departureIdx);
 					if (stopId != lineStopId) {
 						MyLog.w(TAG, "Wrong stop id '%s' while looking for stop id '%s'!", lineStopId, stopId);
 						continue;
 					}
-					final int lineDeparture = Integer.parseInt(lineItems[STOP_SCHEDULE_FILE_COL_DEPARTURE_IDX]);
-					if (lineDeparture > timeI) {
-						result.add(convertToTimestamp(lineDeparture, dateS));
-						// } else {
-						// MyLog.d(TAG, "Too soon '%s' (after:%s)!", lineDeparture, timeI);
+					final int lineDeparture = parseInt(line, departureIdx + 1, line.length());
+					for (int d = 0; d < dates.length; d++) {
+						if (lineDeparture > afterTimes[d] && lineDeparture <= untilTimes[d]) {
+							final Set<String> dateServiceIds = datesServiceIds.get(dates[d]);
+							if (dateServiceIds != null && dateServiceIds.contains(currentServiceId)) {
+								final Long timestamp = convertToTimestamp(lineDeparture, dates[d]);
+								if (timestamp != null) {
+									SortedSet<Integer> tripIds = result.get(timestamp);
+									if (tripIds == null) {
+										tripIds = new TreeSet<Integer>();
+										result.put(timestamp, tripIds);
+									}
+									tripIds.add(lineTripId);
+								}
+							}
+						}
 					}
 				} catch (Exception e) {
 					MyLog.w(TAG, e, "Cannot parse schedule '%s' (fileName: %s)!", line, fileName);
@@ -236,34 +347,47 @@ public class StmSubwayScheduleProvider extends AbstractScheduleProvider {
 		return result;
 	}
 
-	public Set<String> findServices(String dateS) {
-		Set<String> serviceIds = new HashSet<String>();
-		Cursor cursor = null;
-		try {
-			StringBuilder whereSb = new StringBuilder();
-			whereSb.append(ServiceDateColumns.T_SERVICE_DATES_K_DATE).append("=").append(dateS);
-			SQLiteDatabase db = getDBHelper(getContext()).getReadableDatabase();
-			SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
-			qb.setTables(StmSubwayScheduleDbHelper.T_SERVICE_DATES);
-			cursor = qb.query(db, PROJECTION_SERVICE_DATES, whereSb.toString(), null, null, null, null, null);
-			if (cursor != null && cursor.getCount() > 0) {
-				if (cursor.moveToFirst()) {
-					do {
-						final String serviceId = cursor.getString(0);
-						if (!TextUtils.isEmpty(serviceId)) {
-							serviceIds.add(serviceId);
-						}
-					} while (cursor.moveToNext());
-				}
+	/**
+	 * Parse a positive integer from a part of a string without creating a new string.
+	 */
+	private static int parseInt(String s, int start, int end) {
+		if (start >= end) {
+			throw new NumberFormatException(String.format("Empty integer in '%s'!", s));
+		}
+		int result = 0;
+		for (int i = start; i < end; i++) {
+			final int digit = s.charAt(i) - '0';
+			if (digit < 0 || digit > 9) {
+				throw new NumberFormatException(String.format("Invalid integer in '%s'!", s));
 			}
-		} catch (Throwable t) {
-			MyLog.w(TAG, t, "Error!");
-		} finally {
-			if (cursor != null) {
-				cursor.close();
+			result = result * 10 + digit;
+		}
+		return result;
+	}
+
+	/**
+	 * @return the service IDs of each date (yyyyMMdd) from the in-memory calendar
+	 */
+	public Map<String, Set<String>> findServices(String[] dates) {
+		final ServiceDateCalendar calendar = getServiceDateCalendar();
+		if (calendar == null) {
+			return new HashMap<String, Set<String>>();
+		}
+		return calendar.getServiceIds(dates);
+	}
+
+	private ServiceDateCalendar getServiceDateCalendar() {
+		final StmSubwayScheduleDbHelper dbHelper = getDBHelper(getContext()); // reset calendar if DB version changed
+		synchronized (StmSubwayScheduleProvider.class) {
+			if (serviceDateCalendar == null) {
+				try {
+					serviceDateCalendar = ServiceDateCalendar.load(dbHelper.getReadableDatabase(), StmSubwayScheduleDbHelper.T_SERVICE_DATES);
+				} catch (Throwable t) {
+					MyLog.w(TAG, t, "Error!");
+				}
 			}
+			return serviceDateCalendar;
 		}
-		return serviceIds;
 	}
 
 	// NOT THREAD SAFE
@@ -1,10 +1,11 @@
 package org.montrealtransit.android.services;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.montrealtransit.android.MyLog;
-import org.montrealtransit.android.Utils;
 import org.montrealtransit.android.provider.BixiStore.BikeStation;
 import org.xml.sax.Attributes;
 import org.xml.sax.ContentHandler;
@@ -14,6 +15,9 @@ import org.xml.sax.helpers.DefaultHandler;
 
 /**
  * XML Handler for <a href="https://montreal.bixi.com/data/bikeStations.xml">https://montreal.bixi.com/data/bikeStations.xml</a>.
+ * <p>
+ * The text of each element is accumulated in a reusable buffer (SAX may split a text node in multiple {@link #characters(char[], int, int)} calls)
+ * and parsed when the element ends: the numbers and booleans are parsed from the buffer without creating strings.
  */
 public class BixiBikeStationsDataHandler extends DefaultHandler implements ContentHandler {
 
@@ -48,9 +52,62 @@ public class BixiBikeStationsDataHandler extends DefaultHandler implements Conte
 	private static final String SUPPORTED_VERSIONS = "2.0";
 
 	/**
-	 * The current element name.
+	 * XML tag IDs.
 	 */
-	private String currentLocalName = STATIONS;
+	private static final int TAG_UNKNOWN = 0;
+	private static final int TAG_STATIONS = 1;
+	private static final int TAG_STATION = 2;
+	private static final int TAG_ID = 3;
+	private static final int TAG_NAME = 4;
+	private static final int TAG_TERMINAL_NAME = 5;
+	private static final int TAG_LAST_COMM_WITH_SERVER = 6;
+	private static final int TAG_LAT = 7;
+	private static final int TAG_LONG = 8;
+	private static final int TAG_INSTALLED = 9;
+	private static final int TAG_LOCKED = 10;
+	private static final int TAG_INSTALL_DATE = 11;
+	private static final int TAG_REMOVAL_DATE = 12;
+	private static final int TAG_TEMPORARY = 13;
+	private static final int TAG_PUBLIC = 14;
+	private static final int TAG_NB_BIKES = 15;
+	private static final int TAG_NB_EMPTY_DOCKS = 16;
+	private static final int TAG_LATEST_UPDATE_TIME = 17;
+
+	private static final Map<String, Integer> TAG_IDS = new HashMap<String, Integer>();
+	static {
+		TAG_IDS.put(STATIONS, TAG_STATIONS);
+		TAG_IDS.put(STATION, TAG_STATION);
+		TAG_IDS.put(ID, TAG_ID);
+		TAG_IDS.put(NAME, TAG_NAME);
+		TAG_IDS.put(TERMINAL_NAME, TAG_TERMINAL_NAME);
+		TAG_IDS.put(LAST_COMM_WITH_SERVER, TAG_LAST_COMM_WITH_SERVER);
+		TAG_IDS.put(LAT, TAG_LAT);
+		TAG_IDS.put(LONG, TAG_LONG);
+		TAG_IDS.put(INSTALLED, TAG_INSTALLED);
+		TAG_IDS.put(LOCKED, TAG_LOCKED);
+		TAG_IDS.put(INSTALL_DATE, TAG_INSTALL_DATE);
+		TAG_IDS.put(REMOVAL_DATE, TAG_REMOVAL_DATE);
+		TAG_IDS.put(TEMPORARY, TAG_TEMPORARY);
+		TAG_IDS.put(PUBLIC, TAG_PUBLIC);
+		TAG_IDS.put(NB_BIKES, TAG_NB_BIKES);
+		TAG_IDS.put(NB_EMPTY_DOCKS, TAG_NB_EMPTY_DOCKS);
+		TAG_IDS.put(LATEST_UPDATE_TIME, TAG_LATEST_UPDATE_TIME);
+	}
+
+	/**
+	 * The current element tag ID.
+	 */
+	private int currentTag = TAG_STATIONS;
+
+	/**
+	 * The text of the current element (reused).
+	 */
+	private char[] text = new char[64];
+
+	/**
+	 * The length of the text of the current element.
+	 */
+	private int textLength = 0;
 
 	/**
 	 * The bike stations.
@@ -66,6 +123,21 @@ public class BixiBikeStationsDataHandler extends DefaultHandler implements Conte
 	 */
 	private BikeStation currentBikeStation = null;
 
+	/**
+	 * The listener receiving each bike station as soon as parsed or null to keep all the bike stations in the list.
+	 */
+	private BikeStationListener listener = null;
+
+	public BixiBikeStationsDataHandler() {
+	}
+
+	/**
+	 * @param listener the listener receiving each bike station as soon as parsed (not kept in the list)
+	 */
+	public BixiBikeStationsDataHandler(BikeStationListener listener) {
+		this.listener = listener;
+	}
+
 	/**
 	 * @return the list of bike stations
 	 */
@@ -88,8 +160,10 @@ public class BixiBikeStationsDataHandler extends DefaultHandler implements Conte
 	@Override
 	public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
 		// MyLog.v(TAG, "startElement(%s,%s,%s)", uri, localName, qName);
-		this.currentLocalName = localName;
-		if (STATIONS.equals(localName)) {
+		final Integer tagId = TAG_IDS.get(localName);
+		this.currentTag = tagId == null ? TAG_UNKNOWN : tagId.intValue();
+		this.textLength = 0;
+		if (this.currentTag == TAG_STATIONS) {
 			// read version attribute
 			String version = attributes.getValue(STATIONS_VERSION);
 			if (version == null || !SUPPORTED_VERSIONS.equals(version)) {
@@ -99,7 +173,7 @@ public class BixiBikeStationsDataHandler extends DefaultHandler implements Conte
 			}
 			// // read last update attribute
 			// this.lastUpdate = Utils.toTimestampInSeconds(Long.valueOf(attributes.getValue(STATIONS_LAST_UPDATE)));
-		} else if (STATION.equals(localName)) {
+		} else if (this.currentTag == TAG_STATION) {
 			this.currentBikeStation = new BikeStation();
 		}
 	}
@@ -107,57 +181,190 @@ public class BixiBikeStationsDataHandler extends DefaultHandler implements Conte
 	@Override
 	public void characters(char[] ch, int start, int length) throws SAXException {
 		// MyLog.v(TAG, "characters(%s)", new String(ch, start, length));
-		if (this.currentBikeStation != null) {
-			try {
-				String string = new String(ch, start, length).trim();
-				if (ID.equals(this.currentLocalName)) {
-					// do not store source ID as it only represents the current position in the XML list
-					// this.currentBikeStation.setId(Integer.valueOf(string));
-				} else if (NAME.equals(this.currentLocalName)) {
-					this.currentBikeStation.setName(string);
-				} else if (TERMINAL_NAME.equals(this.currentLocalName)) {
-					this.currentBikeStation.setTerminalName(string);
-				} else if (LAST_COMM_WITH_SERVER.equals(this.currentLocalName)) {
-					this.currentBikeStation.setLastCommWithServer(Utils.toTimestampInSeconds(Long.valueOf(string)));
-				} else if (LAT.equals(this.currentLocalName)) {
-					this.currentBikeStation.setLat(Double.valueOf(string));
-				} else if (LONG.equals(this.currentLocalName)) {
-					this.currentBikeStation.setLng(Double.valueOf(string));
-				} else if (INSTALLED.equals(this.currentLocalName)) {
-					this.currentBikeStation.setInstalled(Boolean.valueOf(string));
-				} else if (LOCKED.equals(this.currentLocalName)) {
-					this.currentBikeStation.setLocked(Boolean.valueOf(string));
-				} else if (INSTALL_DATE.equals(this.currentLocalName)) {
-					this.currentBikeStation.setInstallDate(Utils.toTimestampInSeconds(Long.valueOf(string)));
-				} else if (REMOVAL_DATE.equals(this.currentLocalName)) {
-					this.currentBikeStation.setRemovalDate(Utils.toTimestampInSeconds(Long.valueOf(string)));
-				} else if (TEMPORARY.equals(this.currentLocalName)) {
-					this.currentBikeStation.setTemporary(Boolean.valueOf(string));
-				} else if (PUBLIC.equals(this.currentLocalName)) {
-					this.currentBikeStation.setPublicStation(Boolean.valueOf(string));
-				} else if (NB_BIKES.equals(this.currentLocalName)) {
-					this.currentBikeStation.setNbBikes(Integer.valueOf(string));
-				} else if (NB_EMPTY_DOCKS.equals(this.currentLocalName)) {
-					this.currentBikeStation.setNbEmptyDocks(Integer.valueOf(string));
-				} else if (LATEST_UPDATE_TIME.equals(this.currentLocalName)) {
-					this.currentBikeStation.setLatestUpdateTime(Utils.toTimestampInSeconds(Long.valueOf(string)));
-				}
-			} catch (Exception e) {
-				MyLog.w(TAG, "Error while parsing '%s'!", e);
-			}
+		if (this.currentBikeStation == null || this.currentTag <= TAG_STATION) {
+			return; // not a bike station field
 		}
+		if (this.textLength + length > this.text.length) {
+			char[] newText = new char[Math.max(this.text.length * 2, this.textLength + length)];
+			System.arraycopy(this.text, 0, newText, 0, this.textLength);
+			this.text = newText;
+		}
+		System.arraycopy(ch, start, this.text, this.textLength, length);
+		this.textLength += length;
 		// super.characters(ch, start, length);
 	}
 
 	@Override
 	public void endElement(String uri, String localName, String qName) throws SAXException {
 		// MyLog.v(TAG, "endElement(%s,%s,%s)", uri, localName, qName);
-		if (STATION.equals(localName)) {
-			this.bikeStations.add(this.currentBikeStation);
+		if (this.currentBikeStation == null) {
+			return;
+		}
+		if (this.currentTag > TAG_STATION) {
+			try {
+				setField(this.currentBikeStation, this.currentTag);
+			} catch (Exception e) {
+				MyLog.w(TAG, "Error while parsing '%s'!", e);
+			}
+			this.currentTag = TAG_STATION; // back to the bike station
+			this.textLength = 0;
+		} else if (STATION.equals(localName)) {
+			if (this.listener != null) {
+				this.listener.onBikeStation(this.currentBikeStation);
+			} else {
+				this.bikeStations.add(this.currentBikeStation);
+			}
 			this.currentBikeStation = null;
 		}
 	}
 
+	/**
+	 * Set the bike station field from the text of the element.
+	 */
+	private void setField(BikeStation bikeStation, int tagId) {
+		// trim
+		int start = 0;
+		int end = this.textLength;
+		while (start < end && this.text[start] <= ' ') {
+			start++;
+		}
+		while (end > start && this.text[end - 1] <= ' ') {
+			end--;
+		}
+		if (start == end) {
+			return; // empty
+		}
+		switch (tagId) {
+		case TAG_ID:
+			// do not store source ID as it only represents the current position in the XML list
+			// bikeStation.setId(parseInt(start, end));
+			break;
+		case TAG_NAME:
+			bikeStation.setName(new String(this.text, start, end - start));
+			break;
+		case TAG_TERMINAL_NAME:
+			bikeStation.setTerminalName(new String(this.text, start, end - start));
+			break;
+		case TAG_LAST_COMM_WITH_SERVER:
+			bikeStation.setLastCommWithServer(toTimestampInSeconds(parseLong(start, end)));
+			break;
+		case TAG_LAT:
+			bikeStation.setLat(parseDouble(start, end));
+			break;
+		case TAG_LONG:
+			bikeStation.setLng(parseDouble(start, end));
+			break;
+		case TAG_INSTALLED:
+			bikeStation.setInstalled(parseBoolean(start, end));
+			break;
+		case TAG_LOCKED:
+			bikeStation.setLocked(parseBoolean(start, end));
+			break;
+		case TAG_INSTALL_DATE:
+			bikeStation.setInstallDate(toTimestampInSeconds(parseLong(start, end)));
+			break;
+		case TAG_REMOVAL_DATE:
+			bikeStation.setRemovalDate(toTimestampInSeconds(parseLong(start, end)));
+			break;
+		case TAG_TEMPORARY:
+			bikeStation.setTemporary(parseBoolean(start, end));
+			break;
+		case TAG_PUBLIC:
+			bikeStation.setPublicStation(parseBoolean(start, end));
+			break;
+		case TAG_NB_BIKES:
+			bikeStation.setNbBikes((int) parseLong(start, end));
+			break;
+		case TAG_NB_EMPTY_DOCKS:
+			bikeStation.setNbEmptyDocks((int) parseLong(start, end));
+			break;
+		case TAG_LATEST_UPDATE_TIME:
+			bikeStation.setLatestUpdateTime(toTimestampInSeconds(parseLong(start, end)));
+			break;
+		}
+	}
+
+	private static int toTimestampInSeconds(long timestampInMillis) {
+		return (int) (timestampInMillis / 1000);
+	}
+
+	/**
+	 * @return true if the text is "true" (ignoring case) like {@link Boolean#valueOf(String)}
+	 */
+	private boolean parseBoolean(int start, int end) {
+		if (end - start != 4) {
+			return false;
+		}
+		return Character.toLowerCase(this.text[start]) == 't' && Character.toLowerCase(this.text[start + 1]) == 'r'
+				&& Character.toLowerCase(this.text[start + 2]) == 'u' && Character.toLowerCase(this.text[start + 3]) == 'e';
+	}
+
+	/**
+	 * @throws NumberFormatException if not a number
+	 */
+	private long parseLong(int start, int end) {
+		boolean negative = false;
+		int i = start;
+		if (this.text[i] == '-' || this.text[i] == '+') {
+			negative = this.text[i] == '-';
+			i++;
+		}
+		if (i == end) {
+			throw new NumberFormatException(new String(this.text, start, end - start));
+		}
+		long result = 0;
+		for (; i < end; i++) {
+			final int digit = this.text[i] - '0';
+			if (digit < 0 || digit > 9) {
+				throw new NumberFormatException(new String(this.text, start, end - start));
+			}
+			result = result * 10 + digit;
+		}
+		return negative ? -result : result;
+	}
+
+	/**
+	 * Parse a simple decimal number (ex: -73.57). Other formats (ex: exponent) are parsed by {@link Double#parseDouble(String)}.
+	 * @throws NumberFormatException if not a number
+	 */
+	private double parseDouble(int start, int end) {
+		boolean negative = false;
+		int i = start;
+		if (this.text[i] == '-' || this.text[i] == '+') {
+			negative = this.text[i] == '-';
+			i++;
+		}
+		long mantissa = 0;
+		int nbDigits = 0;
+		int nbDecimals = -1; // no decimal point
+		for (; i < end; i++) {
+			final char c = this.text[i];
+			if (c == '.' && nbDecimals < 0) {
+				nbDecimals = 0;
+				continue;
+			}
+			final int digit = c - '0';
+			if (digit < 0 || digit > 9 || nbDigits >= 15) { // not simple or too precise for a long mantissa
+				return Double.parseDouble(new String(this.text, start, end - start));
+			}
+			mantissa = mantissa * 10 + digit;
+			nbDigits++;
+			if (nbDecimals >= 0) {
+				nbDecimals++;
+			}
+		}
+		if (nbDigits == 0) {
+			throw new NumberFormatException(new String(this.text, start, end - start));
+		}
+		double result = mantissa;
+		if (nbDecimals > 0) {
+			result /= POWERS_OF_TEN[nbDecimals];
+		}
+		return negative ? -result : result;
+	}
+
+	private static final double[] POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15 };
+
 	// @Override
 	// public void endDocument() throws SAXException {
 	// MyLog.v(TAG, "endDocument()");
@@ -181,4 +388,15 @@ public class BixiBikeStationsDataHandler extends DefaultHandler implements Conte
 		MyLog.w(TAG, exception, "Warning while parsing XML!");
 	}
 
+	/**
+	 * Receive the bike stations while parsing.
+	 */
+	public interface BikeStationListener {
+
+		/**
+		 * @param bikeStation the new bike station
+		 * @throws SAXException to stop parsing
+		 */
+		void onBikeStation(BikeStation bikeStation) throws SAXException;
+	}
 }
\ No newline at end of file
@@ -0,0 +1,172 @@
+package org.montrealtransit.android.services;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.montrealtransit.android.MyLog;
+import org.montrealtransit.android.provider.BixiManager;
+import org.montrealtransit.android.provider.BixiStore.BikeStation;
+import org.montrealtransit.android.services.BixiBikeStationsDataHandler.BikeStationListener;
+import org.xml.sax.SAXException;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.SQLException;
+
+/**
+ * Write the bike stations to the database while parsing: the parsed bike stations are sent in small batches to a writer thread (bounded queue) so
+ * the download, the parsing and the database writes overlap and only a few bike stations are in memory at a time.
+ */
+public class BixiBikeStationsWriter implements BikeStationListener {
+
+	/**
+	 * The log tag.
+	 */
+	private static final String TAG = BixiBikeStationsWriter.class.getSimpleName();
+
+	/**
+	 * The number of bike stations written in 1 transaction.
+	 */
+	private static final int BATCH_SIZE = 50;
+
+	/**
+	 * The maximum number of batches waiting for the writer thread (the parser waits if the database is too slow).
+	 */
+	private static final int MAX_PENDING_BATCHES = 2;
+
+	/**
+	 * The end of the bike stations.
+	 */
+	private static final ContentValues[] END = new ContentValues[0];
+
+	private final ContentResolver contentResolver;
+
+	/**
+	 * The terminal names of the bike stations to keep in memory (returned to the caller).
+	 */
+	private final Set<String> keptTerminalNames;
+
+	private final List<BikeStation> keptBikeStations = new ArrayList<BikeStation>();
+
+	private final Set<String> syncedTerminalNames = new HashSet<String>();
+
+	private final BlockingQueue<ContentValues[]> pendingBatches = new ArrayBlockingQueue<ContentValues[]>(MAX_PENDING_BATCHES);
+
+	private List<ContentValues> currentBatch = new ArrayList<ContentValues>(BATCH_SIZE);
+
+	private Thread writerThread;
+
+	private volatile int changed = 0;
+
+	private volatile Throwable error = null;
+
+	/**
+	 * @param keptTerminalNames the terminal names of the bike stations to keep in memory or null
+	 */
+	public BixiBikeStationsWriter(ContentResolver contentResolver, List<String> keptTerminalNames) {
+		this.contentResolver = contentResolver;
+		this.keptTerminalNames = keptTerminalNames == null ? null : new HashSet<String>(keptTerminalNames);
+	}
+
+	/**
+	 * Start the writer thread.
+	 */
+	public void start() {
+		this.writerThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						final ContentValues[] batch = BixiBikeStationsWriter.this.pendingBatches.take();
+						if (batch == END) {
+							break;
+						}
+						final int batchChanged = BixiManager.syncBikeStationsBatch(BixiBikeStationsWriter.this.contentResolver, batch);
+						if (batchChanged < 0) {
+							throw new SQLException("Error while writing a batch of bike stations!");
+						}
+						BixiBikeStationsWriter.this.changed += batchChanged;
+					}
+				} catch (InterruptedException ie) {
+					MyLog.d(TAG, "Writer interrupted!");
+				} catch (Throwable t) {
+					MyLog.w(TAG, t, "Error!");
+					BixiBikeStationsWriter.this.error = t;
+					BixiBikeStationsWriter.this.pendingBatches.clear(); // unblock the parser
+				}
+			}
+		}, TAG);
+		this.writerThread.start();
+	}
+
+	@Override
+	public void onBikeStation(BikeStation bikeStation) throws SAXException {
+		final String terminalName = bikeStation.getTerminalName();
+		if (terminalName == null || !this.syncedTerminalNames.add(terminalName)) {
+			MyLog.d(TAG, "Bike station '%s' ignored (no or duplicate terminal name)!", terminalName);
+			return;
+		}
+		if (this.keptTerminalNames != null && this.keptTerminalNames.contains(terminalName)) {
+			this.keptBikeStations.add(bikeStation);
+		}
+		this.currentBatch.add(bikeStation.getContentValues());
+		if (this.currentBatch.size() >= BATCH_SIZE) {
+			sendCurrentBatch();
+		}
+	}
+
+	private void sendCurrentBatch() throws SAXException {
+		if (this.error != null) {
+			throw new SAXException("Error while writing the bike stations!");
+		}
+		if (this.currentBatch.size() == 0) {
+			return;
+		}
+		try {
+			this.pendingBatches.put(this.currentBatch.toArray(new ContentValues[this.currentBatch.size()]));
+		} catch (InterruptedException ie) {
+			throw new SAXException("Interrupted while writing the bike stations!");
+		}
+		this.currentBatch = new ArrayList<ContentValues>(BATCH_SIZE);
+	}
+
+	/**
+	 * Write the last bike stations, wait for the writer thread and delete the bike stations removed from the source (parsing successful).
+	 * <p>
+	 * The removed bike stations are NOT deleted if any batch failed.
+	 * @return the number of bike stations inserted, updated or deleted
+	 * @throws SAXException if any batch failed (the database is not up to date)
+	 */
+	public int finish() throws SAXException, InterruptedException {
+		sendCurrentBatch();
+		this.pendingBatches.put(END);
+		this.writerThread.join();
+		if (this.error != null) {
+			throw new SAXException("Error while writing the bike stations!");
+		}
+		final int deleted = BixiManager.endSyncBikeStations(this.contentResolver,
+				this.syncedTerminalNames.toArray(new String[this.syncedTerminalNames.size()]), this.changed);
+		MyLog.d(TAG, "Bike stations written (synced:%s, changed:%s, deleted:%s)", this.syncedTerminalNames.size(), this.changed, deleted);
+		return this.changed + deleted;
+	}
+
+	/**
+	 * Stop the writer thread (parsing failed, the removed bike stations are not deleted).
+	 */
+	public void abort() {
+		if (this.writerThread != null) {
+			this.writerThread.interrupt();
+		}
+	}
+
+	/**
+	 * @return the bike stations to keep in memory
+	 */
+	public List<BikeStation> getKeptBikeStations() {
+		return this.keptBikeStations;
+	}
+}
@@ -1,21 +1,21 @@
 package org.montrealtransit.android.services;
 
+import java.io.InputStream;
 import java.lang.ref.WeakReference;
 import java.net.HttpURLConnection;
 import java.net.SocketException;
-import java.net.URL;
-import java.net.URLConnection;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
-import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLHandshakeException;
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
 
 import org.montrealtransit.android.AnalyticsUtils;
+import org.montrealtransit.android.HttpUtils;
 import org.montrealtransit.android.MyLog;
 import org.montrealtransit.android.R;
 import org.montrealtransit.android.Utils;
@@ -26,13 +26,12 @@ import org.xml.sax.InputSource;
 import org.xml.sax.XMLReader;
 
 import android.content.Context;
-import android.os.AsyncTask;
 
 /**
- * This task retrieve the Bixi data from montreal.bixi.com.
+ * Retrieve the Bixi data from montreal.bixi.com.
  * @author Mathieu Méa
  */
-public class BixiDataReader extends AsyncTask<String, String, List<BikeStation>> {
+public class BixiDataReader {
 
 	/**
 	 * The log tag.
@@ -48,70 +47,18 @@ public class BixiDataReader extends AsyncTask<String, String, List<BikeStation>>
 	public static final String XML_SOURCE = "https://montreal.bixi.com/data/bikeStations.xml";
 
 	/**
-	 * The context executing the task.
+	 * The time of the last download of new Bixi data (not 304 Not Modified) or -1.
 	 */
-	private Context context;
-	/**
-	 * The class that will handle the answer.
-	 */
-	private WeakReference<BixiDataReaderListener> from;
-	/**
-	 * The new update date.
-	 */
-	private int newUpdate;
-	/**
-	 * The last update date.
-	 */
-	private int lastUpdate;
-	/**
-	 * Time to wait before actually refreshing the data (in seconds)
-	 */
-	private int waitFor = 0; // 0 = no wait
+	private static volatile int lastDownloadInSec = -1;
 
 	/**
-	 * The default constructor.
-	 * @param context context executing the task
-	 * @param from the class that will handle the answer
-	 * @param waitFor time to wait before actually refreshing the data (in seconds)
+	 * @return the time of the last download of new Bixi data in this process (not 304 Not Modified) or -1
 	 */
-	public BixiDataReader(Context context, BixiDataReaderListener from, int waitFor) {
-		this.from = new WeakReference<BixiDataReaderListener>(from);
-		this.context = context;
-		this.waitFor = waitFor;
+	public static int getLastDownloadInSec() {
+		return lastDownloadInSec;
 	}
 
-	@Override
-	protected List<BikeStation> doInBackground(String... bikeStationTerminalNames) {
-		MyLog.v(TAG, "doInBackground()");
-		if (this.waitFor > 0) {
-			MyLog.d(TAG, "Waiting for %s seconds before loading new Bixi data from server...", this.waitFor);
-			try { // wait for it...
-				Thread.sleep(this.waitFor * 1000);
-			} catch (InterruptedException ie) {
-				MyLog.d(TAG, "Error while waiting!", ie);
-			}
-		}
-		List<BikeStation> updatedBikeStations = BixiDataReader.doInForeground(this.context, this.from, Arrays.asList(bikeStationTerminalNames), 0);
-		// IF no result OR no specific bike stations to return DO
-		if (updatedBikeStations == null || bikeStationTerminalNames == null || bikeStationTerminalNames.length == 0) {
-			// just return all (or none!)
-			return updatedBikeStations;
-		}
-		// ELSE filter to only returns the required bike station(s)
-		List<BikeStation> result = new ArrayList<BikeStation>();
-		for (BikeStation updatedBikeStation : updatedBikeStations) {
-			for (String bikeStationTerminalName : bikeStationTerminalNames) {
-				if (bikeStationTerminalName.equals(updatedBikeStation.getTerminalName())) {
-					result.add(updatedBikeStation);
-					break;
-				}
-			}
-			if (result.size() == bikeStationTerminalNames.length) {
-				break; // found all
-			}
-		}
-		// MyLog.d(TAG, "doInBackground() > DONE");
-		return result;
+	private BixiDataReader() {
 	}
 
 	/**
@@ -120,17 +67,27 @@ public class BixiDataReader extends AsyncTask<String, String, List<BikeStation>>
 	private static final int MAX_RETRY = 1;
 
 	/**
-	 * Synchronous {@link #doInBackground(String...)} for access from another {@link AsyncTask}.
+	 * Download the Bixi data and write it to the database (synchronous, see {@link BixiRefreshScheduler}).
+	 * @param forceDBUpdateTerminalNames the terminal names of the bike stations to return (the other bike stations are only written to the database)
 	 */
 	public static List<BikeStation> doInForeground(Context context, WeakReference<BixiDataReaderListener> from, final List<String> forceDBUpdateTerminalNames,
 			int tried) {
 		// MyLog.v(TAG, "doInForeground(%s)", Utils.getCollectionSize(forceDBUpdateTerminalNames));
 		try {
-			URL url = new URL(XML_SOURCE);
-			URLConnection urlc = url.openConnection();
-			urlc.addRequestProperty("Cache-Control", "no-cache"); // IMPORTANT!
-			HttpsURLConnection httpsUrlConnection = (HttpsURLConnection) urlc;
-			switch (httpsUrlConnection.getResponseCode()) {
+			HttpURLConnection httpsUrlConnection = HttpUtils.openConnection(XML_SOURCE, true); // 304 if not modified since last update
+			httpsUrlConnection.addRequestProperty("Cache-Control", "no-cache"); // IMPORTANT!
+			switch (HttpUtils.getResponseCode(httpsUrlConnection)) {
+			case HttpURLConnection.HTTP_NOT_MODIFIED:
+				final List<BikeStation> bikeStations = BixiManager.findAllBikeStationsList(context.getContentResolver(), true);
+				if (bikeStations == null || bikeStations.size() == 0) {
+					MyLog.d(TAG, "Bixi data not modified but not in the database!");
+					HttpUtils.forgetValidators(XML_SOURCE);
+					return doInForeground(context, from, forceDBUpdateTerminalNames, tried);
+				}
+				MyLog.d(TAG, "Bixi data not modified since last update.");
+				UserPreferences.savePrefLcl(context, UserPreferences.PREFS_LCL_BIXI_LAST_UPDATE, Utils.currentTimeSec());
+				publishProgress(from, new String[] { null }); // clear error message
+				return getKeptBikeStations(bikeStations, forceDBUpdateTerminalNames); // same as the new data (see BixiBikeStationsWriter)
 			case HttpURLConnection.HTTP_OK:
 				publishProgress(from, context.getString(R.string.downloading_data_from_and_source, SOURCE));
 				AnalyticsUtils.dispatch(context); // while we are connected, send the analytics data
@@ -139,22 +96,36 @@ public class BixiDataReader extends AsyncTask<String, String, List<BikeStation>>
 				SAXParser sp = spf.newSAXParser();
 				// Get the XML Reader of the SAX Parser we created
 				XMLReader xr = sp.getXMLReader();
-				// Create a new ContentHandler and apply it to the XML-Reader
-				BixiBikeStationsDataHandler handler = new BixiBikeStationsDataHandler();
-				xr.setContentHandler(handler);
+				// Create a new ContentHandler writing the bike stations to the database while parsing and apply it to the XML-Reader
+				BixiBikeStationsWriter writer = new BixiBikeStationsWriter(context.getContentResolver(), forceDBUpdateTerminalNames);
+				xr.setContentHandler(new BixiBikeStationsDataHandler(writer));
 				// MyLog.d(TAG, "Parsing data...");
-				xr.parse(new InputSource(urlc.getInputStream()));
-				// MyLog.d(TAG, "Parsing data... DONE");
-				publishProgress(from, context.getString(R.string.processing));
-				updateDatabaseAll(context, handler.getBikeStations());
+				InputStream is = HttpUtils.getInputStream(httpsUrlConnection);
+				boolean parsed = false;
+				writer.start();
+				try {
+					xr.parse(new InputSource(is));
+					// MyLog.d(TAG, "Parsing data... DONE");
+					publishProgress(from, context.getString(R.string.processing));
+					writer.finish();
+					parsed = true;
+					HttpUtils.commitValidators(httpsUrlConnection, XML_SOURCE); // the database is up to date
+				} finally {
+					if (!parsed) {
+						writer.abort();
+						HttpUtils.forgetValidators(XML_SOURCE); // the database is not up to date
+					}
+					is.close();
+				}
 				// save new last update
-				UserPreferences.savePrefLcl(context, UserPreferences.PREFS_LCL_BIXI_LAST_UPDATE, Utils.currentTimeSec());
+				lastDownloadInSec = Utils.currentTimeSec();
+				UserPreferences.savePrefLcl(context, UserPreferences.PREFS_LCL_BIXI_LAST_UPDATE, lastDownloadInSec);
 				if (tried > 0) { // didn't work on 1st try but worked on retry
 					AnalyticsUtils.trackEvent(context, AnalyticsUtils.CATEGORY_ERROR, AnalyticsUtils.ACTION_BIXI_DATA_LOADING_FAIL, "Success after X retry.",
 							tried);
 				}
 				publishProgress(from, new String[] { null }); // clear error message
-				return handler.getBikeStations();
+				return writer.getKeptBikeStations();
 			default:
 				MyLog.w(TAG, "ERROR: HTTP URL-Connection Response Code %s (Message: %s)", httpsUrlConnection.getResponseCode(),
 						httpsUrlConnection.getResponseMessage());
@@ -163,7 +134,7 @@ public class BixiDataReader extends AsyncTask<String, String, List<BikeStation>>
 						tried + httpsUrlConnection.getResponseMessage(), httpsUrlConnection.getResponseCode());
 				AnalyticsUtils.trackEvent(context, AnalyticsUtils.CATEGORY_ERROR, AnalyticsUtils.ACTION_HTTP_ERROR, SOURCE,
 						httpsUrlConnection.getResponseCode());
-				if (tried < MAX_RETRY) {
+				if (tried < MAX_RETRY && HttpUtils.waitBeforeRetry(tried)) {
 					return doInForeground(context, from, forceDBUpdateTerminalNames, ++tried);
 				} else {
 					return null;
@@ -173,7 +144,7 @@ public class BixiDataReader extends AsyncTask<String, String, List<BikeStation>>
 			MyLog.w(TAG, sslhe, "SSL error!");
 			publishProgress(from, context.getString(R.string.error_ssl_and_url, SOURCE));
 			AnalyticsUtils.trackEvent(context, AnalyticsUtils.CATEGORY_ERROR, AnalyticsUtils.ACTION_BIXI_DATA_LOADING_FAIL, tried + sslhe.getMessage(), 0);
-			if (tried < MAX_RETRY) {
+			if (tried < MAX_RETRY && HttpUtils.waitBeforeRetry(tried)) {
 				return doInForeground(context, from, forceDBUpdateTerminalNames, ++tried);
 			} else {
 				return null;
@@ -195,7 +166,7 @@ public class BixiDataReader extends AsyncTask<String, String, List<BikeStation>>
 			MyLog.e(TAG, e, "INTERNAL ERROR: Unknown Exception");
 			publishProgress(from, context.getString(R.string.error));
 			AnalyticsUtils.trackEvent(context, AnalyticsUtils.CATEGORY_ERROR, AnalyticsUtils.ACTION_BIXI_DATA_LOADING_FAIL, e.getMessage(), 0);
-			if (tried < MAX_RETRY) {
+			if (tried < MAX_RETRY && HttpUtils.waitBeforeRetry(tried)) {
 				return doInForeground(context, from, forceDBUpdateTerminalNames, ++tried);
 			} else {
 				return null;
@@ -278,16 +249,31 @@ public class BixiDataReader extends AsyncTask<String, String, List<BikeStation>>
 	// }
 
 	/**
-	 * Update all the database.
+	 * Update all the database (only the new, changed and removed bike stations are written).
 	 * @param context the context
 	 * @param newBikeStations the new bike stations
 	 */
 	public static void updateDatabaseAll(Context context, List<BikeStation> newBikeStations) {
 		MyLog.v(TAG, "updateDatabaseAll(%s)", Utils.getCollectionSize(newBikeStations));
-		// delete all existing bike stations
-		BixiManager.deleteAllBikeStations(context.getContentResolver());
-		// add all new bike stations
-		BixiManager.addBikeStations(context.getContentResolver(), newBikeStations);
+		BixiManager.syncBikeStations(context.getContentResolver(), newBikeStations);
+	}
+
+	/**
+	 * @param keptTerminalNames the terminal names of the bike stations to return or null
+	 * @return the bike stations to return to the caller
+	 */
+	private static List<BikeStation> getKeptBikeStations(List<BikeStation> bikeStations, List<String> keptTerminalNames) {
+		final List<BikeStation> result = new ArrayList<BikeStation>();
+		if (keptTerminalNames == null || keptTerminalNames.size() == 0) {
+			return result;
+		}
+		final Set<String> keptTerminalNamesSet = new HashSet<String>(keptTerminalNames);
+		for (BikeStation bikeStation : bikeStations) {
+			if (keptTerminalNamesSet.contains(bikeStation.getTerminalName())) {
+				result.add(bikeStation);
+			}
+		}
+		return result;
 	}
 
 	/**
@@ -305,31 +291,6 @@ public class BixiDataReader extends AsyncTask<String, String, List<BikeStation>>
 		}
 	}
 
-	@Override
-	protected void onPostExecute(List<BikeStation> newBikeStations) {
-		// MyLog.v(TAG, "onPostExecute(%s)", Utils.getCollectionSize(newBikeStations));
-		BixiDataReaderListener fromWR = this.from == null ? null : this.from.get();
-		if (fromWR != null) {
-			fromWR.onBixiDataLoaded(newBikeStations, (newUpdate > lastUpdate));
-		} else {
-			MyLog.d(TAG, "Listener null!");
-		}
-	}
-
-	@Override
-	protected void onProgressUpdate(String... values) {
-		MyLog.v(TAG, "onProgressUpdate()");
-		if (values.length <= 0) {
-			return;
-		}
-		BixiDataReaderListener fromWR = this.from == null ? null : this.from.get();
-		if (fromWR != null) {
-			fromWR.onBixiDataProgress(values[0]);
-		} else {
-			MyLog.d(TAG, "Listener null!");
-		}
-	}
-
 	/**
 	 * {@link BixiDataReader} listener.
 	 */
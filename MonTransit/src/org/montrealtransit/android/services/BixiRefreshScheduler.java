@@ -0,0 +1,223 @@
+package org.montrealtransit.android.services;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.montrealtransit.android.BikeUtils;
+import org.montrealtransit.android.MyLog;
+import org.montrealtransit.android.activity.UserPreferences;
+import org.montrealtransit.android.api.SupportFactory;
+import org.montrealtransit.android.provider.BixiStore.BikeStation;
+import org.montrealtransit.android.services.BixiDataReader.BixiDataReaderListener;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Refresh the Bixi data in the background: the screens only read the last bike stations from the database and never wait for a download.
+ * <p>
+ * Freshness tiers:
+ * <ul>
+ * <li>visible: while a bike screen is visible (bike tab, bike station, bike favorites), the data is refreshed every
+ * {@link BikeUtils#CACHE_TOO_OLD_IN_SEC}</li>
+ * <li>unchanged: each refresh returning the same data (304 Not Modified) or failing doubles the interval (up to {@link #MAX_INTERVAL_IN_SEC})</li>
+ * <li>idle: without visible bike screen, the data is only refreshed on request ({@link #requestRefresh(Context)})</li>
+ * </ul>
+ * 2 refreshes are never closer than {@link BikeUtils#CACHE_TOO_FRESH_IN_SEC} (the refresh is delayed, nobody waits).
+ * <p>
+ * All the methods must be called from the main thread.
+ */
+public class BixiRefreshScheduler {
+
+	/**
+	 * The log tag.
+	 */
+	private static final String TAG = BixiRefreshScheduler.class.getSimpleName();
+
+	/**
+	 * The maximum interval between 2 refreshes while a bike screen is visible (data unchanged or source failing).
+	 */
+	private static final int MAX_INTERVAL_IN_SEC = 15 * 60; // 15 minutes
+
+	/**
+	 * The listeners of the visible bike screens.
+	 */
+	private static final List<BixiDataReaderListener> visibleListeners = new ArrayList<BixiDataReaderListener>();
+
+	private static Context appContext;
+
+	private static Handler handler;
+
+	private static Executor executor;
+
+	private static boolean refreshing = false;
+
+	/**
+	 * The start time of the last refresh or -1.
+	 */
+	private static long lastRefreshInMs = -1;
+
+	/**
+	 * The number of refreshes in a row without new data.
+	 */
+	private static int unchangedCount = 0;
+
+	private static final Runnable refreshRunnable = new Runnable() {
+		@Override
+		public void run() {
+			startRefresh();
+		}
+	};
+
+	/**
+	 * Forward the progress of the refresh to the visible bike screens (main thread).
+	 */
+	private static final BixiDataReaderListener progressListener = new BixiDataReaderListener() {
+
+		@Override
+		public void onBixiDataProgress(final String progress) {
+			handler.post(new Runnable() {
+				@Override
+				public void run() {
+					for (BixiDataReaderListener listener : new ArrayList<BixiDataReaderListener>(visibleListeners)) {
+						listener.onBixiDataProgress(progress);
+					}
+				}
+			});
+		}
+
+		@Override
+		public void onBixiDataLoaded(List<BikeStation> newBikeStations, boolean isNew) {
+			// not used, see onRefreshDone()
+		}
+	};
+
+	private BixiRefreshScheduler() {
+	}
+
+	/**
+	 * A bike screen is visible: refresh the data more often and notify the listener after each refresh.
+	 * @param listener the visible bike screen (progress messages & {@link BixiDataReaderListener#onBixiDataLoaded(List, boolean)} without bike
+	 *            stations)
+	 */
+	public static void onVisible(Context context, BixiDataReaderListener listener) {
+		MyLog.v(TAG, "onVisible(%s)", listener);
+		init(context);
+		if (!visibleListeners.contains(listener)) {
+			visibleListeners.add(listener);
+		}
+		schedule();
+	}
+
+	/**
+	 * A bike screen is not visible anymore (no more refresh if it was the last one).
+	 */
+	public static void onHidden(BixiDataReaderListener listener) {
+		MyLog.v(TAG, "onHidden(%s)", listener);
+		visibleListeners.remove(listener);
+		if (handler != null && visibleListeners.size() == 0) {
+			handler.removeCallbacks(refreshRunnable);
+		}
+	}
+
+	/**
+	 * Refresh the data in the background as soon as possible (returns immediately).
+	 */
+	public static void requestRefresh(Context context) {
+		MyLog.v(TAG, "requestRefresh()");
+		init(context);
+		if (refreshing) {
+			return; // already refreshing
+		}
+		postRefresh(lastRefreshInMs + BikeUtils.CACHE_TOO_FRESH_IN_SEC * 1000L);
+	}
+
+	/**
+	 * @return true if the data is being refreshed
+	 */
+	public static boolean isRefreshing() {
+		return refreshing;
+	}
+
+	private static void init(Context context) {
+		if (handler == null) {
+			appContext = context.getApplicationContext();
+			handler = new Handler(Looper.getMainLooper());
+			executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS, SupportFactory.get().getNewBlockingQueue(), new RejectedExecutionHandler() {
+
+				@Override
+				public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+					MyLog.d(TAG, "Bixi refresh rejected!");
+					// called from startRefresh() on the main thread: same as a failed refresh
+					onRefreshDone(false, false);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Schedule the next refresh of the visible tier (nothing if no bike screen is visible).
+	 */
+	private static void schedule() {
+		if (refreshing || visibleListeners.size() == 0) {
+			return; // scheduled at the end of the refresh OR idle
+		}
+		final long lastUpdateInMs = UserPreferences.getPrefLcl(appContext, UserPreferences.PREFS_LCL_BIXI_LAST_UPDATE, 0) * 1000L;
+		final long intervalInMs = Math.min(BikeUtils.CACHE_TOO_OLD_IN_SEC << Math.min(unchangedCount, 16), MAX_INTERVAL_IN_SEC) * 1000L;
+		postRefresh(Math.max(lastUpdateInMs, lastRefreshInMs) + intervalInMs);
+	}
+
+	private static void postRefresh(long refreshInMs) {
+		final long delayInMs = Math.max(0, refreshInMs - System.currentTimeMillis());
+		MyLog.d(TAG, "Next Bixi refresh in %s ms.", delayInMs);
+		handler.removeCallbacks(refreshRunnable);
+		handler.postDelayed(refreshRunnable, delayInMs);
+	}
+
+	private static void startRefresh() {
+		if (refreshing) {
+			return;
+		}
+		refreshing = true;
+		lastRefreshInMs = System.currentTimeMillis();
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				boolean success = false;
+				boolean changed = false;
+				try {
+					final int lastDownloadInSec = BixiDataReader.getLastDownloadInSec();
+					// no bike stations kept in memory, the screens read the database
+					success = BixiDataReader.doInForeground(appContext, new WeakReference<BixiDataReaderListener>(progressListener), null, 0) != null;
+					changed = BixiDataReader.getLastDownloadInSec() != lastDownloadInSec;
+				} catch (Throwable t) {
+					MyLog.w(TAG, t, "Error!");
+				}
+				final boolean isNew = changed;
+				final boolean isSuccess = success;
+				handler.post(new Runnable() {
+					@Override
+					public void run() {
+						onRefreshDone(isSuccess, isNew);
+					}
+				});
+			}
+		});
+	}
+
+	private static void onRefreshDone(boolean success, boolean isNew) {
+		MyLog.v(TAG, "onRefreshDone(%s,%s)", success, isNew);
+		refreshing = false;
+		unchangedCount = success && isNew ? 0 : unchangedCount + 1;
+		for (BixiDataReaderListener listener : new ArrayList<BixiDataReaderListener>(visibleListeners)) {
+			listener.onBixiDataLoaded(null, isNew);
+		}
+		schedule();
+	}
+}
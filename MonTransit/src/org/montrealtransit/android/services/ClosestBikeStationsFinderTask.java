@@ -16,13 +16,14 @@ import org.montrealtransit.android.data.ClosestPOI;
 import org.montrealtransit.android.data.POI;
 import org.montrealtransit.android.provider.BixiManager;
 import org.montrealtransit.android.provider.BixiStore.BikeStation;
-import org.montrealtransit.android.services.BixiDataReader.BixiDataReaderListener;
 
 import android.content.Context;
 import android.os.AsyncTask;
-import android.text.TextUtils;
 
-public class ClosestBikeStationsFinderTask extends AsyncTask<Double, String, ClosestPOI<ABikeStation>> implements BixiDataReaderListener {
+/**
+ * Find the closest bike stations in the database (never waits for the Bixi data, a background refresh is requested if the data is too old).
+ */
+public class ClosestBikeStationsFinderTask extends AsyncTask<Double, String, ClosestPOI<ABikeStation>> {
 
 	/**
 	 * The log tag.
@@ -49,10 +50,6 @@ public class ClosestBikeStationsFinderTask extends AsyncTask<Double, String, Clo
 	 * The class handling the result and progress.
 	 */
 	private WeakReference<ClosestBikeStationsFinderListener> from;
-	/**
-	 * The last Bixi data message.
-	 */
-	private String lastBixiDataMessage;
 	/**
 	 * The maximum number of results (0 = no limit).
 	 */
@@ -61,6 +58,10 @@ public class ClosestBikeStationsFinderTask extends AsyncTask<Double, String, Clo
 	 * True if forcing update from the web (when DB empty...)
 	 */
 	private boolean forceUpdateFromWeb = false;
+	/**
+	 * True if the Bixi data should be refreshed in the background (requested from the main thread).
+	 */
+	private boolean refreshRequired = false;
 
 	/**
 	 * The default constructor.
@@ -87,19 +88,15 @@ public class ClosestBikeStationsFinderTask extends AsyncTask<Double, String, Clo
 					|| forceUpdateFromWeb
 					|| Utils.currentTimeSec() >= UserPreferences.getPrefLcl(this.context, UserPreferences.PREFS_LCL_BIXI_LAST_UPDATE, 0)
 							+ BIKE_STATION_LIST_TOO_OLD_IN_SEC) {
-				publishProgress(this.context.getString(R.string.downloading_data_from_and_source, BixiDataReader.SOURCE));
-				// look for new data
-				BixiDataReader.doInForeground(this.context, new WeakReference<BixiDataReaderListener>(this), null, 0);
+				// look for new data in the background, the last bike stations are returned now
+				this.refreshRequired = true;
 			}
 			publishProgress(this.context.getString(R.string.processing));
 			// get the closest bike station from database or NULL
 			List<BikeStation> bikeStations = getAllBikeStations(params[0], params[1]);
-			if (!TextUtils.isEmpty(this.lastBixiDataMessage)) {
-				result.setErrorMessage(this.lastBixiDataMessage);
-			}
 			if (bikeStations != null) { // bike stations
 				result.setPoiList(getABikeStations(bikeStations, params[0], params[1], this.maxResult));
-			} else if (TextUtils.isEmpty(this.lastBixiDataMessage)) { // no bike stations
+			} else { // no bike stations (yet)
 				result.setPoiList(new ArrayList<ABikeStation>());
 			}
 		}
@@ -108,6 +105,13 @@ public class ClosestBikeStationsFinderTask extends AsyncTask<Double, String, Clo
 
 	public List<BikeStation> getAllBikeStations(double lat, double lng) {
 		MyLog.v(TAG, "getAllBikeStations(%s,%s)", lat, lng);
+		if (this.maxResult > 0) {
+			// try the k-nearest bike stations from the index (no around search)
+			List<BikeStation> closestBikeStations = BixiManager.findClosestBikeStationsList(this.context.getContentResolver(), lat, lng, this.maxResult);
+			if (closestBikeStations != null) {
+				return closestBikeStations;
+			}
+		}
 		// try the short way with location hack
 		List<BikeStation> allBikeStationsWithLoc = BixiManager.findAllBikeStationsLocationList(this.context.getContentResolver(), lat, lng);
 		// MyLog.d(TAG, "1st try: " + Utils.getCollectionSize(allBikeStationsWithLoc));
@@ -168,19 +172,6 @@ public class ClosestBikeStationsFinderTask extends AsyncTask<Double, String, Clo
 		return aresult;
 	}
 
-	@Override
-	public void onBixiDataProgress(String progress) {
-		MyLog.v(TAG, "onBixiDataProgress(%s)", progress);
-		this.lastBixiDataMessage = progress;
-		// this.publishProgress(progress);
-	}
-
-	@Override
-	public void onBixiDataLoaded(List<BikeStation> newBikeStations, boolean isNew) {
-		// MyLog.v(TAG, "onBixiDataLoaded(%s, %s)", Utils.getCollectionSize(newBikeStations), isNew);
-		// already handled
-	}
-
 	@Override
 	protected void onProgressUpdate(String... values) {
 		MyLog.v(TAG, "onProgressUpdate()");
@@ -197,6 +188,9 @@ public class ClosestBikeStationsFinderTask extends AsyncTask<Double, String, Clo
 	@Override
 	protected void onPostExecute(ClosestPOI<ABikeStation> result) {
 		MyLog.v(TAG, "onPostExecute()");
+		if (this.refreshRequired) {
+			BixiRefreshScheduler.requestRefresh(this.context);
+		}
 		final ClosestBikeStationsFinderListener fromWR = this.from == null ? null : this.from.get();
 		if (fromWR != null) {
 			fromWR.onClosestBikeStationsDone(result);
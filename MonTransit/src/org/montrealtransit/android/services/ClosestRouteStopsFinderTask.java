@@ -4,7 +4,6 @@ import java.lang.ref.WeakReference;
 import java.util.Collections;
 import java.util.List;
 
-import org.montrealtransit.android.LocationUtils;
 import org.montrealtransit.android.MyLog;
 import org.montrealtransit.android.R;
 import org.montrealtransit.android.Utils;
@@ -71,10 +70,8 @@ public class ClosestRouteStopsFinderTask extends AsyncTask<Double, String, Close
 			publishProgress(this.context.getString(R.string.processing));
 			result = new ClosestPOI<RouteStop>(lat, lng);
 			// read location accuracy
-			// create a list of all stops with lines and location
-			List<RouteStop> routeStops = AbstractManager.findRouteStopsWithLatLngList(this.context, this.authorities, lat, lng, true);
-			// set stops distance
-			LocationUtils.updateDistance(routeStops, lat, lng);
+			// create a list of the closest stops with lines and location (with distance)
+			List<RouteStop> routeStops = AbstractManager.findClosestRouteStopsList(this.context, this.authorities, lat, lng, this.maxResult, true);
 			// sort by distance
 			Collections.sort(routeStops, POI.POI_DISTANCE_COMPARATOR);
 			if (Utils.getCollectionSize(routeStops) > this.maxResult) {
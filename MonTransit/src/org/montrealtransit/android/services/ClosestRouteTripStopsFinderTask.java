@@ -4,7 +4,6 @@ import java.lang.ref.WeakReference;
 import java.util.Collections;
 import java.util.List;
 
-import org.montrealtransit.android.LocationUtils;
 import org.montrealtransit.android.MyLog;
 import org.montrealtransit.android.R;
 import org.montrealtransit.android.Utils;
@@ -70,10 +69,9 @@ public class ClosestRouteTripStopsFinderTask extends AsyncTask<Double, String, C
 		if (lat != null && lng != null) {
 			publishProgress(this.context.getString(R.string.processing));
 			result = new ClosestPOI<RouteTripStop>(lat, lng);
-			// create a list of all stops with lines and location
-			List<RouteTripStop> routeTripStops = AbstractManager.findRouteTripStopsWithLatLngList(this.context, this.authorities, lat, lng, true);
-			// set stops distance
-			LocationUtils.updateDistance(routeTripStops, lat, lng);
+			// create a list of the closest stops with lines and location (with distance)
+			List<RouteTripStop> routeTripStops = AbstractManager.findClosestRouteTripStopsList(this.context, this.authorities, lat, lng, this.maxResult,
+					true);
 			// sort by distance
 			Collections.sort(routeTripStops, POI.POI_DISTANCE_COMPARATOR);
 			if (Utils.getCollectionSize(routeTripStops) > maxResult) {
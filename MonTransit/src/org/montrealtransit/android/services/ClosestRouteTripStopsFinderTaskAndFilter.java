@@ -4,10 +4,8 @@ import java.util.List;
 import java.util.ListIterator;
 
 import org.montrealtransit.android.MyLog;
-import org.montrealtransit.android.Utils;
 import org.montrealtransit.android.data.ClosestPOI;
 import org.montrealtransit.android.data.RouteTripStop;
-import org.montrealtransit.android.data.TripStop;
 import org.montrealtransit.android.provider.common.AbstractManager;
 
 import android.content.Context;
@@ -39,23 +37,8 @@ public class ClosestRouteTripStopsFinderTaskAndFilter extends ClosestRouteTripSt
 					continue;
 				}
 			}
-			// remove "last trip stop" now (because all nearby list takes too long)
-			ListIterator<RouteTripStop> resultIt = routeTripStops.listIterator();
-			while (resultIt.hasNext()) {
-				final RouteTripStop rts = resultIt.next();
-				if (rts == null) {
-					// MyLog.d(TAG, "refreshNearby()>Null or not Route Trip Stop! %s", poi);
-					continue;
-				}
-				// IF last stop of the trip DO
-				final TripStop lastTripStop = AbstractManager.findTripLastTripStop(this.context, Utils.newContentUri(rts.authority), rts.trip.id);
-				if (lastTripStop != null && rts.stop.id == lastTripStop.stop.id) {
-					resultIt.remove();
-					// MyLog.d(TAG, "refreshNearby()>REMOVED %s", routeTripStop.stop);
-					continue;
-				}
-				// MyLog.d(TAG, "refreshNearby()>NOT REMOVED");
-			}
+			// remove "last trip stop" now (1 query for all the trips)
+			AbstractManager.removeLastTripStops(this.context, routeTripStops);
 		}
 		result.setPoiList(routeTripStops);
 		return result;
@@ -3,8 +3,6 @@ package org.montrealtransit.android.services;
 import java.lang.ref.WeakReference;
 import java.net.HttpURLConnection;
 import java.net.SocketException;
-import java.net.URL;
-import java.net.URLConnection;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Comparator;
@@ -14,6 +12,7 @@ import java.util.Locale;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import org.montrealtransit.android.AnalyticsUtils;
+import org.montrealtransit.android.HttpUtils;
 import org.montrealtransit.android.MyLog;
 import org.montrealtransit.android.R;
 import org.montrealtransit.android.Utils;
@@ -69,13 +68,11 @@ public class StmInfoStatusApiReader extends AsyncTask<String, String, String> {
 	protected String doInBackground(String... params) {
 		MyLog.v(TAG, "doInBackground()");
 		try {
-			URL url = new URL(getUrlString());
-			URLConnection urlc = url.openConnection();
-			// MyLog.d(TAG, "URL created: '%s'", url.toString());
-			HttpURLConnection httpUrlConnection = (HttpURLConnection) urlc;
-			switch (httpUrlConnection.getResponseCode()) {
+			HttpURLConnection httpUrlConnection = HttpUtils.openConnection(getUrlString(), false);
+			// MyLog.d(TAG, "URL created: '%s'", httpUrlConnection.getURL());
+			switch (HttpUtils.getResponseCode(httpUrlConnection)) {
 			case HttpURLConnection.HTTP_OK:
-				String json = Utils.getJson(urlc);
+				String json = HttpUtils.readString(httpUrlConnection);
 				AnalyticsUtils.dispatch(this.context); // while we are connected, send the analytics data
 				publishProgress(this.context.getResources().getString(R.string.processing_data));
 				JSONObject jResponse = new JSONObject(json);
@@ -1,13 +1,22 @@
 package org.montrealtransit.android.services.nextstop;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.montrealtransit.android.MyLog;
 import org.montrealtransit.android.R;
 import org.montrealtransit.android.Utils;
+import org.montrealtransit.android.api.SupportFactory;
 import org.montrealtransit.android.data.RouteTripStop;
 import org.montrealtransit.android.data.StopTimes;
+import org.montrealtransit.android.provider.common.AbstractManager;
 import org.montrealtransit.android.provider.common.AbstractScheduleManager;
 
 import android.content.Context;
@@ -16,6 +25,19 @@ import android.os.Environment;
 public class ScheduleTask extends AbstractNextStopProvider {
 
 	public static final String TAG = ScheduleTask.class.getSimpleName();
+
+	/**
+	 * The maximum number of schedule tasks running at the same time (the schedule providers of 1 stop: offline + live).
+	 */
+	private static final int MAX_RUNNING_TASKS = 3;
+
+	private static Executor executor;
+
+	/**
+	 * The executor running the schedule tasks rejected by the full {@link #executor} (one after the other).
+	 */
+	private static Executor serialExecutor;
+
 	private boolean force;
 
 	public ScheduleTask(Context context, NextStopListener from, RouteTripStop stop, String scheduleAuthority, boolean force) {
@@ -23,6 +45,34 @@ public class ScheduleTask extends AbstractNextStopProvider {
 		this.force = force;
 	}
 
+	/**
+	 * @return the executor running the schedule tasks of all the schedule providers in parallel (the fastest provider answers first)
+	 */
+	public static synchronized Executor getExecutor() {
+		if (executor == null) {
+			executor = new ThreadPoolExecutor(MAX_RUNNING_TASKS, MAX_RUNNING_TASKS, 0, TimeUnit.SECONDS, SupportFactory.get().getNewBlockingQueue(),
+					new RejectedExecutionHandler() {
+
+						@Override
+						public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+							MyLog.d(TAG, "Schedule task rejected! (running after the other rejected tasks)");
+							getSerialExecutor().execute(r);
+						}
+					});
+		}
+		return executor;
+	}
+
+	/**
+	 * @return the executor running the rejected schedule tasks one after the other (never rejects)
+	 */
+	private static synchronized Executor getSerialExecutor() {
+		if (serialExecutor == null) {
+			serialExecutor = Executors.newSingleThreadExecutor();
+		}
+		return serialExecutor;
+	}
+
 	@Override
 	protected Map<String, StopTimes> doInBackground(Void... params) {
 		MyLog.v(TAG, "doInBackground()");
@@ -44,6 +94,10 @@ public class ScheduleTask extends AbstractNextStopProvider {
 		}
 		publishProgress(this.context.getString(R.string.downloading_data_from_and_source, getSourceName()));
 		Integer cacheValidityInSec = force ? -1 : null;
+		Map<String, StopTimes> stopStopTimes = findStopStopTimes(cacheValidityInSec);
+		if (stopStopTimes != null) {
+			return stopStopTimes;
+		}
 		final StopTimes stopTime = AbstractScheduleManager.findStopTimes(this.context.getContentResolver(), Utils.newContentUri(this.scheduleAuthority),
 				routeTripStop, Utils.recentTimeMillis(), false, cacheValidityInSec);
 		// MyLog.d(TAG, "stopTime: %s", stopTime);
@@ -56,6 +110,34 @@ public class ScheduleTask extends AbstractNextStopProvider {
 		return stopTimes;
 	}
 
+	/**
+	 * @return the stop times of all the route trips of the stop from one provider call or null if not supported by the provider
+	 */
+	private Map<String, StopTimes> findStopStopTimes(Integer cacheValidityInSec) {
+		final Map<Integer, StopTimes> tripsStopTimes = AbstractScheduleManager.findStopTimesByTrip(this.context.getContentResolver(),
+				Utils.newContentUri(this.scheduleAuthority), this.routeTripStop.stop.id, Utils.recentTimeMillis(), false, cacheValidityInSec);
+		if (tripsStopTimes == null) {
+			return null;
+		}
+		List<RouteTripStop> stopRouteTripStops = new ArrayList<RouteTripStop>();
+		stopRouteTripStops.add(this.routeTripStop);
+		final List<RouteTripStop> otherRouteTripStops = AbstractManager.findRouteTripStopWithStopIdList(this.context,
+				Utils.newContentUri(this.routeTripStop.authority), this.routeTripStop.stop.id, false);
+		if (otherRouteTripStops != null) {
+			stopRouteTripStops.addAll(otherRouteTripStops);
+		}
+		Map<String, StopTimes> stopTimes = new HashMap<String, StopTimes>();
+		for (RouteTripStop stopRouteTripStop : stopRouteTripStops) {
+			StopTimes stopTime = tripsStopTimes.get(stopRouteTripStop.trip.id);
+			if (stopTime == null) {
+				stopTime = new StopTimes(getSourceName(), false, this.context.getString(R.string.stop_no_info_and_source,
+						stopRouteTripStop.route.shortName, getSourceName()));
+			}
+			stopTimes.put(stopRouteTripStop.getUUID(), stopTime);
+		}
+		return stopTimes;
+	}
+
 	@Override
 	public String getTag() {
 		return TAG;